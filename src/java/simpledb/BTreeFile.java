@@ -2,6 +2,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +28,102 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private volatile boolean memoryMapped = false;
+	private volatile LatchMode latchMode = LatchMode.fromProperty();
+	/** The latches the current thread holds while it splits pages in latch mode, if it does */
+	private final ThreadLocal<PageLatches.Held> latched = new ThreadLocal<PageLatches.Held>();
+	/** Serializes allocating pages in latch mode, since header pages aren't latched */
+	private final Object allocLock = new Object();
+	/** The high keys and right links of the pages split in BLINK mode */
+	private final ConcurrentHashMap<BTreePageId, Link> links = new ConcurrentHashMap<BTreePageId, Link>();
+	/** The links to the pages split off in BLINK mode that their parents have no entry for yet */
+	private final ConcurrentHashMap<BTreePageId, Link> unposted = new ConcurrentHashMap<BTreePageId, Link>();
+	/** The links to pages their parents have entries for, to drop once no operation may need them */
+	private final ConcurrentLinkedQueue<Link> posted = new ConcurrentLinkedQueue<Link>();
+	/** The tickets of the BLINK operations under way */
+	private final ConcurrentSkipListSet<Long> blinkOps = new ConcurrentSkipListSet<Long>();
+	private final AtomicLong blinkTicket = new AtomicLong();
+
+	/**
+	 * The high key of a page split in BLINK mode, i.e. the largest key its subtree may hold,
+	 * and a link to its right sibling, which holds the keys above it. A page without a Link
+	 * has no high key: it has not been split since BLINK mode was set, the operations that
+	 * could have needed its link are over, or it is the last page of its level.
+	 */
+	private static class Link {
+		final Field highKey;
+		final BTreePageId right;
+		/** The page the link belongs to, which changes when that page splits again */
+		volatile BTreePageId holder;
+		/** The ticket taken once the parent had an entry for right */
+		volatile long postedAt;
+
+		Link(BTreePageId holder, Field highKey, BTreePageId right) {
+			this.holder = holder;
+			this.highKey = highKey;
+			this.right = right;
+		}
+	}
+
+	/**
+	 * How operations on a BTreeFile keep out of each other's way.
+	 * <p>
+	 * In LOCKING mode, transactions lock every page they use, internal pages
+	 * and the root pointer included, until they complete, so an insert that
+	 * splits a page near the root keeps most other transactions out of the
+	 * tree until it commits.
+	 * <p>
+	 * In the latch modes, only leaves are locked. Internal pages and the
+	 * root pointer are latched just while an operation uses them (see
+	 * {@link PageLatches}), crabbing down from the root pointer: a child is
+	 * latched before the latch on its parent is given up. Readers latch
+	 * shared. In CRABBING mode, inserts latch exclusively and keep the
+	 * latches on the path only as long as a split could reach it, i.e.
+	 * until they reach a page with room for another entry. In OPTIMISTIC
+	 * mode, inserts latch shared down to the leaf, betting it has room, and
+	 * start over like in CRABBING mode if it doesn't.
+	 * <p>
+	 * In BLINK mode, the tree follows Lehman and Yao's B-link design: no
+	 * operation holds more than one latch on its way down, save for moving
+	 * from a page to its right sibling. Each page split in BLINK mode gets
+	 * a high key and a link to the page split off it, so an operation that
+	 * arrives at a page after it split, its parent not yet knowing about
+	 * the new page, sees that its key is above the high key and follows the
+	 * link. Inserts split a full leaf with only the leaf latched, then let
+	 * go of it and latch the parent to add the new entry, splitting the
+	 * parent the same way if it is full. Searches are never held up by a
+	 * split further up the tree. The high keys and links are kept in memory
+	 * rather than on the pages: they only matter to operations under way
+	 * while a split is completed, and the page format has no room for them.
+	 * A link is dropped once the parent has an entry for the new page and
+	 * the operations that started before that are over. Links are lost in a
+	 * crash, so recovery adds the entries that splits cut short by it didn't
+	 * get to add; see {@link #completeSplits}.
+	 * <p>
+	 * Splits made in a latch mode stay when their transaction aborts; the
+	 * inserts and deletes themselves are undone tuple by tuple. So each
+	 * operation logs the tuple with the images of the pages it changed in a
+	 * ROW record before it lets go of their latches: a split is redone whole
+	 * after a crash, and recovery undoes the tuples of the transactions that
+	 * didn't finish, on pages others may have changed since. Deletes
+	 * never merge or redistribute pages in a latch mode, so leaves may end
+	 * up less than half full, or empty.
+	 */
+	public enum LatchMode {
+		LOCKING, CRABBING, OPTIMISTIC, BLINK;
+
+		/**
+		 * @return the mode named by the simpledb.BTreeLatchMode system
+		 *   property, or LOCKING if the property is not set.
+		 */
+		public static LatchMode fromProperty() {
+			String name = System.getProperty("simpledb.BTreeLatchMode");
+			if (name == null || name.length() == 0) {
+				return LOCKING;
+			}
+			return valueOf(name.toUpperCase());
+		}
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -47,6 +147,47 @@ public class BTreeFile implements DbFile {
 		return f;
 	}
 
+	/**
+	 * Turns memory-mapped reads on or off. In memory-mapped mode pages are
+	 * copied out of a read-only mapping of the file rather than read with
+	 * a system call each. Pages allocated later are picked up by extending
+	 * the mapping on the first read that reaches them.
+	 * 
+	 * @see FileHandleManager#readMapped
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Sets how operations on this file keep out of each other's way, which
+	 * is set by the simpledb.BTreeLatchMode system property and is LOCKING
+	 * by default. Only change it while no transaction uses the file.
+	 * 
+	 * @see LatchMode
+	 */
+	public void setLatchMode(LatchMode latchMode) {
+		// the links describe splits no operation can be in the middle of any more
+		links.clear();
+		unposted.clear();
+		posted.clear();
+		this.latchMode = latchMode;
+	}
+
+	/**
+	 * @return how operations on this file keep out of each other's way
+	 */
+	public LatchMode getLatchMode() {
+		return latchMode;
+	}
+
+	/**
+	 * @return whether tid protects internal pages with latches rather than locks
+	 */
+	private boolean latching(TransactionId tid) {
+		return latchMode != LatchMode.LOCKING && !Database.getBufferPool().isSnapshot(tid);
+	}
+
 	/**
 	 * Returns an ID uniquely identifying this BTreeFile. Implementation note:
 	 * you will need to generate this tableid somewhere and ensure that each
@@ -78,14 +219,13 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
+		FileHandleManager handles = Database.getFileHandleManager();
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				int retval = read(handles, pageBuf, 0);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -98,13 +238,8 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				int retval = read(handles, pageBuf, pageOffset(id.getPageNumber()));
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BufferPool.getPageSize()) {
@@ -112,32 +247,46 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return pageOf(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * Constructs the internal, leaf or header page id from its contents.
+	 */
+	private Page pageOf(BTreePageId id, byte[] pageBuf) throws IOException {
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+			return p;
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+			return p;
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
+			return p;
+		}
+	}
+
+	private int read(FileHandleManager handles, byte[] pageBuf, long offset) throws IOException {
+		if (memoryMapped) {
+			return handles.readMapped(this, f, pageBuf, offset);
+		}
+		return handles.read(this, f, pageBuf, offset);
+	}
+
+	/**
+	 * @return the offset in the file of page number pgNo (page numbers
+	 * start at 1, right after the root pointer page)
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -148,15 +297,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			Database.getFileHandleManager().write(this, f, data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			Database.getFileHandleManager().write(this, f, data, pageOffset(id.getPageNumber()));
 		}
 	}
 	
@@ -165,7 +310,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((Database.getFileHandleManager().size(this, f) - BTreeRootPtrPage.getPageSize())
+					/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -194,8 +344,32 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, childFor(page, f, false), perm, f);
+	}
+
+	/**
+	 * Returns the child of an internal page whose subtree is the left-most (or right-most)
+	 * one possibly containing the key field f.
+	 * 
+	 * @param page - the internal page
+	 * @param f - the field to search for, or null for the left-most child
+	 * @param rightMost - whether to return the right-most subtree possibly containing f
+	 * rather than the left-most one. Keys equal to an entry's key may be on either side of it.
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f, boolean rightMost) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(rightMost ? Op.LESS_THAN : Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
 	}
 	
 	/**
@@ -216,6 +390,222 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f, starting from
+	 * the root pointer page. In a latch mode only the leaf is locked.
+	 * Used by the BTreeFile iterators.
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		if(!latching(tid)) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+					tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+			return findLeafPage(tid, rootPtr.getRootId(), perm, f);
+		}
+		PageLatches latches = Database.getBufferPool().getLatches();
+		PageLatches.Held held = latches.hold();
+		long ticket = latchMode == LatchMode.BLINK ? beginBlink() : 0;
+		try {
+			BTreeLeafPage leaf;
+			while((leaf = latchMode == LatchMode.BLINK ? blinkLeaf(tid, held, f, perm)
+					: latchLeaf(tid, held, f, false, perm)) == null) {
+				latches.restarted();
+			}
+			return leaf;
+		} finally {
+			held.releaseAll();
+			if(ticket != 0) {
+				endBlink(ticket);
+			}
+		}
+	}
+
+	/**
+	 * Latches its way down from the root pointer page to the left-most leaf page possibly
+	 * containing the key field f, latching internal pages shared or, if exclusive is true,
+	 * exclusively. Shared latches are given up as soon as the child is latched; exclusive ones
+	 * are kept until a page on the path has room for another entry, as a split of the leaf
+	 * could reach up to there. The leaf's parent is left latched.
+	 * 
+	 * @return the id of the leaf page
+	 */
+	private BTreePageId descend(TransactionId tid, PageLatches.Held held, Field f, boolean exclusive)
+			throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		held.latch(pid, exclusive);
+		pid = ((BTreeRootPtrPage) bp.getLatchedPage(tid, pid, Permissions.READ_ONLY)).getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			held.latch(pid, exclusive);
+			BTreeInternalPage page = (BTreeInternalPage) bp.getLatchedPage(tid, pid, Permissions.READ_ONLY);
+			if(!exclusive || page.getNumEmptySlots() > 0) {
+				held.releaseBefore(pid);
+			}
+			pid = childFor(page, f, false);
+		}
+		return pid;
+	}
+
+	/**
+	 * Finds the left-most leaf page possibly containing the key field f like
+	 * {@link #descend}, then locks it with permission perm and latches it, exclusively if
+	 * perm is READ_WRITE. The lock is not waited for with latches held: if it can't be had
+	 * right away, all latches are given up, and the lock is waited for before returning null.
+	 * 
+	 * @return the leaf page, or null if the caller has to start over
+	 */
+	private BTreeLeafPage latchLeaf(TransactionId tid, PageLatches.Held held, Field f, boolean exclusive,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId pid = descend(tid, held, f, exclusive);
+		if(!bp.lockPage(tid, pid, perm, false)) {
+			held.releaseAll();
+			bp.lockPage(tid, pid, perm, true);
+			return null;
+		}
+		held.latch(pid, exclusive || perm == Permissions.READ_WRITE);
+		BTreeLeafPage leaf = (BTreeLeafPage) bp.getLatchedPage(tid, pid, perm);
+		if(!exclusive || leaf.getNumEmptySlots() > 0) {
+			held.releaseBefore(pid);
+		}
+		return leaf;
+	}
+
+	/**
+	 * Finds the left-most leaf page possibly containing the key field f in BLINK mode. Each
+	 * page on the way down is latched shared on its own, and a page whose high key is below f
+	 * sends the search on to its right sibling rather than to a child.
+	 * 
+	 * @return the id of the leaf page, with no latches held
+	 */
+	private BTreePageId blinkDescend(TransactionId tid, PageLatches.Held held, Field f) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		held.latch(pid, false);
+		pid = ((BTreeRootPtrPage) bp.getLatchedPage(tid, pid, Permissions.READ_ONLY)).getRootId();
+		held.releaseAll();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			held.latch(pid, false);
+			BTreeInternalPage page = (BTreeInternalPage) bp.getLatchedPage(tid, pid, Permissions.READ_ONLY);
+			BTreePageId next = rightOf(pid, f);
+			if(next == null) {
+				next = childFor(page, f, false);
+			}
+			held.releaseAll();
+			pid = next;
+		}
+		return pid;
+	}
+
+	/**
+	 * Finds the left-most leaf page possibly containing the key field f like
+	 * {@link #blinkDescend}, moving right from the leaf it arrives at as long as f is above the
+	 * high key, then locks it with permission perm and latches it, exclusively if perm is
+	 * READ_WRITE. The lock is waited for as in {@link #latchLeaf}.
+	 * 
+	 * @return the leaf page, or null if the caller has to start over
+	 */
+	private BTreeLeafPage blinkLeaf(TransactionId tid, PageLatches.Held held, Field f, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		boolean exclusive = perm == Permissions.READ_WRITE;
+		BTreePageId pid = blinkDescend(tid, held, f);
+		held.latch(pid, exclusive);
+		BTreePageId right;
+		while((right = rightOf(pid, f)) != null) {
+			held.latch(right, exclusive);
+			held.release(pid);
+			pid = right;
+		}
+		if(!bp.lockPage(tid, pid, perm, false)) {
+			held.releaseAll();
+			bp.lockPage(tid, pid, perm, true);
+			return null;
+		}
+		return (BTreeLeafPage) bp.getLatchedPage(tid, pid, perm);
+	}
+
+	/**
+	 * @return the right sibling to search for the key field f instead of page pid in BLINK
+	 * mode, or null if f is not above the page's high key
+	 */
+	private BTreePageId rightOf(BTreePageId pid, Field f) {
+		Link link = links.get(pid);
+		if(f == null || link == null || !f.compare(Op.GREATER_THAN, link.highKey)) {
+			return null;
+		}
+		return link.right;
+	}
+
+	/**
+	 * Records that page newPid was split off page pid in BLINK mode, with the keys above
+	 * highKey. The new page takes over the high key and link pid had.
+	 */
+	private void link(BTreePageId pid, BTreePageId newPid, Field highKey) {
+		Link old = links.get(pid);
+		if(old != null) {
+			synchronized(old) {
+				old.holder = newPid;
+				links.put(newPid, old);
+			}
+		}
+		else {
+			links.remove(newPid);
+		}
+		Link link = new Link(pid, highKey, newPid);
+		unposted.put(newPid, link);
+		links.put(pid, link);
+	}
+
+	/**
+	 * Records that the parent of page pid, split off another page in BLINK mode, now has an
+	 * entry for it, so the link to it is only needed by the operations under way.
+	 */
+	private void posted(BTreePageId pid) {
+		Link link = unposted.remove(pid);
+		link.postedAt = blinkTicket.incrementAndGet();
+		posted.add(link);
+	}
+
+	/**
+	 * Registers a BLINK operation, which may read a parent before it gets an entry for a page
+	 * split off one of its children and so need the link to that page.
+	 * 
+	 * @return the ticket to hand to {@link #endBlink}
+	 */
+	private long beginBlink() {
+		long ticket = blinkTicket.incrementAndGet();
+		blinkOps.add(ticket);
+		return ticket;
+	}
+
+	/**
+	 * Ends a BLINK operation, and drops the links posted before every operation still under
+	 * way started: those read the parents after they got their entries.
+	 */
+	private void endBlink(long ticket) {
+		blinkOps.remove(ticket);
+		Long oldest = blinkOps.ceiling(Long.MIN_VALUE);
+		Link link;
+		while((link = posted.peek()) != null && (oldest == null || link.postedAt < oldest)) {
+			if(posted.remove(link)) {
+				synchronized(link) {
+					links.remove(link.holder, link);
+				}
+			}
+		}
+	}
+
+	/** @return the number of high keys and links kept for BLINK mode */
+	int numLinks() {
+		return links.size();
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -239,18 +629,56 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = splitOffLeaf(tid, dirtypages, page);
+
+		// copy the first key of the new page up. Splitting the parent may move the page
+		// to a new parent, which then holds the parent pointer
+		Field key = newPage.iterator().next().getField(keyField);
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+				Permissions.READ_WRITE);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		updateParentPointer(tid, dirtypages, parent.getId(), newPage.getId());
+
+		if(field.compare(Op.GREATER_THAN_OR_EQ, key)) {
+			return newPage;
+		}
+		return page;
 	}
 	
+	/**
+	 * Moves the upper half of the tuples of a leaf page to a new page, which is linked in
+	 * between the page and its right sibling. The parent is left alone.
+	 * 
+	 * @return the new page
+	 */
+	private BTreeLeafPage splitOffLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		Tuple[] moving = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in between the page and its right sibling
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+		return newPage;
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -276,18 +704,297 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeEntry middle = splitOffInternal(tid, dirtypages, page);
+		BTreeInternalPage newPage = (BTreeInternalPage) dirtypages.get(middle.getRightChild());
+
+		// push the middle key up
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+				Permissions.READ_WRITE);
+		parent.insertEntry(middle);
+		updateParentPointer(tid, dirtypages, parent.getId(), newPage.getId());
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
+	/**
+	 * Moves the upper half of the entries of an internal page to a new page and takes the
+	 * middle entry off the page. The parent is left alone.
+	 * 
+	 * @return the middle entry, to be pushed up, with the page as its left child and the new
+	 * page as its right child
+	 */
+	private BTreeEntry splitOffInternal(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// take the upper half of the entries and the middle entry off the page
+		BTreeEntry[] moving = new BTreeEntry[page.getNumEntries() / 2];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		BTreeEntry middle = it.next();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			page.deleteKeyAndRightChild(moving[i]);
+		}
+		page.deleteKeyAndRightChild(middle);
+
+		// the middle entry's right child becomes the left-most child of the new page
+		for(BTreeEntry e : moving) {
+			newPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, newPage);
+
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		return middle;
+	}
+
+	/**
+	 * Completes a split in BLINK mode by adding an entry for the new page to the parent of the
+	 * page split, splitting the parent the same way if it is full and going on to its parent.
+	 * Called with no latches held; each level is latched on its own, from the parent down to
+	 * the children whose parent pointers change, and logged before its latches are given up.
+	 * 
+	 * @param held - an empty set of latches to use
+	 * @param split - the entry to add, with the page split as its left child and the new page
+	 * as its right child
+	 */
+	private void postSplit(TransactionId tid, HashMap<PageId, Page> dirtypages, PageLatches.Held held,
+			BTreeEntry split) throws DbException, IOException, TransactionAbortedException {
+		while(split != null) {
+			// pages whose latches were given up must not be served from the cache unlatched
+			HashMap<PageId, Page> touched = new HashMap<PageId, Page>();
+			BTreeEntry next;
+			latched.set(held);
+			try {
+				next = postEntry(tid, touched, held, split);
+				Database.getBufferPool().logRow(tid, LogFile.ROW_PAGES, null, -1, touched.values());
+			} finally {
+				latched.set(null);
+				held.releaseAll();
+				dirtypages.putAll(touched);
+			}
+			if(next == split) {
+				// the page the entry goes after is not in its parent yet
+				Thread.yield();
+			}
+			split = next;
+		}
+	}
+
+	/**
+	 * Adds one entry for a split in BLINK mode to the parent.
+	 * 
+	 * @return the entry to add one level up if the parent had to split, null if there is none,
+	 * or the same entry if it can't be added yet and has to be tried again
+	 */
+	private BTreeEntry postEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, PageLatches.Held held,
+			BTreeEntry split) throws DbException, IOException, TransactionAbortedException {
+		// the entry goes right after the page linked to the new one, which is the page split
+		// unless that has split again since
+		BTreePageId right = split.getRightChild();
+		BTreePageId pred = unposted.get(right).holder;
+		BTreeEntry entry = new BTreeEntry(split.getKey(), pred, right);
+
+		held.latch(pred, false);
+		BTreePageId parentId = ((BTreePage) Database.getBufferPool().getLatchedPage(tid, pred,
+				Permissions.READ_ONLY)).getParentId();
+		held.release(pred);
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			if(!growRoot(tid, dirtypages, held, entry)) {
+				return split;
+			}
+			posted(right);
+			return null;
+		}
+
+		held.latch(parentId, true);
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+		// a page split off pred since may already be in the parent, right after pred
+		if(!hasChild(parent, pred) || !unposted.get(right).holder.equals(pred)) {
+			return split;
+		}
+		BTreeEntry middle = null;
+		if(parent.getNumEmptySlots() == 0) {
+			middle = splitOffInternal(tid, dirtypages, parent);
+			BTreeInternalPage newPage = (BTreeInternalPage) dirtypages.get(middle.getRightChild());
+			newPage.setParentId(parent.getParentId());
+			link(parentId, newPage.getId(), middle.getKey());
+			if(hasChild(newPage, pred)) {
+				parent = newPage;
+			}
+		}
+		parent.insertEntry(entry);
+		updateParentPointer(tid, dirtypages, parent.getId(), right);
+		posted(right);
+		return middle;
+	}
+
+	/**
+	 * Gives the tree a new root holding just the entry in BLINK mode, if the entry's left
+	 * child is still the root.
+	 * 
+	 * @return whether the root was replaced
+	 */
+	private boolean growRoot(TransactionId tid, HashMap<PageId, Page> dirtypages, PageLatches.Held held,
+			BTreeEntry entry) throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		if(!entry.getLeftChild().equals(rootPtr.getRootId())) {
+			return false;
+		}
+		BTreeInternalPage root = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		root.insertEntry(entry);
+		rootPtr.setRootId(root.getId());
+		updateParentPointers(tid, dirtypages, root);
+		return true;
+	}
+
+	private static boolean hasChild(BTreeInternalPage page, BTreePageId child) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(e.getLeftChild().equals(child)) {
+				return true;
+			}
+		}
+		return e != null && e.getRightChild().equals(child);
+	}
+
+	/**
+	 * Adds the parent entries that splits made in BLINK mode didn't get to add before a crash,
+	 * for the pages split off that searches could only reach through the links lost with it.
+	 * The pages of each level are found in key order from the leaves up, along the leaves'
+	 * sibling pointers and then through the parent pointers of the level below, leaving out
+	 * pages whose parents have no entry for them. An entry goes right after the page before
+	 * its page, separating the pages by the first key stored from that page's leaves on; a
+	 * page with no key on either side of it has nothing to find and is left as it is. The
+	 * levels are completed from the top down, so the parents they add entries to are
+	 * complete. Called by recovery, with no other transaction running; pages are locked
+	 * rather than latched.
+	 * 
+	 * @return the pages changed
+	 */
+	public ArrayList<Page> completeSplits(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		if(Database.getFileHandleManager().size(this, f) == 0) {
+			return new ArrayList<Page>();
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		if(pid == null) {
+			return new ArrayList<Page>();
+		}
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			pid = ((BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY))
+					.iterator().next().getLeftChild();
+		}
+
+		// the leaves in key order, with the first and last keys on each
+		ArrayList<BTreePageId> leaves = new ArrayList<BTreePageId>();
+		ArrayList<Field> firstKeys = new ArrayList<Field>();
+		ArrayList<Field> lastKeys = new ArrayList<Field>();
+		while(pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			Iterator<Tuple> it = leaf.iterator();
+			firstKeys.add(it.hasNext() ? it.next().getField(keyField) : null);
+			it = leaf.reverseIterator();
+			lastKeys.add(it.hasNext() ? it.next().getField(keyField) : null);
+			leaves.add(pid);
+			pid = leaf.getRightSiblingId();
+		}
+
+		// each level, with the index of the first leaf under each page
+		ArrayList<ArrayList<BTreePageId>> levels = new ArrayList<ArrayList<BTreePageId>>();
+		ArrayList<ArrayList<Integer>> firstLeaves = new ArrayList<ArrayList<Integer>>();
+		ArrayList<BTreePageId> level = leaves;
+		ArrayList<Integer> firstLeaf = new ArrayList<Integer>();
+		for(int i = 0; i < leaves.size(); i++) {
+			firstLeaf.add(i);
+		}
+		while(!level.isEmpty()) {
+			levels.add(level);
+			firstLeaves.add(firstLeaf);
+			ArrayList<BTreePageId> up = new ArrayList<BTreePageId>();
+			ArrayList<Integer> upFirstLeaf = new ArrayList<Integer>();
+			for(int i = 0; i < level.size(); i++) {
+				BTreePageId parentId = parentOf(tid, dirtypages, level.get(i));
+				if(parentId != null && parentId.pgcateg() != BTreePageId.ROOT_PTR
+						&& (up.isEmpty() || !up.get(up.size() - 1).equals(parentId))) {
+					up.add(parentId);
+					upFirstLeaf.add(firstLeaf.get(i));
+				}
+			}
+			level = up;
+			firstLeaf = upFirstLeaf;
+		}
+
+		for(int h = levels.size() - 1; h >= 0; h--) {
+			level = levels.get(h);
+			firstLeaf = firstLeaves.get(h);
+			BTreePageId left = level.get(0);
+			for(int i = 1; i < level.size(); i++) {
+				BTreePageId right = level.get(i);
+				if(parentOf(tid, dirtypages, right) == null) {
+					Field key = separator(firstKeys, lastKeys, firstLeaf.get(i));
+					if(key == null) {
+						continue;
+					}
+					BTreePageId parentId = ((BTreePage) getPage(tid, dirtypages, left,
+							Permissions.READ_ONLY)).getParentId();
+					getParentWithEmptySlots(tid, dirtypages, parentId, key);
+					parentId = ((BTreePage) getPage(tid, dirtypages, left, Permissions.READ_ONLY)).getParentId();
+					BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId,
+							Permissions.READ_WRITE);
+					parent.insertEntry(new BTreeEntry(key, left, right));
+					updateParentPointer(tid, dirtypages, parentId, right);
+				}
+				left = right;
+			}
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * @return the parent of page pid, or the root pointer's id if pid is the root, or null if
+	 * the page its parent pointer names has no entry for it
+	 */
+	private BTreePageId parentOf(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		BTreePageId parentId = ((BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY)).getParentId();
+		Page parent = getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			return pid.equals(((BTreeRootPtrPage) parent).getRootId()) ? parentId : null;
+		}
+		return hasChild((BTreeInternalPage) parent, pid) ? parentId : null;
+	}
+
+	/**
+	 * @return the first key on leaf i or a leaf right of it, or failing that the last key on a
+	 * leaf left of it, or null if the leaves hold no tuples
+	 */
+	private static Field separator(ArrayList<Field> firstKeys, ArrayList<Field> lastKeys, int i) {
+		for(int j = i; j < firstKeys.size(); j++) {
+			if(firstKeys.get(j) != null) {
+				return firstKeys.get(j);
+			}
+		}
+		for(int j = i - 1; j >= 0; j--) {
+			if(lastKeys.get(j) != null) {
+				return lastKeys.get(j);
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing 
@@ -415,7 +1122,20 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			PageLatches.Held held = latched.get();
+			Page p;
+			if(held == null) {
+				p = Database.getBufferPool().getPage(tid, pid, perm);
+			}
+			else {
+				// splitting in a latch mode: latch rather than lock, except for header pages,
+				// which allocLock covers, and the root pointer when it is only read to find them
+				if(pid.pgcateg() != BTreePageId.HEADER
+						&& (pid.pgcateg() != BTreePageId.ROOT_PTR || perm == Permissions.READ_WRITE)) {
+					held.latch(pid, true);
+				}
+				p = Database.getBufferPool().getLatchedPage(tid, pid, perm);
+			}
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -435,6 +1155,9 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		if(latching(tid)) {
+			return insertLatched(tid, t, true, -1);
+		}
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
@@ -462,6 +1185,234 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Insert a tuple in a latch mode. Only the leaf page is locked; the pages above it are
+	 * latched while they are used.
+	 * 
+	 * @param undoable - whether to have the insert undone if the transaction aborts
+	 * @param undone - the LSN of the delete the insert undoes, if it is not undoable
+	 * @see LatchMode
+	 */
+	private ArrayList<Page> insertLatched(TransactionId tid, Tuple t, boolean undoable, long undone)
+			throws DbException, IOException, TransactionAbortedException {
+		setRootIfNone(tid);
+		if(latchMode == LatchMode.BLINK) {
+			return insertBLink(tid, t, undoable, undone);
+		}
+		PageLatches latches = Database.getBufferPool().getLatches();
+		Field key = t.getField(keyField);
+		boolean optimistic = latchMode == LatchMode.OPTIMISTIC;
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		PageLatches.Held held = latches.hold();
+		long lsn;
+		try {
+			while(true) {
+				BTreeLeafPage leafPage = latchLeaf(tid, held, key, !optimistic, Permissions.READ_WRITE);
+				if(leafPage != null && leafPage.getNumEmptySlots() == 0 && optimistic) {
+					// the bet is lost: the leaf splits, so latch the path exclusively
+					held.releaseAll();
+					optimistic = false;
+					leafPage = null;
+				}
+				if(leafPage == null) {
+					latches.restarted();
+					continue;
+				}
+				dirtypages.put(leafPage.getId(), leafPage);
+				if(leafPage.getNumEmptySlots() == 0) {
+					latched.set(held);
+					try {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+					} finally {
+						latched.set(null);
+					}
+				}
+				leafPage.insertTuple(t);
+				lsn = logInsert(tid, t, undoable, undone, dirtypages);
+				break;
+			}
+		} finally {
+			held.releaseAll();
+		}
+		if(undoable) {
+			long logged = lsn;
+			Database.getBufferPool().addRowUndo(tid, () -> undoInsert(tid, t, logged, false));
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * Logs the insert of t in a latch mode, or if it is not undoable the undo of the delete
+	 * logged at LSN undone, with the images of the pages changed, which are still latched.
+	 * 
+	 * @return the LSN of the record
+	 */
+	private long logInsert(TransactionId tid, Tuple t, boolean undoable, long undone,
+			HashMap<PageId, Page> dirtypages) throws IOException {
+		return Database.getBufferPool().logRow(tid, undoable ? LogFile.ROW_INSERT : LogFile.ROW_UNDO,
+				t, undone, dirtypages.values());
+	}
+
+	/**
+	 * Insert a tuple in BLINK mode. A full leaf is split with only the leaf and the new page
+	 * latched, and the entry for the new page is added to the parent after they are released.
+	 * 
+	 * @see #postSplit
+	 */
+	private ArrayList<Page> insertBLink(TransactionId tid, Tuple t, boolean undoable, long undone)
+			throws DbException, IOException, TransactionAbortedException {
+		PageLatches latches = Database.getBufferPool().getLatches();
+		Field key = t.getField(keyField);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		PageLatches.Held held = latches.hold();
+		long ticket = beginBlink();
+		long lsn;
+		try {
+			BTreeLeafPage leafPage;
+			while((leafPage = blinkLeaf(tid, held, key, Permissions.READ_WRITE)) == null) {
+				latches.restarted();
+			}
+			dirtypages.put(leafPage.getId(), leafPage);
+			if(leafPage.getNumEmptySlots() > 0) {
+				leafPage.insertTuple(t);
+				lsn = logInsert(tid, t, undoable, undone, dirtypages);
+			}
+			else {
+				BTreeLeafPage newPage;
+				latched.set(held);
+				try {
+					newPage = splitOffLeaf(tid, dirtypages, leafPage);
+				} finally {
+					latched.set(null);
+				}
+				newPage.setParentId(leafPage.getParentId());
+				Field sep = newPage.iterator().next().getField(keyField);
+				link(leafPage.getId(), newPage.getId(), sep);
+				if(key.compare(Op.GREATER_THAN_OR_EQ, sep)) {
+					newPage.insertTuple(t);
+				}
+				else {
+					leafPage.insertTuple(t);
+				}
+				lsn = logInsert(tid, t, undoable, undone, dirtypages);
+				held.releaseAll();
+				postSplit(tid, dirtypages, held, new BTreeEntry(sep, leafPage.getId(), newPage.getId()));
+			}
+		} finally {
+			held.releaseAll();
+			endBlink(ticket);
+		}
+		if(undoable) {
+			Database.getBufferPool().addRowUndo(tid, () -> undoInsert(tid, t, lsn, false));
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * Points the root pointer page at the first leaf page if it doesn't point anywhere yet,
+	 * like {@link #insertTuple} does in LOCKING mode.
+	 */
+	private void setRootIfNone(TransactionId tid) throws DbException, IOException {
+		BufferPool bp = Database.getBufferPool();
+		createIfEmpty();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(((BTreeRootPtrPage) bp.getLatchedPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId() != null) {
+			return;
+		}
+		PageLatches.Held held = bp.getLatches().hold();
+		try {
+			held.latch(rootPtrId, true);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getLatchedPage(tid, rootPtrId, Permissions.READ_ONLY);
+			if(rootPtr.getRootId() == null) {
+				rootPtr = (BTreeRootPtrPage) bp.getLatchedPage(tid, rootPtrId, Permissions.READ_WRITE);
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+				bp.logRow(tid, LogFile.ROW_PAGES, null, -1, Collections.singletonList(rootPtr));
+			}
+		} finally {
+			held.releaseAll();
+		}
+	}
+
+	/**
+	 * Undoes the insert of t in a latch mode, logged at LSN lsn, and logs that. The tuple may
+	 * have moved since, but only to leaf pages this transaction has locked for writing, among
+	 * those that could hold its key.
+	 * 
+	 * @param recovering - whether recovery undoes it, when the transaction's locks are gone
+	 */
+	private void undoInsert(TransactionId tid, Tuple t, long lsn, boolean recovering)
+			throws DbException, IOException {
+		BufferPool bp = Database.getBufferPool();
+		Field key = t.getField(keyField);
+		PageLatches.Held held = bp.getLatches().hold();
+		long ticket = latchMode == LatchMode.BLINK ? beginBlink() : 0;
+		try {
+			BTreePageId pid = latchMode == LatchMode.BLINK ? blinkDescend(tid, held, key)
+					: descend(tid, held, key, false);
+			held.releaseAll();
+			// walk right without latch coupling; pages split since are not ours to look at
+			while(pid != null) {
+				held.latch(pid, true);
+				BTreeLeafPage page = (BTreeLeafPage) bp.getLatchedPage(tid, pid, Permissions.READ_ONLY);
+				boolean ours = recovering || bp.holdsLock(tid, pid, Permissions.READ_WRITE);
+				Iterator<Tuple> it = page.iterator();
+				while(it.hasNext()) {
+					Tuple other = it.next();
+					if(ours && sameFields(t, other)) {
+						bp.getLatchedPage(tid, pid, Permissions.READ_WRITE);
+						page.deleteTuple(other);
+						bp.logRow(tid, LogFile.ROW_UNDO, null, lsn, Collections.singletonList(page));
+						return;
+					}
+					if(other.getField(keyField).compare(Op.GREATER_THAN, key)) {
+						return;
+					}
+				}
+				pid = page.getRightSiblingId();
+				held.releaseAll();
+			}
+		} finally {
+			held.releaseAll();
+			if(ticket != 0) {
+				endBlink(ticket);
+			}
+		}
+	}
+
+	private boolean sameFields(Tuple t, Tuple other) {
+		for(int i = 0; i < td.numFields(); i++) {
+			if(!t.getField(i).equals(other.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Insert a batch of tuples into this BTreeFile. The tuples are sorted by
+	 * key first, so consecutive inserts go to the same leaf, which is
+	 * then already locked and in the buffer pool, and leaves fill up and
+	 * split from left to right.
+	 * 
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> sorted = new ArrayList<Tuple>();
+		while (tuples.hasNext()) {
+			sorted.add(tuples.next());
+		}
+		Collections.sort(sorted, new BTreeFileEncoder.TupleComparator(keyField));
+
+		LinkedHashMap<PageId, Page> dirtypages = new LinkedHashMap<PageId, Page>();
+		for (Tuple t : sorted) {
+			for (Page p : insertTuple(tid, t)) {
+				dirtypages.put(p.getId(), p);
+			}
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -576,11 +1527,21 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// move the tuples next to the page over from the sibling
+		Tuple[] moving = new Tuple[(sibling.getNumTuples() - page.getNumTuples()) / 2];
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the parent's key is the first key of the right-hand page
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -656,11 +1617,24 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		BTreeEntry[] moving = new BTreeEntry[(leftSibling.getNumEntries() - page.getNumEntries()) / 2];
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+
+		// rotate the keys through the parent, right to left
+		Field key = parentEntry.getKey();
+		BTreePageId child = page.iterator().next().getLeftChild();
+		for(BTreeEntry e : moving) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(key, e.getRightChild(), child));
+			key = e.getKey();
+			child = e.getRightChild();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1658,24 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		BTreeEntry[] moving = new BTreeEntry[(rightSibling.getNumEntries() - page.getNumEntries()) / 2];
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+
+		// rotate the keys through the parent, left to right
+		Field key = parentEntry.getKey();
+		BTreePageId child = page.reverseIterator().next().getRightChild();
+		for(BTreeEntry e : moving) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(key, child, e.getLeftChild()));
+			key = e.getKey();
+			child = e.getLeftChild();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -712,13 +1699,26 @@ public class BTreeFile implements DbFile {
 	protected void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightId);
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -744,14 +1744,23 @@ public class BTreeFile implements DbFile {
 	protected void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+
+		// pull the parent's key down between the two pages' children
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(),
+				leftPage.reverseIterator().next().getRightChild(), moving.get(0).getLeftChild()));
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -818,6 +1827,29 @@ public class BTreeFile implements DbFile {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
+		if(latching(tid)) {
+			// only lock and latch the leaf; pages are not merged in a latch mode
+			BufferPool bp = Database.getBufferPool();
+			bp.lockPage(tid, pageId, Permissions.READ_WRITE, true);
+			PageLatches.Held held = bp.getLatches().hold();
+			long lsn;
+			try {
+				held.latch(pageId, true);
+				BTreeLeafPage page = (BTreeLeafPage) bp.getLatchedPage(tid, pageId, Permissions.READ_WRITE);
+				Tuple deleted = new Tuple(td);
+				for(int i = 0; i < td.numFields(); i++) {
+					deleted.setField(i, t.getField(i));
+				}
+				deleted.setRecordId(t.getRecordId());
+				page.deleteTuple(t);
+				dirtypages.put(pageId, page);
+				lsn = bp.logRow(tid, LogFile.ROW_DELETE, deleted, -1, dirtypages.values());
+			} finally {
+				held.releaseAll();
+			}
+			bp.addRowUndo(tid, () -> undoDelete(tid, t, lsn));
+			return new ArrayList<Page>(dirtypages.values());
+		}
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
 		page.deleteTuple(t);
 
@@ -833,6 +1865,34 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Undoes the delete of t in a latch mode, logged at LSN lsn, by inserting it again,
+	 * wherever its key goes now.
+	 */
+	private void undoDelete(TransactionId tid, Tuple t, long lsn) throws DbException, IOException {
+		try {
+			insertLatched(tid, t, false, lsn);
+		} catch (TransactionAbortedException e) {
+			throw new DbException("could not restore a deleted tuple: " + e);
+		}
+	}
+
+	/**
+	 * Undoes the insert or delete of t, which tid made in a latch mode before a crash, as
+	 * recovery reads it from the log. Redo has left the pages as the log last had them, so
+	 * they hold the change.
+	 * 
+	 * @param lsn - the LSN of the ROW record of the change
+	 */
+	void undoRow(TransactionId tid, boolean insert, Tuple t, long lsn) throws DbException, IOException {
+		if(insert) {
+			undoInsert(tid, t, lsn, true);
+		}
+		else {
+			undoDelete(tid, t, lsn);
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -845,21 +1905,26 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is empty.
+	 */
+	private void createIfEmpty() throws IOException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			FileHandleManager handles = Database.getFileHandleManager();
+			if(handles.size(this, f) == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				handles.write(this, f, emptyRootPtrData, 0);
+				handles.write(this, f, emptyLeafData, emptyRootPtrData.length);
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -908,24 +1973,31 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+			emptyPageNo = appendPage();
 		}
 
 		return emptyPageNo; 
 	}
+
+	/**
+	 * Create a new page at the end of the file.
+	 * 
+	 * @return the page number of the new page
+	 */
+	private int appendPage() throws IOException {
+		synchronized(this) {
+			int emptyPageNo = numPages() + 1;
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			Database.getFileHandleManager().write(this, f, emptyData, pageOffset(emptyPageNo));
+			return emptyPageNo;
+		}
+	}
 	
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and 
-	 * returns a clean copy locked with read-write permission
+	 * and creates a new page if none are available.  It replaces the page in the cache with an empty
+	 * one locked with read-write permission, and leaves the page on disk alone until the transaction
+	 * commits, so an abort doesn't wipe out a page it had freed
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -940,21 +2012,31 @@ public class BTreeFile implements DbFile {
 	 */
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
-		// create the new page
-		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
-		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		PageLatches.Held held = latched.get();
+		BTreePageId newPageId;
+		if(held == null) {
+			// create the new page
+			newPageId = new BTreePageId(tableid, getEmptyPageNo(tid, dirtypages), pgcateg);
+		}
+		else {
+			synchronized(allocLock) {
+				newPageId = new BTreePageId(tableid, getEmptyPageNo(tid, dirtypages), pgcateg);
+			}
+			// new leaf pages are locked like the others, without waiting under latches; a reused
+			// page may still be locked by whoever freed it, so take one at the end of the file then
+			while(pgcateg == BTreePageId.LEAF
+					&& !Database.getBufferPool().lockPage(tid, newPageId, Permissions.READ_WRITE, false)) {
+				newPageId = new BTreePageId(tableid, appendPage(), pgcateg);
+			}
+			held.latch(newPageId, true);
+		}
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		// replace the page in the buffer pool and in the local cache with an empty one
+		Page page = pageOf(newPageId, BTreePage.createEmptyPageData());
+		Database.getBufferPool().newPage(tid, page, held != null);
+		dirtypages.put(newPageId, page);
 		
-		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+		return page;
 	}
 
 	/**
@@ -1078,6 +2160,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead = new ReadAhead();
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1096,10 +2179,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		readAhead.reset();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1122,6 +2203,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.followed(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1159,6 +2241,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead = new ReadAhead();
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1181,15 +2264,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		readAhead.reset();
+		readAhead.limit(f.keyField(), ipred);
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
 		it = curp.iterator();
 	}
@@ -1231,6 +2313,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.followed(curp);
 				it = curp.iterator();
 			}
 		}
@@ -761,8 +761,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the nearest used slot before the key's,
+					// which need not be the one right before it
+					int prev = entry - 1;
+					BTreePageId childId = p.getChildId(prev);
+					while(childId == null) {
+						childId = p.getChildId(--prev);
+					}
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -148,6 +148,7 @@ public class BTreeUtility {
 		// Convert the tuples list to a B+ tree file
 		File hFile = File.createTempFile("table", ".dat");
 		hFile.deleteOnExit();
+		FreeSpaceMap.deleteOnExit(hFile);
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
@@ -404,6 +405,7 @@ public class BTreeUtility {
 		// Convert the tuples list to a B+ tree file
 		File hFile = File.createTempFile("table", ".dat");
 		hFile.deleteOnExit();
+		FreeSpaceMap.deleteOnExit(hFile);
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
@@ -682,6 +684,8 @@ public class BTreeUtility {
 		}
 
 		public void run() {
+			// rerun() replaces tid, so abort the transaction this run started
+			TransactionId tid = this.tid;
 			try {
 				Tuple t = BTreeUtility.getBTreeTuple(tupdata);
 				Database.getBufferPool().insertTuple(tid, bf.getId(), t);
@@ -769,8 +773,11 @@ public class BTreeUtility {
 		}
 
 		public void run() {
+			// rerun() replaces tid and tuple, so clean up after this run's own
+			TransactionId tid = this.tid;
+			ArrayList<Integer> tuple = null;
 			try {
-				tuple = insertedTuples.take();
+				tuple = this.tuple = insertedTuples.take();
 				if(bf.getTupleDesc().numFields() != tuple.size()) {
 					throw new DbException("tuple desc mismatch");
 				}
@@ -1,8 +1,21 @@
 package simpledb;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,6 +25,31 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is split into hash partitions ("shards") keyed by PageId.
+ * Lookups, evictions and flushes only latch the shard of the page they
+ * work on, so they scale with the number of cores instead of serializing
+ * on the pool. Evictions are shard-local: a page only ever displaces a
+ * page of its own shard.
+ * <p>
+ * Sequential scans ask the pool to read the next pages ahead of them (see
+ * {@link ReadAhead}); those reads run on a small pool of background
+ * threads, and the pages they bring in are the first candidates for
+ * eviction until a scan actually uses them. Scans of big files read
+ * through a small {@link BufferRing} of frames so they don't flush the
+ * pages other queries keep using.
+ * <p>
+ * Hits, misses, evictions, page I/O times and the lock manager's waits are
+ * counted in the pool's {@link ContentionStats}.
+ * <p>
+ * Transactions that log (see {@link Transaction}) run STEAL/NO-FORCE: a
+ * dirty page of a running transaction may be written out to make room,
+ * after an UPDATE record with its before image, and a commit only logs
+ * the pages it dirtied instead of writing them. Pages are written under
+ * the WAL rule: the log is forced up to the page's LSN first. Transactions
+ * that only use the pool keep to NO-STEAL/FORCE. The pages commits leave
+ * dirty are written out in the background, oldest first, by the log's
+ * checkpointer (see {@link #writeOldestDirtyPages}).
  * 
  * @Threadsafe, all fields are final
  */
@@ -26,26 +64,429 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
-    private final ConcurrentHashMap<PageId, Page> pages;
+    /** Scans of files bigger than this share of the pool use a ring. */
+    private static final double RING_THRESHOLD = 0.75;
+
+    /** Pages in a scan's ring, unless the pool is small (see {@link #ringFor}). */
+    private static final int RING_PAGES = 32;
+
+    /** Dirty pages a full shard tries to write out to make room. */
+    private static final int STEAL_CANDIDATES = 4;
+
+    /** Pools smaller than this many pages per shard are not partitioned. */
+    private static final int MIN_PAGES_PER_SHARD = 64;
+
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_PREFETCH_WINDOW = 8;
+
+    private static volatile int prefetchWindow =
+    	Integer.getInteger("simpledb.PrefetchWindow", DEFAULT_PREFETCH_WINDOW);
+
+    /** Threads reading pages ahead; read-ahead requests that don't fit the queue are dropped. */
+    private static final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(
+    	2, 2, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1024), r -> {
+    		Thread t = new Thread(r, "simpledb-prefetch");
+    		t.setDaemon(true);
+    		return t;
+    	}, new ThreadPoolExecutor.DiscardPolicy());
+
+    static {
+    	prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * One hash partition of the page table. Each shard has its own latch
+     * (its monitor), its own replacement state and its own share of the
+     * pool's capacity, so threads working on pages of different shards
+     * never wait for each other.
+     * <p>
+     * A miss installs a loading future for the page before reading it, so
+     * concurrent requests for the same page wait for that single read and
+     * all get the frame it produces.
+     * <p>
+     * If every page that could make room is dirty, the first few of them in
+     * the policy's order are written out, outside the latch, and evicted
+     * once they are clean (STEAL); see {@link BufferPool#steal}. Pages read
+     * ahead never make room that way.
+     */
+    private static class Shard {
+    	private final HashMap<PageId, Page> pages;
+    	private final HashMap<PageId, CompletableFuture<Page>> loading;
+    	private final ReplacementPolicy policy;
+    	private final int capacity;
+    	private final ContentionStats stats;
+    	private final BufferPool pool;
+
+    	Shard(int capacity, ReplacementPolicy.Kind policyKind, BufferPool pool) {
+    		this.pages = new HashMap<PageId, Page>();
+    		this.loading = new HashMap<PageId, CompletableFuture<Page>>();
+    		this.policy = policyKind.create(capacity);
+    		this.capacity = capacity;
+    		this.stats = pool.stats;
+    		this.pool = pool;
+    	}
+
+    	/**
+    	 * Returns the resident page pid, reading it from its DbFile if it
+    	 * is not resident. Only one thread reads a given page at a time;
+    	 * the others wait for its result.
+    	 *
+    	 * @param ring if not null, a page that has to be read comes in
+    	 *   unreferenced and joins this ring
+    	 */
+    	Page fetch(PageId pid, BufferRing ring) throws DbException {
+    		while (true) {
+    			CompletableFuture<Page> future;
+    			boolean loader = false;
+    			synchronized (this) {
+    				Page page = pages.get(pid);
+    				if (page != null) {
+    					policy.recordAccess(pid);
+    					stats.hit();
+    					return page;
+    				}
+    				future = loading.get(pid);
+    				if (future == null) {
+    					future = new CompletableFuture<Page>();
+    					loading.put(pid, future);
+    					loader = true;
+    				}
+    			}
+    			if (!loader) {
+    				// look again once the read is done, so this counts as a reference
+    				join(future);
+    				continue;
+    			}
+    			stats.miss();
+    			Page page = load(pid, future, false, ring);
+    			if (page != null) {
+    				return page;
+    			}
+    			// the copy read was superseded; the pool's copy is the one to use
+    		}
+    	}
+
+    	/**
+    	 * Reads pid into this shard ahead of use, unless it is resident or
+    	 * being read already. The page comes in unreferenced, and it is
+    	 * dropped rather than installed if no clean page can make room.
+    	 *
+    	 * @param ring if not null, the page joins this ring if it is read
+    	 * @return the page, or null if it could not be read or the copy read
+    	 *   was superseded
+    	 */
+    	Page prefetch(PageId pid, BufferRing ring) {
+    		CompletableFuture<Page> future;
+    		boolean loader = false;
+    		synchronized (this) {
+    			Page page = pages.get(pid);
+    			if (page != null) {
+    				return page;
+    			}
+    			future = loading.get(pid);
+    			if (future == null) {
+    				future = new CompletableFuture<Page>();
+    				loading.put(pid, future);
+    				loader = true;
+    			}
+    		}
+    		try {
+    			return loader ? load(pid, future, true, ring) : join(future);
+    		} catch (DbException | RuntimeException e) {
+    			// it was only a guess; whoever really needs the page will see the error
+    			return null;
+    		}
+    	}
+
+    	/**
+    	 * Reads pid, for which the caller has installed the loading future
+    	 * future, and completes that future. Prefetched pages and pages read
+    	 * for a ring are installed unreferenced; prefetched pages are not
+    	 * installed at all if there is no clean page to make room.
+    	 *
+    	 * @return the page read, or null if it was discarded or another copy
+    	 *   was installed during the read; then the copy read is not the
+    	 *   page, and the future completes with null too, so nobody uses it
+    	 */
+    	private Page load(PageId pid, CompletableFuture<Page> future, boolean prefetched,
+    			BufferRing ring) throws DbException {
+    		try {
+    			// read outside the latch so other pages of this shard stay available
+    			long start = System.nanoTime();
+    			Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    			stats.pageRead(System.nanoTime() - start);
+    			List<Page> dirty = prefetched ? null : new ArrayList<Page>();
+    			while (true) {
+    				synchronized (this) {
+    					// the page may have been discarded or installed while we were reading it
+    					if (loading.get(pid) != future) {
+    						page = null;
+    						break;
+    					}
+    					if (admit(pid, dirty)) {
+    						loading.remove(pid);
+    						pages.put(pid, page);
+    						if (!prefetched && ring == null) {
+    							policy.recordInsert(pid);
+    						} else {
+    							policy.recordPrefetch(pid);
+    							if (ring != null) {
+    								ring.add(pid);
+    							}
+    						}
+    						break;
+    					}
+    					if (prefetched) {
+    						loading.remove(pid);
+    						break;
+    					}
+    				}
+    				pool.steal(dirty);
+    			}
+    			future.complete(page);
+    			return page;
+    		} catch (DbException | RuntimeException e) {
+    			synchronized (this) {
+    				loading.remove(pid, future);
+    			}
+    			future.completeExceptionally(e);
+    			throw e;
+    		}
+    	}
+
+    	private static Page join(CompletableFuture<Page> future) throws DbException {
+    		try {
+    			// join() rather than get(): waiting for a read is not interruptible
+    			return future.join();
+    		} catch (CompletionException e) {
+    			if (e.getCause() instanceof DbException) {
+    				throw (DbException) e.getCause();
+    			}
+    			if (e.getCause() instanceof RuntimeException) {
+    				throw (RuntimeException) e.getCause();
+    			}
+    			throw e;
+    		}
+    	}
+
+    	/**
+    	 * Makes page the resident copy of its page, e.g. after a clean copy
+    	 * was evicted while the caller was still changing the page.
+    	 */
+    	void install(Page page) throws DbException {
+    		PageId pid = page.getId();
+    		List<Page> dirty = new ArrayList<Page>();
+    		while (true) {
+    			synchronized (this) {
+    				Page resident = pages.get(pid);
+    				if (resident != null) {
+    					if (resident != page) {
+    						pages.put(pid, page);
+    					}
+    					return;
+    				}
+    				if (admit(pid, dirty)) {
+    					pages.put(pid, page);
+    					policy.recordInsert(pid);
+    					// a read of the page under way, e.g. a prefetch, must not replace it
+    					loading.remove(pid);
+    					return;
+    				}
+    			}
+    			pool.steal(dirty);
+    		}
+    	}
+
+    	synchronized Page remove(PageId pid) {
+    		loading.remove(pid);
+    		policy.recordRemove(pid);
+    		return pages.remove(pid);
+    	}
+
+    	/** Drops pid if it is resident and clean. */
+    	synchronized void recycle(PageId pid) {
+    		Page page = pages.get(pid);
+    		if (page != null && page.isDirty() == null) {
+    			remove(pid);
+    			stats.evicted();
+    		}
+    	}
+
+    	/** @return pid if it is resident, without counting an access */
+    	synchronized Page resident(PageId pid) {
+    		return pages.get(pid);
+    	}
+
+    	synchronized List<Page> snapshot() {
+    		return new ArrayList<Page>(pages.values());
+    	}
+
+    	/**
+    	 * Makes room for pid, evicting a clean page if the shard is full.
+    	 *
+    	 * @param dirty if not null, it is left holding the first
+    	 *   STEAL_CANDIDATES dirty pages the policy would have evicted
+    	 * @return false if the shard is full of dirty pages
+    	 */
+    	private boolean admit(PageId pid, List<Page> dirty) {
+    		if (pages.containsKey(pid) || pages.size() < capacity) {
+    			return true;
+    		}
+    		if (dirty != null) {
+    			dirty.clear();
+    		}
+    		PageId victim = policy.evict(p -> {
+    			Page page = pages.get(p);
+    			if (page == null || page.isDirty() == null) {
+    				return true;
+    			}
+    			// a clock may look at a page twice
+    			if (dirty != null && dirty.size() < STEAL_CANDIDATES && !dirty.contains(page)) {
+    				dirty.add(page);
+    			}
+    			return false;
+    		});
+    		if (victim == null) {
+    			return false;
+    		}
+    		pages.remove(victim);
+    		stats.evicted();
+    		return true;
+    	}
+    }
+
+    private final Shard[] shards;
+
     private final int numPages;
     
     private final LockManager lockManager;
 
+    private final ContentionStats stats;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * The pages each running transaction has asked for with READ_WRITE
+     * permissions, which are the only ones it can have dirtied; commit and
+     * abort look at these instead of the whole pool.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writeSets;
+
+    /**
+     * Undoes one change a transaction made under a row lock, when the
+     * transaction aborts.
+     */
+    interface RowUndo {
+    	void undo() throws DbException, IOException;
+    }
+
+    /**
+     * The transactions whose pages {@link #logPages} has logged for their
+     * commit, so they commit without writing them out
+     */
+    private final Set<TransactionId> logged;
+
+    /**
+     * The dirty page table: for each page whose latest changes are in the
+     * log but not on disk, the LSN of the first record with them since the
+     * page was last written. Checkpoints record it, so recovery knows where
+     * redo has to start.
+     */
+    private final ConcurrentHashMap<PageId, Long> recLSNs;
+
+    /** The pages each running transaction has changed rows of */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> rowSets;
+    /** The row changes of each running transaction, in order */
+    private final ConcurrentHashMap<TransactionId, List<RowUndo>> rowUndo;
+
+    private final VersionStore versions;
+    private final PageLatches latches = new PageLatches();
+    /** The timestamp of each running snapshot transaction */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots;
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * replacement policy selected by the simpledb.ReplacementPolicy
+     * system property.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
         // some code goes here
-    	this.pages = new ConcurrentHashMap<PageId, Page>();
+    	this(numPages, defaultShards(numPages), ReplacementPolicy.Kind.fromProperty());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of partitions of the page table; each
+     *   partition holds about numPages / numShards pages.
+     * @param policyKind the policy used to choose pages to evict.
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Kind policyKind) {
+    	if (numShards < 1 || numShards > numPages) {
+    		throw new IllegalArgumentException("need between 1 and numPages shards");
+    	}
     	this.numPages = numPages;
-    	this.lockManager = new LockManager();
+    	this.stats = new ContentionStats(this);
+    	this.shards = new Shard[numShards];
+    	for (int i = 0; i < numShards; ++i) {
+    		// spread the remainder over the first shards
+    		int capacity = numPages / numShards + (i < numPages % numShards ? 1 : 0);
+    		shards[i] = new Shard(capacity, policyKind, this);
+    	}
+    	this.lockManager = new LockManager(stats);
+    	this.writeSets = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    	this.logged = ConcurrentHashMap.newKeySet();
+    	this.recLSNs = new ConcurrentHashMap<PageId, Long>();
+    	this.rowSets = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    	this.rowUndo = new ConcurrentHashMap<TransactionId, List<RowUndo>>();
+    	this.versions = new VersionStore();
+    	this.snapshots = new ConcurrentHashMap<TransactionId, Long>();
+    }
+
+    /**
+     * @return one shard per available core, but never fewer than
+     *   MIN_PAGES_PER_SHARD pages per shard.
+     */
+    private static int defaultShards(int numPages) {
+    	int cores = Runtime.getRuntime().availableProcessors();
+    	return Math.max(1, Math.min(cores, numPages / MIN_PAGES_PER_SHARD));
+    }
+
+    private Shard shardOf(PageId pid) {
+    	// PageId hash codes are tableid*31+pgno, so spread the high bits too
+    	int h = pid.hashCode();
+    	h ^= (h >>> 16);
+    	return shards[(h & 0x7fffffff) % shards.length];
     }
     
     public static int getPageSize() {
         return pageSize;
     }
+
+    /** @return the number of pages this pool holds */
+    public int getNumPages() {
+    	return numPages;
+    }
+
+    /** @return the stats of this pool and its lock manager */
+    public ContentionStats getStats() {
+    	return stats;
+    }
+
+    /** @return the number of resident pages and of dirty ones among them */
+    int[] countPages() {
+    	int resident = 0, dirty = 0;
+    	for (Shard shard : shards) {
+    		for (Page page : shard.snapshot()) {
+    			++resident;
+    			if (page.isDirty() != null) {
+    				++dirty;
+    			}
+    		}
+    	}
+    	return new int[] { resident, dirty };
+    }
     
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
@@ -57,11 +498,80 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
     
-    private void putPage(PageId pid, Page page) throws DbException {
-    	if (!pages.contains(pid) && pages.size() >= numPages) {
-    		evictPage();
+    /**
+     * @return the number of pages a sequential scan reads ahead, as set by
+     *   the simpledb.PrefetchWindow system property or
+     *   {@link #setPrefetchWindow}. 0 means no read-ahead.
+     */
+    public static int getPrefetchWindow() {
+    	return prefetchWindow;
+    }
+
+    public static void setPrefetchWindow(int pages) {
+    	if (pages < 0) {
+    		throw new IllegalArgumentException("negative read-ahead window");
     	}
-    	pages.put(pid, page);
+    	BufferPool.prefetchWindow = pages;
+    }
+
+    /**
+     * @return the read-ahead window for this pool. It is capped at a quarter
+     *   of the pool so read-ahead never displaces more than that.
+     */
+    public int prefetchWindow() {
+    	return Math.min(prefetchWindow, numPages / 4);
+    }
+
+    /**
+     * Asks for pid to be read into the pool in the background, without
+     * locking it. Nothing happens if it is already resident, and the
+     * request may be dropped if the pool is busy or full of dirty pages.
+     */
+    public void prefetchPage(PageId pid) {
+    	prefetchPage(pid, null);
+    }
+
+    /**
+     * Like {@link #prefetchPage(PageId)}, but the page joins ring if it is
+     * read, so a scan with a ring doesn't fill the pool through read-ahead.
+     */
+    public void prefetchPage(PageId pid, BufferRing ring) {
+    	prefetcher.execute(() -> {
+    		shardOf(pid).prefetch(pid, ring);
+    		recycle(ring);
+    	});
+    }
+
+    /**
+     * Asks for the B+ tree leaf first and up to count - 1 of its right
+     * siblings to be read into the pool in the background, like
+     * {@link #prefetchPage}. The siblings are only known once the previous
+     * leaf is in memory, so the chain is followed by a single task.
+     */
+    public void prefetchLeaves(BTreePageId first, int count) {
+    	prefetchLeaves(first, count, null);
+    }
+
+    /**
+     * Like {@link #prefetchLeaves(BTreePageId, int)}, but stops after the
+     * first leaf for which last is true, e.g. the leaf a range scan ends in.
+     *
+     * @param last tells the last leaf to read, or null to read count leaves
+     */
+    public void prefetchLeaves(BTreePageId first, int count,
+    		java.util.function.Predicate<BTreeLeafPage> last) {
+    	prefetcher.execute(() -> {
+    		BTreePageId pid = first;
+    		for (int i = 0; i < count && pid != null; ++i) {
+    			Page page = shardOf(pid).prefetch(pid, null);
+    			if (!(page instanceof BTreeLeafPage)
+    					|| (last != null && last.test((BTreeLeafPage) page))) {
+    				break;
+    			}
+    			// read without a lock: at worst we read ahead the wrong page
+    			pid = ((BTreeLeafPage) page).getRightSiblingId();
+    		}
+    	});
     }
 
     /**
@@ -74,6 +584,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page is locked under an intention lock on its table; if tid holds
+     * a table lock that covers the page already, the page isn't locked on
+     * its own. See {@link LockManager}.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -82,15 +596,311 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	Page page = pages.get(pid);
-    	if (page == null) {
-    		page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-    		putPage(pid, page);
+    	Long ts = snapshots.get(tid);
+    	if (ts != null) {
+    		return readSnapshot(pid, perm, null, ts);
     	}
+    	// lock first: a page fetched before waiting for the lock could be
+    	// discarded by the holder's abort and no longer be the pool's copy
     	lockManager.acquire(tid, pid, perm);
+    	noteWrite(tid, pid, perm);
+    	return shardOf(pid).fetch(pid, null);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, but if the
+     * page has to be read from disk it comes in as one of the frames of
+     * ring, and the oldest page of the ring is given up again. Pages that
+     * are resident already are used as they are and stay where they are.
+     *
+     * @param ring the scan's ring, or null to use the pool as usual
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+    	Long ts = snapshots.get(tid);
+    	if (ts != null) {
+    		return readSnapshot(pid, perm, ring, ts);
+    	}
+    	lockManager.acquire(tid, pid, perm);
+    	noteWrite(tid, pid, perm);
+    	Page page = shardOf(pid).fetch(pid, ring);
+    	recycle(ring);
     	return page;
     }
 
+    /**
+     * Retrieves the specified page for reading or changing individual rows
+     * of it under row locks, as with {@link #lockRow}. Rather than the page
+     * itself, tid locks the page (and its table) in the intention mode
+     * matching perm, so other transactions can work on other rows of the
+     * page at the same time. Rows may only be changed under the page's
+     * monitor, which serves as its latch, and each change must be
+     * registered with {@link #addRowUndo}.
+     * <p>
+     * Pages changed this way may hold the uncommitted changes of several
+     * transactions at once. Whoever commits writes or logs them, changes of
+     * others included, and an abort undoes its own changes row by row
+     * instead of restoring the page. So each change must also be logged,
+     * with {@link #logRowChange}, before the page can be written: after a
+     * crash, recovery undoes the rows of transactions that never committed
+     * from those records.
+     *
+     * @see HeapFile#setRowLocking
+     */
+    public Page getRowPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	if (snapshots.containsKey(tid)) {
+    		return getPage(tid, pid, perm);
+    	}
+    	lockManager.acquireIntention(tid, pid, perm);
+    	if (perm == Permissions.READ_WRITE) {
+    		rowSets.computeIfAbsent(tid, key -> ConcurrentHashMap.newKeySet()).add(pid);
+    	}
+    	return shardOf(pid).fetch(pid, null);
+    }
+
+    /**
+     * Locks row rid for tid in mode perm. tid must have retrieved the row's
+     * page with {@link #getRowPage} first.
+     *
+     * @param wait whether to wait if the lock can't be granted right away;
+     *   this must be false while holding a page latch
+     * @return whether tid holds the lock now; only false if wait is false
+     */
+    public boolean lockRow(TransactionId tid, RecordId rid, Permissions perm, boolean wait)
+        throws TransactionAbortedException {
+    	return lockManager.acquireRow(tid, rid, perm, wait);
+    }
+
+    /** Registers undo to be run if tid aborts, before earlier ones. */
+    void addRowUndo(TransactionId tid, RowUndo undo) {
+    	rowUndo.computeIfAbsent(tid, key -> Collections.synchronizedList(new ArrayList<RowUndo>()))
+    		.add(undo);
+    }
+
+    /**
+     * Logs the insert or delete of row t, which tid has just made on page
+     * under its latch, with a ROW record of the row; the page's image is
+     * logged when it is written or tid commits. The record's LSN becomes
+     * the page's, so the record reaches disk before the page does.
+     *
+     * @param change {@link LogFile#ROW_INSERT} or {@link LogFile#ROW_DELETE}
+     * @return the LSN of the record, for the undo of the change, or -1 if
+     *   tid has no log to undo from
+     */
+    long logRowChange(TransactionId tid, byte change, Tuple t, Page page) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	if (!log.isActive(tid)) {
+    		return -1;
+    	}
+    	long lsn = log.logRow(tid, change, t, -1, Collections.<Page>emptyList());
+    	page.setLSN(lsn);
+    	return lsn;
+    }
+
+    /**
+     * Logs pages, which tid has changed rows of under their latches, with
+     * a ROW record of their after images: with the change of row t, or the
+     * undo of the change logged at LSN undone. The record's LSN becomes the
+     * pages'.
+     *
+     * @return the LSN of the record, or -1 if tid has no log
+     * @see LogFile#logRow
+     */
+    long logRow(TransactionId tid, byte change, Tuple t, long undone,
+    		Collection<? extends Page> pages) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	if (!log.isActive(tid)) {
+    		return -1;
+    	}
+    	long lsn = log.logRow(tid, change, t, undone, pages);
+    	for (Page page : pages) {
+    		page.setLSN(lsn);
+    		recLSNs.putIfAbsent(page.getId(), lsn);
+    	}
+    	return lsn;
+    }
+
+    /**
+     * Locks page pid for tid in mode perm, like {@link #getPage}, but the
+     * page's changes are undone like those of {@link #getRowPage}: by the
+     * undos registered with {@link #addRowUndo} rather than by discarding
+     * the page. For pages that others may change parts of, under a latch of
+     * their own, while tid holds the lock; see {@link BTreeFile#setLatchMode}.
+     *
+     * @param wait whether to wait if the lock can't be granted right away;
+     *   this must be false while holding a latch
+     * @return whether tid holds the lock now; only false if wait is false
+     */
+    boolean lockPage(TransactionId tid, PageId pid, Permissions perm, boolean wait)
+        throws TransactionAbortedException {
+    	if (!lockManager.acquire(tid, pid, perm, wait)) {
+    		return false;
+    	}
+    	if (perm == Permissions.READ_WRITE) {
+    		rowSets.computeIfAbsent(tid, key -> ConcurrentHashMap.newKeySet()).add(pid);
+    	}
+    	return true;
+    }
+
+    /**
+     * Returns page pid to tid without locking it; the caller protects the
+     * page with a latch from {@link #getLatches} instead. Pages retrieved
+     * for writing are written out when tid commits and kept when it aborts,
+     * as with {@link #lockPage}. They come back dirtied by tid already, so
+     * they can't be evicted while the caller changes them.
+     */
+    Page getLatchedPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+    	Shard shard = shardOf(pid);
+    	Page page = shard.fetch(pid, null);
+    	if (perm == Permissions.READ_WRITE) {
+    		rowSets.computeIfAbsent(tid, key -> ConcurrentHashMap.newKeySet()).add(pid);
+    		page.markDirty(true, tid);
+    		// it may have gone before it was dirty
+    		shard.install(page);
+    	}
+    	return page;
+    }
+
+    /**
+     * Makes page, which tid has just allocated in its file, the resident
+     * copy of its page, dirtied by tid, without reading what the file
+     * holds there. That stays on disk until tid commits, so if tid aborts
+     * the file is left as it was. The page is locked for writing as by
+     * {@link #getPage}, unless latched is true, in which case it is
+     * treated like a page from {@link #getLatchedPage}.
+     */
+    void newPage(TransactionId tid, Page page, boolean latched)
+        throws TransactionAbortedException, DbException {
+    	PageId pid = page.getId();
+    	if (latched) {
+    		rowSets.computeIfAbsent(tid, key -> ConcurrentHashMap.newKeySet()).add(pid);
+    	} else {
+    		lockManager.acquire(tid, pid, Permissions.READ_WRITE);
+    		noteWrite(tid, pid, Permissions.READ_WRITE);
+    	}
+    	page.markDirty(true, tid);
+    	shardOf(pid).install(page);
+    }
+
+    /** @return the latches B+ trees protect pages from {@link #getLatchedPage} with */
+    PageLatches getLatches() {
+    	return latches;
+    }
+
+    /**
+     * Returns page pid for rolling back the row changes of a transaction,
+     * which holds the locks it needs already.
+     */
+    Page getLockedPage(PageId pid) throws DbException {
+    	return shardOf(pid).fetch(pid, null);
+    }
+
+    /**
+     * Makes tid a read-only snapshot transaction: from now on it reads the
+     * database as of the latest commit, without taking locks, until it
+     * completes. Its pages come from the {@link VersionStore} and are
+     * copies that must not be changed.
+     */
+    public void beginSnapshot(TransactionId tid) {
+    	snapshots.put(tid, versions.begin());
+    }
+
+    /** @return whether tid is a running snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+    	return snapshots.containsKey(tid);
+    }
+
+    /** @return the store of page versions kept for snapshots */
+    public VersionStore getVersionStore() {
+    	return versions;
+    }
+
+    private Page readSnapshot(PageId pid, Permissions perm, BufferRing ring, long ts)
+        throws DbException {
+    	if (perm != Permissions.READ_ONLY) {
+    		throw new DbException("snapshot transactions are read-only");
+    	}
+    	// the cached copy only serves to find the committed version
+    	return versions.read(shardOf(pid).fetch(pid, ring), ts);
+    }
+
+    private void noteWrite(TransactionId tid, PageId pid, Permissions perm) {
+    	if (perm == Permissions.READ_WRITE) {
+    		writeSets.computeIfAbsent(tid, key -> ConcurrentHashMap.newKeySet()).add(pid);
+    	}
+    }
+
+    /** @return whether tid has asked for pages to change and not completed */
+    private boolean isRunning(TransactionId tid) {
+    	return writeSets.containsKey(tid) || rowSets.containsKey(tid);
+    }
+
+    /**
+     * @return the resident pages that tid has dirtied, including pages it
+     *   has changed rows of that are dirty, in file order, so a transaction
+     *   that wrote many pages writes them sequentially
+     */
+    private List<Page> dirtiedBy(TransactionId tid) {
+    	ArrayList<Page> dirty = new ArrayList<Page>();
+    	Set<PageId> rowPids = rowSets.getOrDefault(tid, Collections.<PageId>emptySet());
+    	for (PageId pid : writeSets.getOrDefault(tid, Collections.<PageId>emptySet())) {
+    		Page page = shardOf(pid).resident(pid);
+    		if (page != null && tid.equals(page.isDirty()) && !rowPids.contains(pid)) {
+    			dirty.add(page);
+    		}
+    	}
+    	for (PageId pid : rowPids) {
+    		// others may have dirtied it last
+    		Page page = shardOf(pid).resident(pid);
+    		if (page != null && page.isDirty() != null) {
+    			dirty.add(page);
+    		}
+    	}
+    	dirty.sort((a, b) -> {
+    		int cmp = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+    		return cmp != 0 ? cmp
+    			: Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+    	});
+    	return dirty;
+    }
+
+    /**
+     * Returns a ring for a sequential scan by tid of a file of filePages
+     * pages, in the manner of PostgreSQL's BAS_BULKREAD strategy: a scan of
+     * a file bigger than three quarters of the pool recycles a few frames of
+     * its own instead of pushing the rest of the pool out. Smaller files
+     * are cached as usual, so repeated scans of them don't go to disk.
+     *
+     * @return the ring, or null if the file is small enough to be cached
+     */
+    public BufferRing ringFor(TransactionId tid, int filePages) {
+    	if (filePages <= numPages * RING_THRESHOLD) {
+    		return null;
+    	}
+    	// read-ahead pages join the ring, so leave room for a window of them
+    	int size = Math.max(2 * prefetchWindow(), Math.min(RING_PAGES, numPages / 8));
+    	return new BufferRing(tid, Math.max(1, size));
+    }
+
+    /**
+     * Gives up the pages that have fallen out of ring. A page is only
+     * dropped if it is clean and the ring's transaction still holds its
+     * lock, so nobody else can be about to change it; otherwise it is left
+     * to the replacement policy.
+     */
+    private void recycle(BufferRing ring) {
+    	if (ring == null) {
+    		return;
+    	}
+    	PageId pid;
+    	while ((pid = ring.overflow()) != null) {
+    		if (holdsLock(ring.getTransactionId(), pid)) {
+    			shardOf(pid).recycle(pid);
+    		}
+    	}
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -124,6 +934,11 @@ public class BufferPool {
         return lockManager.hold(tid, p);
     }
 
+    /** @return whether tid has a lock on page p that covers mode perm */
+    boolean holdsLock(TransactionId tid, PageId p, Permissions perm) {
+    	return lockManager.hold(tid, p, perm);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -135,16 +950,146 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	if (commit) {
-    		flushPages(tid);
-    	} else {
-    		for(Page page : pages.values()){
-                if(tid.equals(page.isDirty())){
-    		    	discardPage(page.getId());
-                }
-            }
+    	Long ts = snapshots.remove(tid);
+    	if (ts != null) {
+    		versions.end(ts);
+    		return;
+    	}
+    	try {
+    		if (commit) {
+    			if (logged.contains(tid)) {
+    				// NO-FORCE: the log has the pages, which stay dirty until written out
+    				for (Page page : dirtiedBy(tid)) {
+    					TransactionId dirtier = page.isDirty();
+    					if (dirtier != null) {
+    						versions.written(dirtier, page);
+    					}
+    				}
+    			} else {
+    				// FORCE, and recovery must not redo older images over the pages
+    				flushPages(tid);
+    				Database.getLogFile().force();
+    			}
+    			versions.commit(tid, pid -> shardOf(pid).resident(pid));
+    		} else {
+    			undoRows(tid);
+    			Set<PageId> rowPids = rowSets.getOrDefault(tid, Collections.<PageId>emptySet());
+    			for (PageId pid : writeSets.getOrDefault(tid, Collections.<PageId>emptySet())) {
+    				Page page = shardOf(pid).resident(pid);
+    				if (page == null || rowPids.contains(pid)
+    						|| !lockManager.hold(tid, pid, Permissions.READ_WRITE)) {
+    					continue;
+    				}
+    				TransactionId dirtier = page.isDirty();
+    				if (dirtier == null || (tid.equals(dirtier) && page.getLSN() < 0)) {
+    					// the file holds the page as it was; an operation cut short
+    					// may have changed it before marking it dirty
+    					discardPage(pid);
+    				} else if (tid.equals(dirtier)) {
+    					// back to the last committed version, which may not be on disk
+    					// (NO-FORCE) while the file holds our changes (STEAL)
+    					restore(tid, page.getBeforeImage(), page.getLSN());
+    				}
+    			}
+    			// pages we changed rows of keep the changes of others, and stay dirty
+    			versions.abort(tid);
+    			for (PageId pid : writeSets.getOrDefault(tid, Collections.<PageId>emptySet())) {
+    				forgetFreeSpace(pid);
+    			}
+    			for (PageId pid : rowPids) {
+    				forgetFreeSpace(pid);
+    			}
+    		}
+    	} finally {
+    		logged.remove(tid);
+    		writeSets.remove(tid);
+    		rowSets.remove(tid);
+    		rowUndo.remove(tid);
+    		lockManager.releaseAll(tid);
+    	}
+    }
+
+    /**
+     * Makes image the resident copy of its page, dirtied by tid, to be
+     * written out in place of what tid changed.
+     *
+     * @param lsn the LSN of the last log record with the page
+     */
+    private void restore(TransactionId tid, Page image, long lsn) throws IOException {
+    	image.setLSN(lsn);
+    	image.markDirty(true, tid);
+    	try {
+    		shardOf(image.getId()).install(image);
+    	} catch (DbException e) {
+    		throw new IOException("could not restore page " + image.getId(), e);
+    	}
+    }
+
+    /**
+     * Makes before, the page as it was before aborting transaction tid
+     * first changed it, the resident copy of its page again, after logging
+     * that as a compensation record: an UPDATE record of tid with before
+     * as both images. For {@link LogFile#rollback}. Pages tid changed
+     * rows of are left to its row undos.
+     */
+    void rollbackPage(TransactionId tid, Page before) throws IOException {
+    	PageId pid = before.getId();
+    	if (rowSets.getOrDefault(tid, Collections.<PageId>emptySet()).contains(pid)) {
+    		return;
+    	}
+    	// the monitor keeps a write of the copy replaced from taking the
+    	// record off the dirty page table
+    	Page resident = shardOf(pid).resident(pid);
+    	synchronized (resident != null ? resident : before) {
+    		long lsn = Database.getLogFile().logWrite(tid, before, before);
+    		recLSNs.putIfAbsent(pid, lsn);
+    		restore(tid, before, lsn);
+    	}
+    }
+
+    /**
+     * @return a copy of the dirty page table: the pages whose latest
+     *   changes are in the log but not on disk, each with the LSN of the
+     *   first log record redo needs
+     */
+    Map<PageId, Long> dirtyPageTable() {
+    	return new HashMap<PageId, Long>(recLSNs);
+    }
+
+    /**
+     * Undoes the row changes of tid, latest first, once. An abort does this
+     * before its ABORT record, see {@link LogFile#logAbort}.
+     */
+    void undoRows(TransactionId tid) throws IOException {
+    	List<RowUndo> undos = rowUndo.remove(tid);
+    	if (undos == null) {
+    		return;
+    	}
+    	synchronized (undos) {
+    		for (int i = undos.size() - 1; i >= 0; --i) {
+    			try {
+    				undos.get(i).undo();
+    			} catch (DbException e) {
+    				throw new IOException("could not roll back row change", e);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Undoes the insert or delete of row t, which tid made under a row
+     * lock or a B+ tree latch before a crash, for {@link LogFile#recover}.
+     *
+     * @param lsn the LSN of the ROW record of the change
+     */
+    void undoRow(TransactionId tid, boolean insert, Tuple t, long lsn)
+        throws DbException, IOException {
+    	DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+    	if (file instanceof HeapFile) {
+    		((HeapFile) file).undoRow(tid, insert, t, lsn);
+    	} else if (file instanceof BTreeFile) {
+    		((BTreeFile) file).undoRow(tid, insert, t, lsn);
     	}
-    	lockManager.releaseAll(tid);
     }
 
     /**
@@ -165,7 +1110,22 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
+        markDirty(Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t), tid);
+    }
+
+    /**
+     * Add all the tuples of tuples to the specified table on behalf of
+     * transaction tid, like {@link #insertTuple} but in one call to the
+     * table's {@link DbFile#insertTuples}, so the file can fill pages and
+     * allocate new ones in bulk.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        markDirty(Database.getCatalog().getDatabaseFile(tableId).insertTuples(tid, tuples), tid);
     }
 
     /**
@@ -184,8 +1144,34 @@ public class BufferPool {
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-    	Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId())
-        	.deleteTuple(tid, t);
+    	markDirty(Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId())
+        	.deleteTuple(tid, t), tid);
+    }
+
+    /**
+     * Has every B+ tree in the catalog add, on behalf of tid, the parent
+     * entries that splits cut short by a crash didn't add.
+     *
+     * @see BTreeFile#completeSplits
+     */
+    public void completeSplits(TransactionId tid)
+        throws DbException, IOException, TransactionAbortedException {
+    	Catalog catalog = Database.getCatalog();
+    	Iterator<Integer> it = catalog.tableIdIterator();
+    	while (it.hasNext()) {
+    		DbFile file = catalog.getDatabaseFile(it.next());
+    		if (file instanceof BTreeFile) {
+    			markDirty(((BTreeFile) file).completeSplits(tid), tid);
+    		}
+    	}
+    }
+
+    private void markDirty(List<Page> pages, TransactionId tid) throws DbException {
+    	for (Page page : pages) {
+    		page.markDirty(true, tid);
+    		// a page is clean until here, so it may have been evicted meanwhile
+    		shardOf(page.getId()).install(page);
+    	}
     }
 
     /**
@@ -193,16 +1179,50 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-    	for (Page page : pages.values()) {
-    		if (page.isDirty() != null) {
-    			flushPage(page.getId());
+    	for (Shard shard : shards) {
+    		for (Page page : shard.snapshot()) {
+    			if (page.isDirty() != null) {
+    				flushPage(page);
+    			}
     		}
     	}
     }
 
+    /**
+     * Writes out up to max of the pages that have been in the dirty page
+     * table longest, skipping pages of running transactions and pages that
+     * can't be written without waiting. Writing them in the background
+     * leaves clean pages for eviction and lets the log be truncated past
+     * their records.
+     *
+     * @return the number of pages written
+     */
+    public int writeOldestDirtyPages(int max) throws IOException {
+    	List<Map.Entry<PageId, Long>> oldest = new ArrayList<Map.Entry<PageId, Long>>(recLSNs.entrySet());
+    	oldest.sort(Map.Entry.comparingByValue());
+    	int written = 0;
+    	for (Map.Entry<PageId, Long> e : oldest) {
+    		if (written == max) {
+    			break;
+    		}
+    		Page page = shardOf(e.getKey()).resident(e.getKey());
+    		if (page == null) {
+    			continue;
+    		}
+    		TransactionId dirtier = page.isDirty();
+    		if (dirtier != null && isRunning(dirtier)) {
+    			continue;
+    		}
+    		if (writePage(page, true)) {
+    			written++;
+    		}
+    	}
+    	return written;
+    }
+
     /** Remove the specific page id from the buffer pool.
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
@@ -211,57 +1231,171 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	pages.remove(pid);
+    	shardOf(pid).remove(pid);
+    	recLSNs.remove(pid);
+    	forgetFreeSpace(pid);
+    }
+
+    /**
+     * Forgets what the free space map of pid's heap file says about the
+     * page, which may describe a copy that no longer counts.
+     */
+    private void forgetFreeSpace(PageId pid) {
+    	if (!(pid instanceof HeapPageId)) {
+    		return;
+    	}
+    	try {
+    		DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    		if (file instanceof HeapFile) {
+    			((HeapFile) file).getFreeSpaceMap().forget(pid.getPageNumber());
+    		}
+    	} catch (NoSuchElementException e) {
+    		// a table that is gone has no map to correct
+    	}
     }
 
     /**
      * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * @param page the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	Database.getCatalog().getDatabaseFile(pid.getTableId())
-    		.writePage(pages.get(pid));
-    	pages.get(pid).markDirty(false, null);
+    	writePage(page, false);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Writes page out under the WAL rule. If its dirtier is still running
+     * and has begun in the log, the page is logged first, so the change can
+     * be undone from the log; then the log is forced up to the page's LSN.
+     * If it is running without a log, the page on disk is then newer than
+     * what the log has of it, which a WRITTEN record after the write tells
+     * recovery; it is forced when the transaction commits.
+     *
+     * @param evicting whether the page is written to make room: then it is
+     *   left alone if it is clean already, if a B+ tree operation has it
+     *   latched, or if its dirtier is running without a log to undo from
+     * @return whether the page was written
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
-    	for (Page page : pages.values()) {
-    		if (tid.equals(page.isDirty())) {
-    			flushPage(page.getId());
+    private boolean writePage(Page page, boolean evicting) throws IOException {
+    	// the latch keeps row changes of others from slipping in between
+    	PageLatches.Held held = latches.hold();
+    	if (page instanceof BTreePage || page instanceof BTreeRootPtrPage) {
+    		// B+ tree pages are latched by the tree rather than by their monitor
+    		if (!evicting) {
+    			held.latch(page.getId(), false);
+    		} else if (!held.tryLatch(page.getId(), false)) {
+    			return false;
+    		}
+    	}
+    	try {
+    		synchronized (page) {
+    			TransactionId dirtier = page.isDirty();
+    			if (evicting && dirtier == null) {
+    				return false;
+    			}
+    			LogFile log = Database.getLogFile();
+    			boolean unlogged = false;
+    			if (dirtier != null && isRunning(dirtier)) {
+    				if (log.isActive(dirtier)) {
+    					page.setLSN(logImage(dirtier, page));
+    				} else if (evicting) {
+    					return false;
+    				} else {
+    					unlogged = true;
+    				}
+    				// snapshots may still need the version on disk
+    				versions.written(dirtier, page);
+    			}
+    			log.force(page.getLSN());
+    			long start = System.nanoTime();
+    			Database.getCatalog().getDatabaseFile(page.getId().getTableId())
+    				.writePage(page);
+    			stats.pageWritten(System.nanoTime() - start);
+    			if (unlogged) {
+    				log.logWritten(dirtier, page.getId());
+    			}
+    			page.markDirty(false, null);
+    			recLSNs.remove(page.getId());
+    			return true;
     		}
+    	} finally {
+    		held.releaseAll();
     	}
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Writes out one of dirty, the pages a full shard would evict if they
+     * were clean, so it can evict it (STEAL).
+     *
+     * @throws DbException if none of them can be written now
      */
-    private synchronized  void evictPage() throws DbException {
+    private void steal(List<Page> dirty) throws DbException {
+    	for (Page page : dirty) {
+    		try {
+    			if (writePage(page, true) || page.isDirty() == null) {
+    				return;
+    			}
+    		} catch (IOException e) {
+    			throw new DbException("could not write page " + page.getId() + " to evict it: " + e);
+    		}
+    	}
+    	throw new DbException("No Clean Page to EVICT");
+    }
+
+    /**
+     * Logs the pages tid has dirtied, before its COMMIT record, so the
+     * commit doesn't have to write them out (NO-FORCE):
+     * {@link #transactionComplete} then leaves them dirty, to be written
+     * when they are evicted or checkpointed.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+    	for (Page page : dirtiedBy(tid)) {
+    		PageLatches.Held held = latches.hold();
+    		if (page instanceof BTreePage || page instanceof BTreeRootPtrPage) {
+    			held.latch(page.getId(), false);
+    		}
+    		try {
+    			synchronized (page) {
+    				long lsn = logImage(tid, page);
+    				page.setLSN(lsn);
+    				recLSNs.putIfAbsent(page.getId(), lsn);
+    			}
+    		} finally {
+    			held.releaseAll();
+    		}
+    	}
+    	logged.add(tid);
+    }
+
+    /**
+     * Logs page, which running transaction tid has dirtied, under its
+     * latch: with its before image, so undo can put it back, unless tid
+     * changes rows of it; others may have uncommitted rows on it then, so
+     * only its after image is logged, and undo takes tid's rows back out
+     * by the ROW records of their changes.
+     *
+     * @return the LSN of the record
+     */
+    private long logImage(TransactionId tid, Page page) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	if (rowSets.getOrDefault(tid, Collections.<PageId>emptySet()).contains(page.getId())) {
+    		return log.logRow(tid, LogFile.ROW_PAGES, null, -1, Collections.singletonList(page));
+    	}
+    	return log.logWrite(tid, page.getBeforeImage(), page);
+    }
+
+    /** Write all pages of the specified transaction to disk.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
-        // not necessary for lab1
-    	assert pages.size() == numPages;
-    	for (Page page : pages.values()) {
-            if (page.isDirty() == null) {
-            	/* try {
-    				flushPage(page.getId());
-    		    	pages.remove(page.getId());
-    			} catch (IOException e) {
-    				throw new DbException("IO Exception evictPage");
-    			} */
-		    	pages.remove(page.getId());
-		    	return;
-            }
-        }
-        throw new DbException("No Clean Page to EVICT");
+        // not necessary for lab1|lab2
+    	for (Page page : dirtiedBy(tid)) {
+    		flushPage(page);
+    	}
     }
 
 }
@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * BufferRing is the set of frames a large sequential scan reads through,
+ * like the ring of PostgreSQL's BAS_BULKREAD access strategy. Pages the
+ * scan has to read from disk join the ring, unreferenced; once the ring is
+ * full, the oldest of them is given up again, so the scan never holds more
+ * than a ring's worth of the pool no matter how big the file is.
+ * <p>
+ * Rings are handed out by {@link BufferPool#ringFor} and passed to
+ * {@link BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)}.
+ *
+ * @Threadsafe, since read-ahead adds pages from background threads
+ */
+public class BufferRing {
+
+	private final TransactionId tid;
+	private final int size;
+	private final ArrayDeque<PageId> pages;
+
+	/**
+	 * @param tid the transaction of the scan
+	 * @param size the number of frames in the ring
+	 */
+	public BufferRing(TransactionId tid, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("a ring needs at least one frame");
+		}
+		this.tid = tid;
+		this.size = size;
+		this.pages = new ArrayDeque<PageId>(size + 1);
+	}
+
+	/** @return the transaction of the scan this ring belongs to */
+	public TransactionId getTransactionId() {
+		return tid;
+	}
+
+	/** @return the number of frames in the ring */
+	public int size() {
+		return size;
+	}
+
+	/** Records that pid was read into the pool for this ring. */
+	synchronized void add(PageId pid) {
+		pages.addLast(pid);
+	}
+
+	/**
+	 * @return the oldest page of the ring if the ring holds more pages than
+	 *   it has frames, after removing it from the ring; null otherwise
+	 */
+	synchronized PageId overflow() {
+		return pages.size() > size ? pages.removeFirst() : null;
+	}
+
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * BulkLoader loads large numbers of tuples into a table through
+ * {@link DbFile#insertTuples}, with as little logging as it can get away
+ * with.
+ * <p>
+ * An ordinary {@link Transaction} begins in the log, so the pool logs
+ * every page it dirties, before and after image, and writes the pages out
+ * whenever it likes (STEAL/NO-FORCE): loading through one writes each page
+ * to the log twice over as well as to the table. BulkLoader's batches
+ * don't begin in the log instead. The pool then doesn't write their dirty
+ * pages before commit and writes them all out, in file order, at commit
+ * (NO-STEAL/FORCE), so a batch can only dirty as many pages as the pool
+ * holds, and BulkLoader commits after every batch of about half a buffer
+ * pool's worth of pages. Loading runs close to sequential write speed.
+ * <p>
+ * The log holds no images of the pages a batch wrote, just a small
+ * WRITTEN record of each, so that recovery doesn't redo older images of
+ * them over the batch (see {@link LogFile}). Tables that lock rows share
+ * their pages with other running transactions, whose changes must be
+ * logged; they are loaded through ordinary transactions.
+ * <p>
+ * The load as a whole is not atomic: if it fails, the batches committed
+ * so far stay in the table, and a crash may leave part of the batch being
+ * written.
+ */
+public class BulkLoader {
+
+	private BulkLoader() {
+	}
+
+	/**
+	 * Inserts all of tuples into table tableId.
+	 *
+	 * @return the number of tuples inserted
+	 */
+	public static int load(int tableId, Iterator<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+		// a page holds about this many tuples, one header bit each
+		int perPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+		int batchSize = Math.max(1, Database.getBufferPool().getNumPages() / 2 * perPage);
+
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		boolean logged = file instanceof HeapFile && ((HeapFile) file).isRowLocking();
+
+		int count = 0;
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		while (tuples.hasNext()) {
+			batch.clear();
+			while (batch.size() < batchSize && tuples.hasNext()) {
+				batch.add(tuples.next());
+			}
+			if (logged) {
+				loadLogged(tableId, batch);
+			} else {
+				loadForced(tableId, batch);
+			}
+			count += batch.size();
+		}
+		return count;
+	}
+
+	/** Inserts batch in a transaction that begins in the log. */
+	private static void loadLogged(int tableId, ArrayList<Tuple> batch)
+			throws DbException, IOException, TransactionAbortedException {
+		Transaction t = new Transaction();
+		t.start();
+		boolean done = false;
+		try {
+			Database.getBufferPool().insertTuples(t.getId(), tableId, batch.iterator());
+			t.commit();
+			done = true;
+		} finally {
+			if (!done) {
+				t.abort();
+			}
+		}
+	}
+
+	/**
+	 * Inserts batch in a transaction the log knows nothing about, which
+	 * writes its pages out at commit.
+	 */
+	private static void loadForced(int tableId, ArrayList<Tuple> batch)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		boolean done = false;
+		try {
+			pool.insertTuples(tid, tableId, batch.iterator());
+			pool.transactionComplete(tid, true);
+			done = true;
+		} finally {
+			if (!done) {
+				pool.transactionComplete(tid, false);
+			}
+		}
+	}
+
+}
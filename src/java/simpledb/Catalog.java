@@ -50,17 +50,36 @@ public class Catalog {
     			int oldkey = entry.getKey();
     			if (oldkey != key) {
     				this.names.remove(oldkey);
-    				this.files.remove(oldkey);
+    				closeHandles(this.files.remove(oldkey));
     				this.pkeys.remove(oldkey);
     			}
     			break;
     		}
     	}
     	this.names.put(key, name);
-    	this.files.put(key, file);
+    	DbFile old = this.files.put(key, file);
+    	if (old != file) {
+    		closeHandles(old);
+    	}
     	this.pkeys.put(key, pkeyField);
     }
 
+    /** Closes the open file handles of a file dropped from the catalog. */
+    private void closeHandles(DbFile file) {
+    	if (file == null) {
+    		return;
+    	}
+    	FileHandleManager handles = Database.getFileHandleManager();
+    	try {
+    		handles.close(file);
+    		if (file instanceof HeapFile) {
+    			handles.close(((HeapFile) file).getFreeSpaceMap());
+    		}
+    	} catch (IOException e) {
+    		// nothing left to do with the handles
+    	}
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -136,6 +155,9 @@ public class Catalog {
     public void clear() {
         // some code goes here
     	this.names.clear();
+    	for (DbFile file : this.files.values()) {
+    		closeHandles(file);
+    	}
     	this.files.clear();
     	this.pkeys.clear();
     }
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement. Every frame carries a reference bit
+ * that is set when the page is used; the clock hand sweeps the frames,
+ * clearing set bits and evicting the first evictable page whose bit is
+ * already clear.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+	private final ArrayList<PageId> frames;
+	private final ArrayList<Boolean> referenced;
+	private final Map<PageId, Integer> slots;
+	private final Deque<Integer> freeSlots;
+	private int hand;
+
+	public ClockReplacementPolicy(int numPages) {
+		this.frames = new ArrayList<PageId>(numPages);
+		this.referenced = new ArrayList<Boolean>(numPages);
+		this.slots = new HashMap<PageId, Integer>();
+		this.freeSlots = new ArrayDeque<Integer>();
+		this.hand = 0;
+	}
+
+	@Override
+	public synchronized void recordInsert(PageId pid) {
+		add(pid, true);
+	}
+
+	@Override
+	public synchronized void recordPrefetch(PageId pid) {
+		add(pid, false);
+	}
+
+	private void add(PageId pid, boolean reference) {
+		Integer slot = slots.get(pid);
+		if (slot == null) {
+			if (freeSlots.isEmpty()) {
+				slot = frames.size();
+				frames.add(pid);
+				referenced.add(true);
+			} else {
+				slot = freeSlots.pop();
+				frames.set(slot, pid);
+			}
+			slots.put(pid, slot);
+		}
+		referenced.set(slot, reference);
+	}
+
+	@Override
+	public synchronized void recordAccess(PageId pid) {
+		Integer slot = slots.get(pid);
+		if (slot != null) {
+			referenced.set(slot, true);
+		}
+	}
+
+	@Override
+	public synchronized void recordRemove(PageId pid) {
+		Integer slot = slots.remove(pid);
+		if (slot != null) {
+			frames.set(slot, null);
+			referenced.set(slot, false);
+			freeSlots.push(slot);
+		}
+	}
+
+	@Override
+	public synchronized PageId evict(Evictable evictable) {
+		int n = frames.size();
+		// two full sweeps: the first may only clear reference bits
+		for (int i = 0; i < 2 * n; ++i) {
+			if (hand >= n) {
+				hand = 0;
+			}
+			int slot = hand++;
+			PageId pid = frames.get(slot);
+			if (pid == null) {
+				continue;
+			}
+			if (referenced.get(slot)) {
+				referenced.set(slot, false);
+			} else if (evictable.canEvict(pid)) {
+				recordRemove(pid);
+				return pid;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,379 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ContentionStats counts what a {@link BufferPool} and its
+ * {@link LockManager} spend their time on: lock waits, per page and per
+ * table, the lock requests queued, transactions aborted by the deadlock
+ * policy, buffer pool hits, misses and evictions, and how long pages take
+ * to read and write. {@link #snapshot} adds the number of resident and
+ * dirty pages and of latch restarts at the time of the call.
+ * <p>
+ * Wait times are kept for at most MAX_TRACKED pages; waits for pages
+ * beyond that only count towards their table and the totals.
+ * <p>
+ * The stats of the current buffer pool can be watched with a JMX client,
+ * as MXBean simpledb:type=ContentionStats, once {@link #registerMBean} has
+ * been called.
+ *
+ * @Threadsafe
+ */
+public class ContentionStats {
+
+	/** Pages whose lock waits are kept apart */
+	public static final int MAX_TRACKED = 10000;
+
+	/** Entries of the hot page and table lists in a snapshot */
+	public static final int HOT = 10;
+
+	/** The JMX name the stats of the current buffer pool are registered under */
+	public static final String MBEAN_NAME = "simpledb:type=ContentionStats";
+
+	/** The lock waits for one page or table. */
+	public static class Contention<K> {
+		public final K key;
+		public final long waits;
+		public final long waitNanos;
+
+		Contention(K key, long waits, long waitNanos) {
+			this.key = key;
+			this.waits = waits;
+			this.waitNanos = waitNanos;
+		}
+
+		@Override
+		public String toString() {
+			return key + ": " + waits + " waits, " + waitNanos / 1000000 + " ms";
+		}
+	}
+
+	/** What the stats counted up to one point in time. */
+	public static class Snapshot {
+		/** lock requests that had to wait, and for how long */
+		public final long lockWaits, lockWaitNanos, lockWaitP50Nanos, lockWaitP99Nanos, lockWaitMaxNanos;
+		/** lock requests waiting now, and the longest queue for one lock seen */
+		public final int queuedLocks, maxLockQueue;
+		/** transactions aborted by the deadlock policy, or by an interrupted wait */
+		public final long deadlockAborts, interruptedAborts;
+		/** pages found in the pool, pages read into it, pages evicted from it */
+		public final long hits, misses, evictions;
+		/** pages read from disk, and how long that took */
+		public final long pageReads, pageReadP50Nanos, pageReadP99Nanos;
+		/** pages written to disk, and how long that took */
+		public final long pageWrites, pageWriteP50Nanos, pageWriteP99Nanos;
+		/** pages in the pool, and those of them that are dirty */
+		public final int residentPages, dirtyPages;
+		/** B+ tree operations that started over, see {@link PageLatches#restarts} */
+		public final long latchRestarts;
+		/** the pages and tables waited for longest, longest first */
+		public final List<Contention<PageId>> hotPages;
+		public final List<Contention<Integer>> hotTables;
+
+		private Snapshot(ContentionStats s, int residentPages, int dirtyPages, long latchRestarts) {
+			lockWaits = s.lockWaits.count();
+			lockWaitNanos = s.lockWaits.totalNanos();
+			lockWaitP50Nanos = s.lockWaits.percentileNanos(0.5);
+			lockWaitP99Nanos = s.lockWaits.percentileNanos(0.99);
+			lockWaitMaxNanos = s.lockWaits.maxNanos();
+			queuedLocks = s.queued.get();
+			maxLockQueue = s.maxQueue.get();
+			deadlockAborts = s.deadlockAborts.sum();
+			interruptedAborts = s.interruptedAborts.sum();
+			hits = s.hits.sum();
+			misses = s.misses.sum();
+			evictions = s.evictions.sum();
+			pageReads = s.reads.count();
+			pageReadP50Nanos = s.reads.percentileNanos(0.5);
+			pageReadP99Nanos = s.reads.percentileNanos(0.99);
+			pageWrites = s.writes.count();
+			pageWriteP50Nanos = s.writes.percentileNanos(0.5);
+			pageWriteP99Nanos = s.writes.percentileNanos(0.99);
+			this.residentPages = residentPages;
+			this.dirtyPages = dirtyPages;
+			this.latchRestarts = latchRestarts;
+			hotPages = hottest(s.pageWaits);
+			hotTables = hottest(s.tableWaits);
+		}
+
+		/** @return the share of page requests found in the pool, 1 if there were none */
+		public double hitRatio() {
+			return hits + misses == 0 ? 1 : (double) hits / (hits + misses);
+		}
+	}
+
+	/** Lock waits for one page or table: their number and total nanoseconds */
+	private static class Waits {
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+	}
+
+	private final BufferPool pool;
+	private final LatencyHistogram lockWaits = new LatencyHistogram();
+	private final ConcurrentHashMap<PageId, Waits> pageWaits = new ConcurrentHashMap<PageId, Waits>();
+	private final ConcurrentHashMap<Integer, Waits> tableWaits = new ConcurrentHashMap<Integer, Waits>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger maxQueue = new AtomicInteger();
+	private final LongAdder deadlockAborts = new LongAdder();
+	private final LongAdder interruptedAborts = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LatencyHistogram reads = new LatencyHistogram();
+	private final LatencyHistogram writes = new LatencyHistogram();
+
+	/** Creates stats for a LockManager of its own, without a pool. */
+	public ContentionStats() {
+		this(null);
+	}
+
+	/** Creates the stats of pool and its lock manager. */
+	ContentionStats(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	/** Counts a lock request that joined a queue of queueLength requests, itself included. */
+	void lockQueued(int queueLength) {
+		queued.incrementAndGet();
+		int m;
+		while (queueLength > (m = maxQueue.get()) && !maxQueue.compareAndSet(m, queueLength)) {
+		}
+	}
+
+	/**
+	 * Counts the end of a wait for a lock, granted or not.
+	 *
+	 * @param pid the page locked, or the page of the row locked; null for
+	 *   a table lock
+	 */
+	void lockWaited(PageId pid, int tableId, long nanos) {
+		queued.decrementAndGet();
+		lockWaits.record(nanos);
+		if (pid != null) {
+			Waits w = pageWaits.get(pid);
+			if (w == null && pageWaits.size() < MAX_TRACKED) {
+				w = pageWaits.computeIfAbsent(pid, key -> new Waits());
+			}
+			if (w != null) {
+				w.count.increment();
+				w.nanos.add(nanos);
+			}
+		}
+		Waits w = tableWaits.computeIfAbsent(tableId, key -> new Waits());
+		w.count.increment();
+		w.nanos.add(nanos);
+	}
+
+	/** Counts a transaction aborted by the deadlock policy. */
+	void deadlockAbort() {
+		deadlockAborts.increment();
+	}
+
+	/** Counts a transaction aborted because its wait for a lock was interrupted. */
+	void interruptedAbort() {
+		interruptedAborts.increment();
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	void miss() {
+		misses.increment();
+	}
+
+	void evicted() {
+		evictions.increment();
+	}
+
+	void pageRead(long nanos) {
+		reads.record(nanos);
+	}
+
+	void pageWritten(long nanos) {
+		writes.record(nanos);
+	}
+
+	/** @return what has been counted so far, with the pool's pages as they are now */
+	public Snapshot snapshot() {
+		if (pool == null) {
+			return new Snapshot(this, 0, 0, 0);
+		}
+		int[] pages = pool.countPages();
+		return new Snapshot(this, pages[0], pages[1], pool.getLatches().restarts());
+	}
+
+	/** Forgets everything counted so far, except the lock requests waiting now. */
+	public void reset() {
+		lockWaits.reset();
+		pageWaits.clear();
+		tableWaits.clear();
+		maxQueue.set(0);
+		deadlockAborts.reset();
+		interruptedAborts.reset();
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+		reads.reset();
+		writes.reset();
+	}
+
+	private static <K> List<Contention<K>> hottest(Map<K, Waits> waits) {
+		List<Contention<K>> all = new ArrayList<Contention<K>>();
+		for (Map.Entry<K, Waits> e : waits.entrySet()) {
+			all.add(new Contention<K>(e.getKey(), e.getValue().count.sum(), e.getValue().nanos.sum()));
+		}
+		Collections.sort(all, (a, b) -> Long.compare(b.waitNanos, a.waitNanos));
+		return Collections.unmodifiableList(all.subList(0, Math.min(HOT, all.size())));
+	}
+
+	/**
+	 * Registers the MXBean that shows the stats of the current buffer pool,
+	 * {@link Database#getBufferPool}, under {@link #MBEAN_NAME}. Nothing
+	 * happens if it is registered already.
+	 */
+	public static void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), name);
+			}
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The MXBean. JMX clients read attributes one by one, so the counters
+	 * are read as they are; what takes a snapshot to work out (the
+	 * percentiles, the hot lists and the pages in the pool) comes from one
+	 * snapshot shared for SNAPSHOT_MILLIS.
+	 */
+	private static class Bean implements ContentionStatsMXBean {
+
+		/** How long the attributes that need a snapshot share one */
+		static final long SNAPSHOT_MILLIS = 1000;
+
+		private Snapshot recent;
+		private ContentionStats recentOf;
+		private long recentAt;
+
+		private static ContentionStats stats() {
+			return Database.getBufferPool().getStats();
+		}
+
+		/** @return a snapshot of the current pool's stats at most SNAPSHOT_MILLIS old */
+		private synchronized Snapshot recent() {
+			ContentionStats stats = stats();
+			long now = System.currentTimeMillis();
+			if (recent == null || recentOf != stats || now - recentAt >= SNAPSHOT_MILLIS) {
+				recent = stats.snapshot();
+				recentOf = stats;
+				recentAt = now;
+			}
+			return recent;
+		}
+
+		private static <K> String[] describe(List<Contention<K>> hot) {
+			String[] result = new String[hot.size()];
+			for (int i = 0; i < result.length; ++i) {
+				result[i] = hot.get(i).toString();
+			}
+			return result;
+		}
+
+		public long getLockWaits() {
+			return stats().lockWaits.count();
+		}
+
+		public long getLockWaitMillis() {
+			return stats().lockWaits.totalNanos() / 1000000;
+		}
+
+		public long getLockWaitP99Micros() {
+			return recent().lockWaitP99Nanos / 1000;
+		}
+
+		public long getLockWaitMaxMicros() {
+			return stats().lockWaits.maxNanos() / 1000;
+		}
+
+		public int getQueuedLocks() {
+			return stats().queued.get();
+		}
+
+		public int getMaxLockQueue() {
+			return stats().maxQueue.get();
+		}
+
+		public long getDeadlockAborts() {
+			return stats().deadlockAborts.sum();
+		}
+
+		public long getInterruptedAborts() {
+			return stats().interruptedAborts.sum();
+		}
+
+		public long getHits() {
+			return stats().hits.sum();
+		}
+
+		public long getMisses() {
+			return stats().misses.sum();
+		}
+
+		public double getHitRatio() {
+			ContentionStats stats = stats();
+			long hits = stats.hits.sum();
+			long misses = stats.misses.sum();
+			return hits + misses == 0 ? 1 : (double) hits / (hits + misses);
+		}
+
+		public long getEvictions() {
+			return stats().evictions.sum();
+		}
+
+		public long getPageReadP99Micros() {
+			return recent().pageReadP99Nanos / 1000;
+		}
+
+		public long getPageWriteP99Micros() {
+			return recent().pageWriteP99Nanos / 1000;
+		}
+
+		public int getResidentPages() {
+			return recent().residentPages;
+		}
+
+		public int getDirtyPages() {
+			return recent().dirtyPages;
+		}
+
+		public long getLatchRestarts() {
+			return Database.getBufferPool().getLatches().restarts();
+		}
+
+		public String[] getHotPages() {
+			return describe(recent().hotPages);
+		}
+
+		public String[] getHotTables() {
+			return describe(recent().hotTables);
+		}
+
+		public synchronized void reset() {
+			stats().reset();
+			recent = null;
+		}
+	}
+}
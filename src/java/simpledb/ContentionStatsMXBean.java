@@ -0,0 +1,70 @@
+package simpledb;
+
+/**
+ * The JMX view of the {@link ContentionStats} of the current buffer pool.
+ * Each attribute is read from a fresh {@link ContentionStats.Snapshot}.
+ *
+ * @see ContentionStats#registerMBean
+ */
+public interface ContentionStatsMXBean {
+
+	/** @return the lock requests that had to wait */
+	public long getLockWaits();
+
+	/** @return the time spent waiting for locks, in milliseconds */
+	public long getLockWaitMillis();
+
+	/** @return the 99th percentile of lock waits, in microseconds */
+	public long getLockWaitP99Micros();
+
+	/** @return the longest lock wait, in microseconds */
+	public long getLockWaitMaxMicros();
+
+	/** @return the lock requests waiting now */
+	public int getQueuedLocks();
+
+	/** @return the longest queue for one lock seen */
+	public int getMaxLockQueue();
+
+	/** @return the transactions aborted by the deadlock policy */
+	public long getDeadlockAborts();
+
+	/** @return the transactions aborted because their lock wait was interrupted */
+	public long getInterruptedAborts();
+
+	/** @return the page requests found in the pool */
+	public long getHits();
+
+	/** @return the page requests that read the page into the pool */
+	public long getMisses();
+
+	/** @return the share of page requests found in the pool */
+	public double getHitRatio();
+
+	/** @return the pages evicted from the pool */
+	public long getEvictions();
+
+	/** @return the 99th percentile of page reads, in microseconds */
+	public long getPageReadP99Micros();
+
+	/** @return the 99th percentile of page writes, in microseconds */
+	public long getPageWriteP99Micros();
+
+	/** @return the pages in the pool */
+	public int getResidentPages();
+
+	/** @return the dirty pages in the pool */
+	public int getDirtyPages();
+
+	/** @return the B+ tree operations that started over */
+	public long getLatchRestarts();
+
+	/** @return the pages waited for longest, with their waits */
+	public String[] getHotPages();
+
+	/** @return the tables waited for longest, with their waits */
+	public String[] getHotTables();
+
+	/** Forgets everything counted so far. */
+	public void reset();
+}
@@ -17,12 +17,14 @@ public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final FileHandleManager _filehandles;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
     private Database() {
         _catalog = new Catalog();
+        _filehandles = new FileHandleManager();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -50,6 +52,11 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the open file handles of the static Database instance */
+    public static FileHandleManager getFileHandleManager() {
+        return _instance.get()._filehandles;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -74,8 +81,12 @@ public class Database {
     }
 
     // reset the database, used for unit tests only.
+    // the log loses what it had not forced, as in a crash.
     public static void reset() {
+        Database old = _instance.get();
+        old._logfile.discard();
         _instance.set(new Database());
+        old._filehandles.closeAll();
     }
 
 }
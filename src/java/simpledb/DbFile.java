@@ -43,6 +43,32 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts all the tuples of tuples to the file on behalf of
+     * transaction, like {@link #insertTuple} does for one tuple. Files
+     * that can do better than one insertTuple call per tuple, e.g. by
+     * filling each page before moving on or by allocating new pages
+     * several at a time, override this.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add; each is updated to reflect that it
+     *          is now stored in this file.
+     * @return An ArrayList containing the pages that were modified, each
+     *          once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public default ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashMap<PageId, Page> dirtied = new LinkedHashMap<PageId, Page>();
+        while (tuples.hasNext()) {
+            for (Page p : insertTuple(tid, tuples.next())) {
+                dirtied.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<Page>(dirtied.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -0,0 +1,203 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileHandleManager keeps one open FileChannel per DbFile, so page reads
+ * and writes don't pay for an open/close each, and offers positional
+ * (pread/pwrite style) reads and writes on those channels. Positional I/O
+ * doesn't move a shared file pointer, so concurrent readers and writers of
+ * the same file need no extra synchronization. Channels are keyed by
+ * their owner, normally the DbFile itself; side files of a DbFile, such
+ * as the {@link FreeSpaceMap} of a HeapFile, use their own owner object.
+ * <p>
+ * Files of DbFiles in memory-mapped mode are additionally mapped read-only
+ * with FileChannel.map, and page reads copy straight out of the mapping
+ * instead of issuing a read() system call. Writes still go through the
+ * channel; the mapping shares the OS page cache with it, so it sees them.
+ *
+ * @see Database#getFileHandleManager
+ * @Threadsafe
+ */
+public class FileHandleManager {
+
+	/** Files are mapped in segments of this many bytes (a MappedByteBuffer holds at most 2GB). */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	/** The mapped prefix of a file, one buffer per segment. */
+	private static class Mapping {
+		final MappedByteBuffer[] segments;
+		final long size;
+
+		Mapping(MappedByteBuffer[] segments, long size) {
+			this.segments = segments;
+			this.size = size;
+		}
+	}
+
+	private final ConcurrentHashMap<Object, FileChannel> channels;
+	private final ConcurrentHashMap<Object, Mapping> mappings;
+
+	public FileHandleManager() {
+		this.channels = new ConcurrentHashMap<Object, FileChannel>();
+		this.mappings = new ConcurrentHashMap<Object, Mapping>();
+	}
+
+	/**
+	 * Returns the channel of owner, opening f (and creating it if it does
+	 * not exist) the first time.
+	 */
+	public FileChannel channel(Object owner, File f) throws IOException {
+		FileChannel fc = channels.get(owner);
+		if (fc == null || !fc.isOpen()) {
+			synchronized (this) {
+				fc = channels.get(owner);
+				if (fc == null || !fc.isOpen()) {
+					fc = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+							StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+					channels.put(owner, fc);
+				}
+			}
+		}
+		return fc;
+	}
+
+	/**
+	 * Reads data.length bytes at offset position of owner's file.
+	 *
+	 * @return the number of bytes read, which is smaller than data.length
+	 *   only if the file ends before
+	 */
+	public int read(Object owner, File f, byte[] data, long position) throws IOException {
+		FileChannel fc = channel(owner, f);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining()) {
+			int n = fc.read(buf, position + buf.position());
+			if (n < 0) {
+				break;
+			}
+		}
+		return buf.position();
+	}
+
+	/** Writes all of data at offset position of owner's file. */
+	public void write(Object owner, File f, byte[] data, long position) throws IOException {
+		FileChannel fc = channel(owner, f);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining()) {
+			fc.write(buf, position + buf.position());
+		}
+	}
+
+	/** Like {@link #read}, but fails if fewer than data.length bytes are read. */
+	public void readFully(Object owner, File f, byte[] data, long position) throws IOException {
+		if (read(owner, f, data, position) < data.length) {
+			throw new EOFException("Read past end of " + f);
+		}
+	}
+
+	/**
+	 * Like {@link #read}, but copies out of a read-only memory mapping of
+	 * the file. The mapping is created on first use and extended when a
+	 * read reaches past its end because the file has grown.
+	 */
+	public int readMapped(Object owner, File f, byte[] data, long position) throws IOException {
+		Mapping m = mappings.get(owner);
+		if (m == null || position + data.length > m.size) {
+			m = remap(owner, f, position + data.length);
+			if (position + data.length > m.size) {
+				// the file isn't that long: let the channel report how much there is
+				return read(owner, f, data, position);
+			}
+		}
+		int off = 0;
+		while (off < data.length) {
+			long pos = position + off;
+			// duplicate() so concurrent readers don't share a buffer position
+			ByteBuffer seg = m.segments[(int) (pos / SEGMENT_SIZE)].duplicate();
+			seg.position((int) (pos % SEGMENT_SIZE));
+			int n = Math.min(seg.remaining(), data.length - off);
+			seg.get(data, off, n);
+			off += n;
+		}
+		return data.length;
+	}
+
+	/** Like {@link #readMapped}, but fails if fewer than data.length bytes are read. */
+	public void readMappedFully(Object owner, File f, byte[] data, long position) throws IOException {
+		if (readMapped(owner, f, data, position) < data.length) {
+			throw new EOFException("Read past end of " + f);
+		}
+	}
+
+	/**
+	 * Makes sure the mapping of owner's file covers at least the first
+	 * needed bytes, or the whole file if it is shorter. Full segments that
+	 * are already mapped are kept; only the tail is mapped again.
+	 */
+	private synchronized Mapping remap(Object owner, File f, long needed) throws IOException {
+		Mapping m = mappings.get(owner);
+		if (m != null && m.size >= needed) {
+			return m;
+		}
+		FileChannel fc = channel(owner, f);
+		long size = fc.size();
+		if (m != null && m.size == size) {
+			return m;
+		}
+		int n = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		MappedByteBuffer[] segments = new MappedByteBuffer[n];
+		int keep = m == null ? 0 : (int) (m.size / SEGMENT_SIZE);
+		for (int i = 0; i < n; ++i) {
+			if (i < keep) {
+				segments[i] = m.segments[i];
+			} else {
+				long start = i * SEGMENT_SIZE;
+				segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(SEGMENT_SIZE, size - start));
+			}
+		}
+		m = new Mapping(segments, size);
+		mappings.put(owner, m);
+		return m;
+	}
+
+	/** @return the current length of owner's file */
+	public long size(Object owner, File f) throws IOException {
+		return channel(owner, f).size();
+	}
+
+	/** Closes the channel of owner, if it is open, and drops its mapping. */
+	public void close(Object owner) throws IOException {
+		mappings.remove(owner);
+		FileChannel fc = channels.remove(owner);
+		if (fc != null) {
+			fc.close();
+		}
+	}
+
+	/** @return whether owner has an open channel */
+	boolean isOpen(Object owner) {
+		FileChannel fc = channels.get(owner);
+		return fc != null && fc.isOpen();
+	}
+
+	/** Closes every channel. */
+	public void closeAll() {
+		for (Object owner : channels.keySet()) {
+			try {
+				close(owner);
+			} catch (IOException e) {
+				// nothing left to do with this channel
+			}
+		}
+	}
+
+}
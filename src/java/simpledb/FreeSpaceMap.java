@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records how many empty slots each page of a HeapFile has,
+ * so inserts can go straight to a page with room instead of locking and
+ * reading every page in turn. It is kept in a side file next to the heap
+ * file (the heap file's name with ".fsm" appended): a header recording the
+ * length the heap file had when an entry was last written, then one byte
+ * per page:
+ * <ul>
+ * <li>0: nothing is known about the page; it is assumed to have room
+ * <li>1: the page is full
+ * <li>n &gt; 1: the page has at least n - 1 empty slots
+ * </ul>
+ * Pages past the end of the side file, and holes in it, read as 0, so a
+ * heap file without a side file (or one that grew behind our back) simply
+ * has all its pages checked once. A side file whose recorded length isn't
+ * the heap file's length describes some other version of the heap file
+ * (one that grew or was rewritten behind our back, or a crash came between
+ * the two writes) and is ignored. Whatever rewrites a heap file by other
+ * means should {@link #delete} its side file.
+ * <p>
+ * The map is only a hint. It is updated in memory as tuples are inserted
+ * and deleted, and written out as the HeapFile writes pages, so what is on
+ * disk describes the pages on disk. A wrong entry costs one page access:
+ * the inserter finds the page full and corrects the map. Entries of pages
+ * whose changes are thrown away are {@link #forget forgotten}. A crash may
+ * leave an entry saying a page is full when it isn't, which inserters
+ * would never look at again, so such entries are corrected as the pages
+ * are read (see {@link #pageRead}).
+ *
+ * @see HeapFile#insertTuple
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+	private static final int MAGIC = 0x46534d31;
+	/** Bytes before the entry of page 0: MAGIC and the heap file's length */
+	private static final int HEADER_SIZE = 12;
+	private static final byte FULL = 1;
+	/** Free slot counts above this are recorded as this */
+	private static final int MAX_RECORDED = 254;
+
+	private final File heapFile;
+	private final File file;
+	/** Entries of the pages we know about, in the on-disk encoding */
+	private byte[] entries;
+	/** Pages from here on are unknown */
+	private int known;
+	/** Pages below known whose entry isn't FULL */
+	private final BitSet room;
+	private boolean loaded;
+	/** The heap file length the side file records, -1 if none */
+	private long recorded;
+
+	/**
+	 * @param heapFile the heap file described; the map is kept next to it,
+	 *   in a side file created when the first entry is written
+	 */
+	public FreeSpaceMap(File heapFile) {
+		this.heapFile = heapFile;
+		this.file = sideFile(heapFile);
+		this.entries = new byte[0];
+		this.known = 0;
+		this.room = new BitSet();
+		this.loaded = false;
+		this.recorded = -1;
+	}
+
+	/** @return the side file the map of heapFile is kept in */
+	public static File sideFile(File heapFile) {
+		return new File(heapFile.getPath() + ".fsm");
+	}
+
+	/** Deletes the side file of heapFile, if there is one. */
+	public static void delete(File heapFile) {
+		sideFile(heapFile).delete();
+	}
+
+	/** Has the side file of heapFile deleted when the VM exits. */
+	public static void deleteOnExit(File heapFile) {
+		sideFile(heapFile).deleteOnExit();
+	}
+
+	/** @return the side file this map is kept in */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the lowest page number below numPages whose page may have an
+	 *   empty slot, or -1 if all of them are known to be full
+	 */
+	public int pageWithRoom(int numPages) {
+		return pageWithRoom(0, numPages);
+	}
+
+	/**
+	 * @return the lowest page number from from up to numPages whose page may
+	 *   have an empty slot, or -1 if all of them are known to be full
+	 */
+	public synchronized int pageWithRoom(int from, int numPages) {
+		load();
+		int pgNo = room.nextSetBit(from);
+		if (pgNo < 0) {
+			pgNo = Math.max(known, from);
+		}
+		return pgNo < numPages ? pgNo : -1;
+	}
+
+	/** Records in memory that page pgNo has freeSlots empty slots. */
+	public synchronized void update(int pgNo, int freeSlots) {
+		load();
+		if (pgNo >= known) {
+			// the pages in between stay unknown, i.e. may have room
+			if (pgNo >= entries.length) {
+				entries = Arrays.copyOf(entries, Math.max(pgNo + 1, 2 * entries.length));
+			}
+			room.set(known, pgNo);
+			known = pgNo + 1;
+		}
+		byte entry = (byte) (freeSlots <= 0 ? FULL : Math.min(freeSlots, MAX_RECORDED) + 1);
+		entries[pgNo] = entry;
+		room.set(pgNo, entry != FULL);
+	}
+
+	/**
+	 * Records in memory that nothing is known about page pgNo, e.g.
+	 * because the copy its entry describes was thrown away.
+	 */
+	public synchronized void forget(int pgNo) {
+		load();
+		if (pgNo < known) {
+			entries[pgNo] = 0;
+			room.set(pgNo);
+		}
+	}
+
+	/**
+	 * Corrects the entry of page pgNo, just read from the heap file with
+	 * freeSlots empty slots, if it says the page is full.
+	 */
+	public synchronized void pageRead(int pgNo, int freeSlots) {
+		load();
+		if (pgNo < known && entries[pgNo] == FULL && freeSlots > 0) {
+			update(pgNo, freeSlots);
+		}
+	}
+
+	/**
+	 * Records that page pgNo has freeSlots empty slots, in memory and in
+	 * the side file. The heap file must already hold the page.
+	 *
+	 * @param heapLength the length of the heap file, which the caller
+	 *   knows, so the map doesn't have to ask the file system every time
+	 */
+	public synchronized void write(int pgNo, int freeSlots, long heapLength) throws IOException {
+		update(pgNo, freeSlots);
+		FileHandleManager handles = Database.getFileHandleManager();
+		handles.write(this, file, new byte[] { entries[pgNo] }, HEADER_SIZE + (long) pgNo);
+		// heap files only grow; a writer that saw it shorter mustn't shrink it back
+		if (heapLength > recorded) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putLong(heapLength);
+			handles.write(this, file, header.array(), 0);
+			recorded = heapLength;
+		}
+	}
+
+	/** Reads the side file the first time the map is used. */
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			FileHandleManager handles = Database.getFileHandleManager();
+			byte[] header = new byte[HEADER_SIZE];
+			if (handles.read(this, file, header, 0) < HEADER_SIZE) {
+				return;
+			}
+			ByteBuffer in = ByteBuffer.wrap(header);
+			long heapLength = heapFile.length();
+			if (in.getInt() != MAGIC || in.getLong() != heapLength) {
+				return;
+			}
+			recorded = heapLength;
+			int length = (int) handles.size(this, file) - HEADER_SIZE;
+			entries = new byte[length];
+			known = Math.max(0, handles.read(this, file, entries, HEADER_SIZE));
+			for (int i = 0; i < known; ++i) {
+				room.set(i, entries[i] != FULL);
+			}
+		} catch (IOException e) {
+			// without the map every page just counts as unknown
+			entries = new byte[0];
+			known = 0;
+			room.clear();
+			recorded = -1;
+		}
+	}
+
+}
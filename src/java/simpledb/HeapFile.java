@@ -9,6 +9,14 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Inserts find a page with room through the file's {@link FreeSpaceMap},
+ * which lives in a side file next to the heap file.
+ * <p>
+ * Inserts and deletes lock whole pages by default. With
+ * {@link #setRowLocking row locking} on, they lock just the rows they
+ * change instead, so transactions changing different rows of a page don't
+ * wait for each other.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -17,6 +25,14 @@ public class HeapFile implements DbFile {
 	
 	private final File file;
 	private final TupleDesc td;
+	private volatile boolean memoryMapped = false;
+	private volatile boolean rowLocking = Boolean.getBoolean("simpledb.RowLocking");
+	private final FreeSpaceMap freeSpace;
+	// held while pages are added to the end of the file
+	private final Object extendLock = new Object();
+
+	/** The most pages an insert adds to the file at once */
+	private static final int MAX_EXTEND = 64;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,6 +45,7 @@ public class HeapFile implements DbFile {
         // some code goes here
     	this.file = f;
     	this.td = td;
+    	this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -41,6 +58,45 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Returns the map of free space in this file's pages.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+    	return freeSpace;
+    }
+
+    /**
+     * Turns memory-mapped reads on or off. In memory-mapped mode pages are
+     * copied out of a read-only mapping of the file rather than read with
+     * a system call each; this suits large, read-mostly tables.
+     *
+     * @see FileHandleManager#readMapped
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+    	this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Turns row locking for inserts and deletes on or off; it starts out as
+     * set by the simpledb.RowLocking system property. With row locking on,
+     * a change locks its page in an intention mode for as long as the
+     * transaction runs, and the changed row exclusively. The slot itself
+     * is changed under the page's latch. Scans still lock whole pages, so
+     * they never see uncommitted rows.
+     * <p>
+     * Pages end up holding the uncommitted changes of several transactions,
+     * so each change is logged row by row; see
+     * {@link BufferPool#getRowPage}.
+     */
+    public void setRowLocking(boolean rowLocking) {
+    	this.rowLocking = rowLocking;
+    }
+
+    /** @return whether changes to this file lock rows rather than pages */
+    public boolean isRowLocking() {
+    	return rowLocking;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -76,15 +132,17 @@ public class HeapFile implements DbFile {
         	throw new IllegalArgumentException("page number out of range");
         }
         byte[] data = HeapPage.createEmptyPageData();
+        long offset = (long) BufferPool.getPageSize() * pgNo;
         try {
-			RandomAccessFile raf = new RandomAccessFile(file, "r");
-			try {
-				raf.seek(BufferPool.getPageSize() * pgNo);
-				raf.read(data, 0, BufferPool.getPageSize());
-				return new HeapPage(new HeapPageId(getId(), pgNo), data);
-			} finally {
-				raf.close();
-			}
+        	FileHandleManager handles = Database.getFileHandleManager();
+        	if (memoryMapped) {
+        		handles.readMappedFully(this, file, data, offset);
+        	} else {
+        		handles.readFully(this, file, data, offset);
+        	}
+        	HeapPage page = new HeapPage(new HeapPageId(getId(), pgNo), data);
+        	freeSpace.pageRead(pgNo, page.getNumEmptySlots());
+        	return page;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -94,13 +152,14 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         int pgNo = page.getId().getPageNumber();
-        if (pgNo < 0 || pgNo > numPages()) {
+        int pages = numPages();
+        if (pgNo < 0 || pgNo > pages) {
         	throw new IllegalArgumentException("page id out of range");
         }
-        RandomAccessFile raf = new RandomAccessFile(file, "rw");
-        raf.seek(pgNo*BufferPool.getPageSize());
-        raf.write(page.getPageData());
-        raf.close();
+        long pageSize = BufferPool.getPageSize();
+        Database.getFileHandleManager().write(this, file, page.getPageData(), pageSize * pgNo);
+        freeSpace.write(pgNo, ((HeapPage) page).getNumEmptySlots(),
+        		pageSize * Math.max(pages, pgNo + 1));
     }
 
     /**
@@ -108,29 +167,210 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int)(file.length()/BufferPool.getPageSize());
+    	try {
+    		return (int)(Database.getFileHandleManager().size(this, file)/BufferPool.getPageSize());
+    	} catch (IOException e) {
+    		throw new RuntimeException(e);
+    	}
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        ArrayList<Page> list = new ArrayList<>();
+        return insertTuples(tid, Collections.singletonList(t).iterator());
+    }
+
+    /**
+     * Inserts tuples a page at a time: each page the free-space map offers
+     * is locked once and filled up before moving on to the next. When no
+     * page has room, the file is extended by just enough empty pages for
+     * the next tuples (up to MAX_EXTEND pages) in a single write.
+     *
+     * @see DbFile#insertTuples
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        if (rowLocking) {
+        	return insertRows(tid, tuples);
+        }
+        LinkedHashMap<PageId, Page> dirtied = new LinkedHashMap<>();
+        // tuples taken from the iterator to size an extension but not inserted yet
+        ArrayDeque<Tuple> pending = new ArrayDeque<>();
         BufferPool pool = Database.getBufferPool();
         int tableid = getId();
-        for (int i = 0; i < numPages(); ++i) {
-        	HeapPage page = (HeapPage)pool.getPage(tid, new HeapPageId(tableid, i), Permissions.READ_WRITE);
-        	if (page.getNumEmptySlots() > 0) {
-        		page.insertTuple(t);
-        		page.markDirty(true, tid);
-        		list.add(page);
-        		return list;
+        while (!pending.isEmpty() || tuples.hasNext()) {
+        	int pgNo = freeSpace.pageWithRoom(numPages());
+        	if (pgNo < 0) {
+        		int perPage = slotsPerPage();
+        		while (pending.size() < MAX_EXTEND * perPage && tuples.hasNext()) {
+        			pending.add(tuples.next());
+        		}
+        		pgNo = extend((pending.size() + perPage - 1) / perPage, 0);
+        	}
+        	HeapPage page = (HeapPage)pool.getPage(tid, new HeapPageId(tableid, pgNo), Permissions.READ_WRITE);
+        	int free = page.getNumEmptySlots();
+        	if (free > 0 && (!pending.isEmpty() || tuples.hasNext())) {
+        		// the tuples may come from a scan that waits for locks, so take them
+        		// before the monitor, which keeps the pool from writing the page
+        		// out half changed if it is dirty already
+        		while (pending.size() < free && tuples.hasNext()) {
+        			pending.add(tuples.next());
+        		}
+        		synchronized (page) {
+        			for (; free > 0 && !pending.isEmpty(); --free) {
+        				page.insertTuple(pending.poll());
+        			}
+        			page.markDirty(true, tid);
+        		}
+        		dirtied.put(page.getId(), page);
         	}
+        	// if the page had no room, the map was out of date; someone else may have filled it
+        	freeSpace.update(pgNo, free);
         }
-        HeapPage page = new HeapPage(new HeapPageId(tableid, numPages()), HeapPage.createEmptyPageData());
-        page.insertTuple(t);
-        writePage(page);
-        return list;
+        return new ArrayList<Page>(dirtied.values());
+    }
+
+    /**
+     * Inserts tuples one at a time under row locks. Each goes into the first
+     * empty slot, from the pages the free-space map offers, whose row lock
+     * can be had without waiting; an empty slot may still be locked by a
+     * transaction that deleted its tuple and hasn't committed yet.
+     */
+    private ArrayList<Page> insertRows(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        LinkedHashMap<PageId, Page> dirtied = new LinkedHashMap<>();
+        BufferPool pool = Database.getBufferPool();
+        int tableid = getId();
+        // pages before this one had no slot we could lock
+        int from = 0;
+        while (tuples.hasNext()) {
+        	Tuple t = tuples.next();
+        	while (true) {
+        		int pgNo = freeSpace.pageWithRoom(from, numPages());
+        		if (pgNo < 0) {
+        			pgNo = extend(1, from);
+        		}
+        		HeapPageId pid = new HeapPageId(tableid, pgNo);
+        		HeapPage page = (HeapPage)pool.getRowPage(tid, pid, Permissions.READ_WRITE);
+        		int slot = -1;
+        		int free;
+        		long lsn = -1;
+        		synchronized (page) {
+        			for (int i = page.nextEmptySlot(0); i >= 0; i = page.nextEmptySlot(i + 1)) {
+        				if (pool.lockRow(tid, new RecordId(pid, i), Permissions.READ_WRITE, false)) {
+        					slot = i;
+        					break;
+        				}
+        			}
+        			if (slot >= 0) {
+        				page.insertTuple(t, slot);
+        				page.markDirty(true, tid);
+        				lsn = pool.logRowChange(tid, LogFile.ROW_INSERT, t, page);
+        			}
+        			free = page.getNumEmptySlots();
+        		}
+        		freeSpace.update(pgNo, free);
+        		if (slot >= 0) {
+        			RecordId rid = t.getRecordId();
+        			long logged = lsn;
+        			pool.addRowUndo(tid, () -> undoInsert(tid, rid, logged));
+        			dirtied.put(pid, page);
+        			break;
+        		}
+        		from = pgNo + 1;
+        	}
+        }
+        return new ArrayList<Page>(dirtied.values());
+    }
+
+    /**
+     * Undoes the insert or delete of row t, which tid made under a row lock
+     * before a crash, as recovery reads it from the log.
+     *
+     * @param lsn the LSN of the ROW record of the change
+     */
+    void undoRow(TransactionId tid, boolean insert, Tuple t, long lsn)
+            throws DbException, IOException {
+    	if (insert) {
+    		undoInsert(tid, t.getRecordId(), lsn);
+    	} else {
+    		undoDelete(tid, t, t.getRecordId(), lsn);
+    	}
+    }
+
+    /**
+     * Undoes the insert of row rid, logged at LSN lsn, and logs that. After
+     * a crash the page may not have the row, if it never reached the log.
+     */
+    private void undoInsert(TransactionId tid, RecordId rid, long lsn)
+            throws DbException, IOException {
+    	BufferPool pool = Database.getBufferPool();
+    	HeapPage page = (HeapPage)pool.getLockedPage(rid.getPageId());
+    	int free;
+    	synchronized (page) {
+    		if (page.isSlotUsed(rid.getTupleNumber())) {
+    			Tuple t = new Tuple(td);
+    			t.setRecordId(rid);
+    			page.deleteTuple(t);
+    		}
+    		page.markDirty(true, tid);
+    		pool.logRow(tid, LogFile.ROW_UNDO, null, lsn, Collections.singletonList(page));
+    		free = page.getNumEmptySlots();
+    	}
+    	freeSpace.update(rid.getPageId().getPageNumber(), free);
+    }
+
+    /**
+     * Undoes the delete of row t from rid, logged at LSN lsn, and logs
+     * that. After a crash the page may still have the row.
+     */
+    private void undoDelete(TransactionId tid, Tuple t, RecordId rid, long lsn)
+            throws DbException, IOException {
+    	BufferPool pool = Database.getBufferPool();
+    	HeapPage page = (HeapPage)pool.getLockedPage(rid.getPageId());
+    	int free;
+    	synchronized (page) {
+    		if (!page.isSlotUsed(rid.getTupleNumber())) {
+    			page.insertTuple(t, rid.getTupleNumber());
+    		}
+    		page.markDirty(true, tid);
+    		pool.logRow(tid, LogFile.ROW_UNDO, null, lsn, Collections.singletonList(page));
+    		free = page.getNumEmptySlots();
+    	}
+    	freeSpace.update(rid.getPageId().getPageNumber(), free);
+    }
+
+    /** @return the number of tuples an empty page of this file holds */
+    private int slotsPerPage() throws IOException {
+    	return new HeapPage(new HeapPageId(getId(), 0), HeapPage.createEmptyPageData())
+    		.getNumEmptySlots();
+    }
+
+    /**
+     * Adds count empty pages to the end of the file in one write, unless
+     * another thread has just added pages from page from on that still
+     * have room.
+     *
+     * @return the number of a page that had room a moment ago
+     */
+    private int extend(int count, int from) throws IOException {
+    	synchronized (extendLock) {
+    		int pages = numPages();
+    		int pgNo = freeSpace.pageWithRoom(from, pages);
+    		if (pgNo >= 0) {
+    			return pgNo;
+    		}
+    		int pageSize = BufferPool.getPageSize();
+    		// empty pages are all zeros
+    		Database.getFileHandleManager().write(this, file, new byte[count * pageSize],
+    				(long) pageSize * pages);
+    		int slots = slotsPerPage();
+    		for (int i = 0; i < count; ++i) {
+    			freeSpace.write(pages + i, slots, (long) pageSize * (pages + count));
+    		}
+    		return pages;
+    	}
     }
 
     // see DbFile.java for javadocs
@@ -138,9 +378,42 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         BufferPool pool = Database.getBufferPool();
+        if (rowLocking) {
+        	return deleteRow(tid, t);
+        }
         HeapPage page = (HeapPage)pool.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        page.markDirty(true, tid);
+        synchronized (page) {
+        	page.deleteTuple(t);
+        	page.markDirty(true, tid);
+        }
+        freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+        ArrayList<Page> list = new ArrayList<>();
+        list.add(page);
+        return list;
+    }
+
+    private ArrayList<Page> deleteRow(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        RecordId rid = t.getRecordId();
+        pool.getRowPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        pool.lockRow(tid, rid, Permissions.READ_WRITE, true);
+        // look again: the page may have been replaced while we waited for the row
+        HeapPage page = (HeapPage)pool.getRowPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        int free;
+        long lsn;
+        synchronized (page) {
+        	page.deleteTuple(t);
+        	page.markDirty(true, tid);
+        	try {
+        		lsn = pool.logRowChange(tid, LogFile.ROW_DELETE, t, page);
+        	} catch (IOException e) {
+        		throw new DbException("could not log the delete of " + rid + ": " + e);
+        	}
+        	free = page.getNumEmptySlots();
+        }
+        pool.addRowUndo(tid, () -> undoDelete(tid, t, rid, lsn));
+        freeSpace.update(rid.getPageId().getPageNumber(), free);
         ArrayList<Page> list = new ArrayList<>();
         list.add(page);
         return list;
@@ -152,30 +425,49 @@ public class HeapFile implements DbFile {
         return new DbFileIterator() {
         	
         	private int pgNo = -1;
+        	// numPages() as of the last time we ran out of pages
+        	private int pages = 0;
         	private Iterator<Tuple> tupleIter = null;
         	private final BufferPool pool = Database.getBufferPool();
         	private final int tableId = getId();
+        	private final ReadAhead readAhead = new ReadAhead();
+        	// frames to read through if the file is big compared to the pool
+        	private BufferRing ring = null;
         	
         	@Override
         	public void open()
     	        throws DbException, TransactionAbortedException {
         		pgNo = 0;
-        		tupleIter = ((HeapPage)pool.getPage(tid, new HeapPageId(tableId, pgNo++),
-						Permissions.READ_ONLY)).iterator();
+        		pages = numPages();
+        		ring = pool.ringFor(tid, pages);
+        		readAhead.reset(ring);
+        		tupleIter = nextPage();
         	}
         	@Override
     	    public boolean hasNext()
     	        throws DbException, TransactionAbortedException {
         		if (tupleIter != null && tupleIter.hasNext()) {
         			return true;
-        		} else if (pgNo < 0 || pgNo >= numPages()) {
+        		} else if (!hasPage(pgNo)) {
         			return false;
         		} else {
-    				tupleIter = ((HeapPage)pool.getPage(tid, new HeapPageId(tableId, pgNo++), 
-						Permissions.READ_ONLY)).iterator();
+    				tupleIter = nextPage();
     				return hasNext();
         		}
         	}
+        	private Iterator<Tuple> nextPage()
+        			throws DbException, TransactionAbortedException {
+        		readAhead.accessed(tableId, pgNo, pages);
+        		return ((HeapPage)pool.getPage(tid, new HeapPageId(tableId, pgNo++), 
+						Permissions.READ_ONLY, ring)).iterator();
+        	}
+        	private boolean hasPage(int pgNo) {
+        		if (pgNo >= pages) {
+        			// the file may have grown since we last looked
+        			pages = numPages();
+        		}
+        		return pgNo >= 0 && pgNo < pages;
+        	}
     	    @Override
     	    public Tuple next()
     	        throws DbException, TransactionAbortedException, NoSuchElementException {
@@ -1,11 +1,17 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.io.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the bytes it was read from and decodes tuples from them
+ * only when they are asked for, and then only the fields that are asked
+ * for (see {@link Tuple}). Slots that haven't changed since the page was
+ * read are copied back unchanged by {@link #getPageData}.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,13 +22,18 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    final AtomicReferenceArray<Tuple> tuples;
     final int numSlots;
+    /** The bytes the page was read from; never modified */
+    final byte[] data;
+    /** Slots whose bytes in data are out of date */
+    final BitSet changed;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
     
     private TransactionId tid = null;
+    private volatile long lsn = -1;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,6 +47,10 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * The page keeps data and decodes tuples from it on demand, so data
+     * must not be modified afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -44,24 +59,20 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize()) {
+            throw new EOFException("page data too short");
+        }
+        this.data = data;
+        this.changed = new BitSet(numSlots);
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        header = Arrays.copyOf(data, getHeaderSize());
         
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        // the tuples are decoded when they are first needed
+        tuples = new AtomicReferenceArray<Tuple>(numSlots);
 
-        setBeforeImage();
+        // data is the page as it is now, and nobody modifies it
+        oldData = data;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -115,36 +126,21 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in slot slotId, which must be in use, creating it
+     * on first use. Takes no lock, so scans don't wait on the page monitor
+     * (which BufferPool holds while it writes the page out): decoding is
+     * idempotent, and readers that race to decode the same slot all get
+     * whichever Tuple was published first.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private Tuple tuple(int slotId) {
+        Tuple t = tuples.get(slotId);
+        if (t == null) {
+            t = new Tuple(td, data, header.length + slotId * td.getSize());
+            t.setRecordId(new RecordId(pid, slotId));
+            if (!tuples.compareAndSet(slotId, null, t)) {
+                t = tuples.get(slotId);
             }
-            return null;
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
         return t;
     }
 
@@ -160,64 +156,31 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        // unchanged slots (and the padding) are as they were read
+        byte[] page = data.clone();
+        System.arraycopy(header, 0, page, 0, header.length);
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
+        int size = td.getSize();
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            int offset = header.length + i * size;
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                Arrays.fill(page, offset, offset + size, (byte) 0);
                 continue;
             }
-
-            // non-empty slot
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+            DataOutputStream dos = new DataOutputStream(baos);
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = tuples.get(i).getField(j);
                 try {
                     f.serialize(dos);
-                
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, page, offset, size);
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -249,7 +212,8 @@ public class HeapPage implements Page {
     		if (tupleno >= 0 && tupleno < numSlots) {
     			if (isSlotUsed(tupleno)) {
 	    			markSlotUsed(tupleno, false);
-	    			tuples[tupleno] = null;
+	    			tuples.set(tupleno, null);
+	    			changed.set(tupleno);
 	    			return;
     			} else {
         			throw new DbException("delete empty slot");
@@ -269,18 +233,44 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+    	int slotId = nextEmptySlot(0);
+    	if (slotId < 0) {
+    		throw new DbException("page is full");
+    	}
+    	insertTuple(t, slotId);
+    }
+
+    /**
+     * Adds the specified tuple to the page in slot slotId, which must be
+     * empty; the tuple is updated to reflect that it is now stored there.
+     * Used when the choice of slot matters, as with row locks.
+     *
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int slotId) throws DbException {
     	if (!td.equals(t.getTupleDesc())) {
     		throw new DbException("tupledesc is mismatch");
     	}
-    	for (int i = 0;  i < numSlots; ++i) {
+    	if (slotId < 0 || slotId >= numSlots || isSlotUsed(slotId)) {
+    		throw new DbException("slot " + slotId + " is not empty");
+    	}
+    	t.setRecordId(new RecordId(pid, slotId));
+    	tuples.set(slotId, t);
+    	markSlotUsed(slotId, true);
+    	changed.set(slotId);
+    }
+
+    /**
+     * @return the first empty slot from slot from on, or -1 if there is
+     *   none
+     */
+    int nextEmptySlot(int from) {
+    	for (int i = Math.max(from, 0); i < numSlots; ++i) {
     		if (!isSlotUsed(i)) {
-    			tuples[i] = t;
-    			t.setRecordId(new RecordId(pid, i));
-    			markSlotUsed(i, true);
-    			return;
+    			return i;
     		}
     	}
-    	throw new DbException("page is full");
+    	return -1;
     }
 
     /**
@@ -302,17 +292,28 @@ public class HeapPage implements Page {
         return tid;      
     }
 
+    public long getLSN() {
+    	return lsn;
+    }
+
+    public void setLSN(long lsn) {
+    	this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int ans = 0;
-        for (int i = 0; i < numSlots; ++i) {
-        	if (!isSlotUsed(i))
-        		++ans;
+        int used = 0;
+        for (int i = 0; i < numSlots >> 3; ++i) {
+        	used += Integer.bitCount(header[i] & 0xff);
+        }
+        for (int i = numSlots & ~7; i < numSlots; ++i) {
+        	if (isSlotUsed(i))
+        		++used;
         }
-        return ans;
+        return numSlots - used;
     }
 
     /**
@@ -358,7 +359,7 @@ public class HeapPage implements Page {
     		@Override
     		public Tuple next() {
     			if (hasNext()) {
-    				return tuples[cur++];
+    				return tuple(cur++);
     			} else {
     				throw new NoSuchElementException();
     			}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 /**
@@ -10,6 +11,9 @@ import java.util.NoSuchElementException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Tuples handed to the table per insertTuples call */
+    private static final int BATCH_SIZE = 1024;
     
     private final TupleDesc td;
     private final TransactionId tid;
@@ -68,12 +72,13 @@ public class Insert extends Operator {
      * inserted records. Inserts should be passed through BufferPool. An
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
-     * duplicate before inserting it.
+     * duplicate before inserting it. Tuples are passed on in batches of
+     * BATCH_SIZE, so the table can fill whole pages at a time.
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -83,13 +88,18 @@ public class Insert extends Operator {
         	Tuple tuple = new Tuple(td);
         	int num = 0;
         	BufferPool pool = Database.getBufferPool();
+        	ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
         	while (child.hasNext()) {
+        		batch.clear();
+        		while (batch.size() < BATCH_SIZE && child.hasNext()) {
+        			batch.add(child.next());
+        		}
         		try {
-					pool.insertTuple(tid, tableid, child.next());
+					pool.insertTuples(tid, tableid, batch.iterator());
 				} catch (IOException e) {
 					throw new DbException("insert tuple failed");
 				}
-        		++num;
+        		num += batch.size();
         	}
         	tuple.setField(0, new IntField(num));
         	state = true;
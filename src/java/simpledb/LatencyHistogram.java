@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts durations in buckets of powers of two
+ * nanoseconds, so recording one is a few atomic adds and percentiles are
+ * accurate to within a factor of two, which is enough to tell a
+ * microsecond from a millisecond.
+ *
+ * @Threadsafe
+ */
+public class LatencyHistogram {
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Records one duration of nanos nanoseconds. */
+	public void record(long nanos) {
+		nanos = Math.max(nanos, 0);
+		// bucket i holds durations from 2^i up to 2^(i+1), bucket 0 also 0
+		buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+		count.increment();
+		total.add(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+		}
+	}
+
+	/** @return the number of durations recorded */
+	public long count() {
+		return count.sum();
+	}
+
+	/** @return the sum of the durations recorded, in nanoseconds */
+	public long totalNanos() {
+		return total.sum();
+	}
+
+	/** @return the longest duration recorded, in nanoseconds */
+	public long maxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * @param p the share of durations, between 0 and 1
+	 * @return an upper bound of the p-th percentile of the durations, in
+	 *   nanoseconds, at most twice the true one; 0 if none were recorded
+	 */
+	public long percentileNanos(double p) {
+		long[] counts = new long[buckets.length()];
+		long n = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+		long rank = (long) Math.ceil(p * n);
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, maxNanos());
+			}
+		}
+		return 0;
+	}
+
+	/** Forgets everything recorded so far. */
+	public void reset() {
+		for (int i = 0; i < buckets.length(); ++i) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+}
@@ -1,212 +1,833 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.ReentrantLock;
 
-/* 
- * There are some problems with the deadLockDect
- * It will take 30s to pass the system test TransactionTest or even more
- * So I simply used the timer
+/**
+ * LockManager implements multi-granularity locks for the BufferPool:
+ * page-level shared/exclusive locks under table-level intention locks,
+ * and optionally row locks under page-level intention locks.
+ * <p>
+ * The lock table maps each locked object, a table, PageId or RecordId, to one
+ * canonical LockEntry, created on first use and dropped once nobody holds
+ * or waits for the lock. An entry has its own latch, the transactions
+ * holding the lock and a FIFO queue of waiting requests. A request that
+ * can't be granted right away joins the queue and sleeps on itself;
+ * whoever releases the lock grants queued requests in order, as long as
+ * they are compatible with the holders, and wakes exactly those. New
+ * requests don't barge past queued ones, so writers aren't starved by a
+ * stream of readers. A holder converting its lock to a stronger mode goes
+ * to the front of the queue.
+ * <p>
+ * Before locking a page, a transaction takes an intention lock on the
+ * page's table: IS to read the page, IX to write it. A transaction
+ * holding a table lock that covers what it wants of the page (S or SIX to
+ * read it, X for anything) doesn't lock the page at all. Once a
+ * transaction holds more than the escalation threshold of page locks in
+ * one table, the lock is escalated: it takes S on the table (X if it has
+ * locked any of the pages for writing) and gives up its page locks there.
+ * Escalation is only attempted when the table lock can be granted right
+ * away, so it never makes anyone wait; otherwise the transaction goes on
+ * locking pages and tries again with its next page. The threshold comes
+ * from the simpledb.LockEscalationThreshold system property.
+ * <p>
+ * Row locks work the same way one level down: a transaction takes IS or
+ * IX on the page (and its table) with {@link #acquireIntention}, then S or
+ * X on each RecordId with {@link #acquireRow}. Transactions changing
+ * different rows of a page don't block each other, while a transaction
+ * reading the whole page with an S lock waits for them. Row locks aren't
+ * escalated.
+ * <p>
+ * A waiting transaction waits for the holders of the lock it wants and for
+ * the requests queued ahead of it, wherever their modes conflict with its
+ * own. How the resulting deadlocks are dealt with is up to the
+ * {@link DeadlockPolicy}, read from the simpledb.DeadlockPolicy system
+ * property:
+ * <ul>
+ * <li>DETECT (the default): every transaction that has to wait adds its
+ * edges to the wait-for graph and searches it for a cycle through itself.
+ * Only the transaction closing a cycle can find it, so the graph is
+ * searched once per wait rather than scanned periodically, and a deadlock
+ * is broken as soon as it forms. The youngest transaction in the cycle is
+ * aborted; it has done the least work, and the others keep their age if
+ * the cycle forms again.
+ * <li>WAIT_DIE: a transaction may only wait for younger ones; if it would
+ * wait for an older one it aborts instead.
+ * <li>WOUND_WAIT: a transaction that would wait for younger ones wounds
+ * them first: those waiting abort right away, those running abort at
+ * their next lock request, unless they finish before.
+ * </ul>
+ * The age of a transaction is the order of its TransactionId. Either way
+ * the aborted transaction's acquire throws TransactionAbortedException,
+ * and nobody waits without a reason.
+ * <p>
+ * Each transaction's locks are also listed under its TransactionId, so
+ * releaseAll only visits the objects the transaction has locked.
+ * <p>
+ * Lock waits, queued requests and aborts are counted in the lock
+ * manager's {@link ContentionStats}.
+ *
+ * @Threadsafe
  */
 public class LockManager {
-	
-	private static final Byte FK = 0;
-	private static final int MINTIME = 100, MAXLEN = 900;
-	private final Random random = new Random();
-	
-	private final Map<PageId, Map<TransactionId, Byte>> pageReadHolders;
-	private final Map<PageId, TransactionId> pageWriteHolder;
-	// private final Map<TransactionId, Map<PageId, Byte>> waitList;
-	
+
+	/** Lock escalation threshold used if the property is not set */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+	/** How lock waits are kept from deadlocking. */
+	public enum DeadlockPolicy {
+		DETECT, WAIT_DIE, WOUND_WAIT;
+
+		/**
+		 * @return the policy named by the simpledb.DeadlockPolicy system
+		 *   property, or DETECT if the property is not set.
+		 */
+		public static DeadlockPolicy fromProperty() {
+			String name = System.getProperty("simpledb.DeadlockPolicy");
+			if (name == null || name.length() == 0) {
+				return DETECT;
+			}
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	/**
+	 * Lock modes, weakest first. Pages are only locked in S and X; tables
+	 * in any mode.
+	 */
+	public enum LockMode {
+		/** intention to read parts */
+		IS,
+		/** intention to write parts */
+		IX,
+		/** shared */
+		S,
+		/** shared, with intention to write parts */
+		SIX,
+		/** exclusive */
+		X;
+
+		private static final boolean[][] COMPATIBLE = {
+			//         IS     IX     S      SIX    X
+			/* IS  */ { true,  true,  true,  true,  false },
+			/* IX  */ { true,  true,  false, false, false },
+			/* S   */ { true,  false, true,  false, false },
+			/* SIX */ { true,  false, false, false, false },
+			/* X   */ { false, false, false, false, false },
+		};
+
+		/** @return whether two transactions may hold this and other at once */
+		public boolean compatible(LockMode other) {
+			return COMPATIBLE[ordinal()][other.ordinal()];
+		}
+
+		/** @return the weakest mode that grants both this and other */
+		public LockMode join(LockMode other) {
+			if ((this == IX && other == S) || (this == S && other == IX)) {
+				return SIX;
+			}
+			return ordinal() >= other.ordinal() ? this : other;
+		}
+
+		/** @return whether holding this grants everything other does */
+		public boolean covers(LockMode other) {
+			return join(other) == this;
+		}
+	}
+
+	/** The lock table key of a whole table. */
+	private static final class TableKey {
+		final int tableId;
+
+		TableKey(int tableId) {
+			this.tableId = tableId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+		}
+
+		@Override
+		public int hashCode() {
+			return tableId * 0x9e3779b1;
+		}
+
+		@Override
+		public String toString() {
+			return "table " + tableId;
+		}
+	}
+
+	/**
+	 * A transaction waiting for a lock. The waiter sleeps on the request's
+	 * monitor, which also guards granted and aborted: whichever is set
+	 * first wins.
+	 */
+	private static class Request {
+		final TransactionId tid;
+		final LockMode mode;
+		final LockEntry entry;
+		boolean granted = false;
+		boolean aborted = false;
+
+		Request(TransactionId tid, LockMode mode, LockEntry entry) {
+			this.tid = tid;
+			this.mode = mode;
+			this.entry = entry;
+		}
+
+		synchronized boolean waiting() {
+			return !granted && !aborted;
+		}
+
+		/** Aborts the request unless it has been granted already. */
+		synchronized boolean abort() {
+			if (granted) {
+				return false;
+			}
+			aborted = true;
+			notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * The lock on one object. Changes are made under latch; holders and
+	 * queue are concurrent collections so the deadlock checks can read the
+	 * entries of other objects without latching them.
+	 */
+	private static class LockEntry {
+		final ReentrantLock latch = new ReentrantLock();
+		final Map<TransactionId, LockMode> holders =
+			new ConcurrentHashMap<TransactionId, LockMode>();
+		final ConcurrentLinkedDeque<Request> queue = new ConcurrentLinkedDeque<Request>();
+		/** Set once the entry has left the lock table */
+		boolean removed = false;
+
+		/** @return whether tid could hold the lock in mode next to the holders */
+		boolean compatible(TransactionId tid, LockMode mode) {
+			for (Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+				if (!h.getKey().equals(tid) && !mode.compatible(h.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Grants queued requests in order until one has to keep waiting. */
+		void grantWaiters() {
+			Request r;
+			while ((r = queue.peek()) != null) {
+				synchronized (r) {
+					if (!r.aborted) {
+						if (!compatible(r.tid, r.mode)) {
+							return;
+						}
+						grant(r.tid, r.mode);
+						r.granted = true;
+						r.notifyAll();
+					}
+				}
+				queue.poll();
+			}
+		}
+
+		void grant(TransactionId tid, LockMode mode) {
+			LockMode held = holders.get(tid);
+			holders.put(tid, held == null ? mode : held.join(mode));
+		}
+	}
+
+	/**
+	 * The locks one transaction holds. Only the transaction's own threads
+	 * change it.
+	 */
+	private static class Holdings {
+		/** Every PageId and TableKey locked */
+		final Set<Object> keys = ConcurrentHashMap.newKeySet();
+		/**
+		 * Per table, the number of its pages locked and whether any were
+		 * locked for writing
+		 */
+		final Map<Integer, int[]> pages = new HashMap<Integer, int[]>();
+	}
+
+	/** @return whether a is younger than b */
+	private static boolean younger(TransactionId a, TransactionId b) {
+		return a.getId() > b.getId();
+	}
+
+	private static LockMode modeOf(Permissions p) {
+		return p == Permissions.READ_ONLY ? LockMode.S : LockMode.X;
+	}
+
+	private final ConcurrentHashMap<Object, LockEntry> table;
+	private final DeadlockPolicy policy;
+	private final int escalationThreshold;
+	/** The request each waiting transaction waits on */
+	private final ConcurrentHashMap<TransactionId, Request> waiting;
+	/** Transactions wounded under WOUND_WAIT that haven't aborted yet */
+	private final Set<TransactionId> wounded;
+	/** What each transaction has locked */
+	private final ConcurrentHashMap<TransactionId, Holdings> holdings;
+	/** Serializes the deadlock checks */
+	private final Object checkLock = new Object();
+	private final ContentionStats stats;
+
 	public LockManager() {
-		this.pageReadHolders = new ConcurrentHashMap<PageId, Map<TransactionId,Byte>>();
-		this.pageWriteHolder = new ConcurrentHashMap<PageId, TransactionId>();
-		// this.waitList = new ConcurrentHashMap<TransactionId, Map<PageId, Byte>>();
+		this(new ContentionStats());
+	}
+
+	/** Creates a lock manager counting its waits in stats. */
+	LockManager(ContentionStats stats) {
+		this(DeadlockPolicy.fromProperty(), Integer.getInteger(
+			"simpledb.LockEscalationThreshold", DEFAULT_ESCALATION_THRESHOLD), stats);
+	}
+
+	public LockManager(DeadlockPolicy policy) {
+		this(policy, DEFAULT_ESCALATION_THRESHOLD);
+	}
+
+	/**
+	 * @param escalationThreshold the number of page locks a transaction may
+	 *   hold in one table before they are escalated to a table lock
+	 */
+	public LockManager(DeadlockPolicy policy, int escalationThreshold) {
+		this(policy, escalationThreshold, new ContentionStats());
+	}
+
+	private LockManager(DeadlockPolicy policy, int escalationThreshold, ContentionStats stats) {
+		this.table = new ConcurrentHashMap<Object, LockEntry>();
+		this.policy = policy;
+		this.escalationThreshold = escalationThreshold;
+		this.waiting = new ConcurrentHashMap<TransactionId, Request>();
+		this.wounded = ConcurrentHashMap.newKeySet();
+		this.holdings = new ConcurrentHashMap<TransactionId, Holdings>();
+		this.stats = stats;
+	}
+
+	/** @return the deadlock policy of this lock manager */
+	public DeadlockPolicy getDeadlockPolicy() {
+		return policy;
+	}
+
+	/** @return the lock escalation threshold of this lock manager */
+	public int getEscalationThreshold() {
+		return escalationThreshold;
+	}
+
+	/** @return the stats lock waits and aborts are counted in */
+	public ContentionStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Returns the entry of key with its latch held, creating it if needed.
+	 */
+	private LockEntry latch(Object key) {
+		while (true) {
+			LockEntry e = table.computeIfAbsent(key, k -> new LockEntry());
+			e.latch.lock();
+			if (!e.removed) {
+				return e;
+			}
+			// it was dropped while we waited for its latch; take the new one
+			e.latch.unlock();
+		}
 	}
-	
+
+	/**
+	 * Releases the latch of e, first dropping e from the table if nobody
+	 * holds or waits for it any more.
+	 */
+	private void unlatch(Object key, LockEntry e) {
+		if (e.holders.isEmpty() && e.queue.isEmpty()) {
+			e.removed = true;
+			table.remove(key, e);
+		}
+		e.latch.unlock();
+	}
+
+	/** @return the mode tid holds the lock on key in, or null */
+	private LockMode held(TransactionId tid, Object key) {
+		LockEntry e = table.get(key);
+		return e == null ? null : e.holders.get(tid);
+	}
+
+	/**
+	 * Acquires the lock on pid in mode p for tid, waiting until it can be
+	 * granted. The page's table is locked in the matching intention mode
+	 * first, unless tid's table lock already covers the page.
+	 *
+	 * @throws TransactionAbortedException if tid was chosen to abort by the
+	 *   deadlock policy, or the wait was interrupted
+	 */
 	public void acquire(TransactionId tid, PageId pid, Permissions p)
 		throws TransactionAbortedException {
-		/* waitList.computeIfAbsent(tid, key ->
-			new ConcurrentHashMap<PageId, Byte>()).put(pid, FK); */
+		acquire(tid, pid, p, true);
+	}
+
+	/**
+	 * Acquires the lock on pid in mode p for tid, like
+	 * {@link #acquire(TransactionId, PageId, Permissions)}.
+	 *
+	 * @param wait whether to wait if the page or table lock can't be granted
+	 *   right away
+	 * @return whether tid holds the lock now; only false if wait is false
+	 * @throws TransactionAbortedException as for acquire
+	 */
+	public boolean acquire(TransactionId tid, PageId pid, Permissions p, boolean wait)
+		throws TransactionAbortedException {
+		LockMode mode = modeOf(p);
+		TableKey tk = new TableKey(pid.getTableId());
+		LockMode tableHeld = held(tid, tk);
+		if (tableHeld != null && tableHeld.covers(mode)) {
+			if (policy == DeadlockPolicy.WOUND_WAIT && wounded.contains(tid)) {
+				stats.deadlockAbort();
+				throw new TransactionAbortedException();
+			}
+			return true;
+		}
+		LockMode intention = mode == LockMode.S ? LockMode.IS : LockMode.IX;
+		if (tableHeld == null || !tableHeld.covers(intention)) {
+			lock(tid, tk, intention, wait);
+			tableHeld = held(tid, tk);
+			if (tableHeld == null || !tableHeld.covers(intention)) {
+				return false;
+			}
+		}
+		boolean fresh = lock(tid, pid, mode, wait);
+		LockMode pageHeld = held(tid, pid);
+		if (pageHeld == null || !pageHeld.covers(mode)) {
+			return false;
+		}
+		pageLocked(tid, tk, mode, fresh);
+		return true;
+	}
+
+	/**
+	 * Acquires the intention lock for locking rows of pid in mode p: IS on
+	 * pid and its table for reading, IX for writing, unless tid's table or
+	 * page locks cover that already.
+	 *
+	 * @throws TransactionAbortedException as for acquire
+	 */
+	public void acquireIntention(TransactionId tid, PageId pid, Permissions p)
+		throws TransactionAbortedException {
+		LockMode intention = p == Permissions.READ_ONLY ? LockMode.IS : LockMode.IX;
+		TableKey tk = new TableKey(pid.getTableId());
+		LockMode tableHeld = held(tid, tk);
+		if (tableHeld != null && tableHeld.covers(modeOf(p))) {
+			return;
+		}
+		if (tableHeld == null || !tableHeld.covers(intention)) {
+			lock(tid, tk, intention, true);
+		}
+		lock(tid, pid, intention, true);
+	}
+
+	/**
+	 * Acquires the lock on row rid in mode p for tid, which must hold the
+	 * matching intention lock on the row's page already; see
+	 * acquireIntention. Nothing is locked if tid's page or table lock
+	 * covers the row.
+	 *
+	 * @param wait whether to wait if the lock can't be granted right away
+	 * @return whether tid now holds the row in mode p; only false if wait
+	 *   is false
+	 * @throws TransactionAbortedException as for acquire
+	 */
+	public boolean acquireRow(TransactionId tid, RecordId rid, Permissions p, boolean wait)
+		throws TransactionAbortedException {
+		LockMode mode = modeOf(p);
+		PageId pid = rid.getPageId();
+		LockMode pageHeld = held(tid, pid);
+		if (pageHeld != null && pageHeld.covers(mode)) {
+			return true;
+		}
+		LockMode tableHeld = held(tid, new TableKey(pid.getTableId()));
+		if (tableHeld != null && tableHeld.covers(mode)) {
+			return true;
+		}
+		lock(tid, rid, mode, wait);
+		LockMode held = held(tid, rid);
+		return held != null && held.covers(mode);
+	}
+
+	/**
+	 * @return whether tid holds a lock on row rid, or a page or table lock
+	 *   that covers it
+	 */
+	public boolean hold(TransactionId tid, RecordId rid) {
+		if (held(tid, rid) != null) {
+			return true;
+		}
+		LockMode pageHeld = held(tid, rid.getPageId());
+		LockMode tableHeld = held(tid, new TableKey(rid.getPageId().getTableId()));
+		return (pageHeld != null && pageHeld.covers(LockMode.S))
+			|| (tableHeld != null && tableHeld.covers(LockMode.S));
+	}
+
+	/**
+	 * Acquires the lock on table tableId in mode p for tid, covering all of
+	 * its pages, and waits until it can be granted.
+	 *
+	 * @throws TransactionAbortedException as for acquire
+	 */
+	public void acquireTable(TransactionId tid, int tableId, Permissions p)
+		throws TransactionAbortedException {
+		TableKey tk = new TableKey(tableId);
+		lock(tid, tk, modeOf(p), true);
+		releasePages(tid, tk);
+	}
+
+	/**
+	 * Locks key in mode for tid.
+	 *
+	 * @param wait whether to wait if the lock can't be granted right away
+	 * @return whether tid got a lock it didn't hold in any mode before;
+	 *   false also if wait is false and the lock wasn't granted
+	 */
+	private boolean lock(TransactionId tid, Object key, LockMode mode, boolean wait)
+		throws TransactionAbortedException {
+		if (policy == DeadlockPolicy.WOUND_WAIT && wounded.contains(tid)) {
+			stats.deadlockAbort();
+			throw new TransactionAbortedException();
+		}
+		Request r;
+		LockEntry e = latch(key);
 		try {
-			if (p == Permissions.READ_ONLY) {
-				acquireReadLock(tid, pid);
+			LockMode held = e.holders.get(tid);
+			if (held != null && held.covers(mode)) {
+				return false;
+			}
+			boolean upgrade = held != null;
+			if (upgrade) {
+				mode = held.join(mode);
+			}
+			// upgrades may go first: the other holders can't be waiting behind us
+			if (e.compatible(tid, mode) && (upgrade || e.queue.isEmpty())) {
+				e.grant(tid, mode);
+				holdings(tid).keys.add(key);
+				return !upgrade;
+			}
+			if (!wait) {
+				return false;
+			}
+			r = new Request(tid, mode, e);
+			if (upgrade) {
+				e.queue.addFirst(r);
 			} else {
-				acquireWriteLock(tid, pid);
+				e.queue.addLast(r);
 			}
-		} catch (InterruptedException e) {
-			throw new TransactionAbortedException();
+			if (!mayWait(r)) {
+				e.queue.remove(r);
+				// requests behind us may be grantable now
+				e.grantWaiters();
+				stats.deadlockAbort();
+				throw new TransactionAbortedException();
+			}
+			stats.lockQueued(e.queue.size());
+		} finally {
+			unlatch(key, e);
 		}
-		/* waitList.get(tid).remove(pid);
-		if (waitList.get(tid).isEmpty()) {
-			waitList.remove(tid);
-		} */
-	}
-	
-	private void acquireReadLock(TransactionId tid, PageId pid)
-		throws InterruptedException {
-		if (!hold(tid, pid)) {
-			synchronized (pid) {
-				Thread thread = Thread.currentThread();
-				Timer timer = new Timer(true);
-				timer.schedule(new TimerTask() {
-					@Override 
-					public void run() {
-						thread.interrupt();
-					}
-				}, MINTIME + random.nextInt(MAXLEN));
-				while (pageWriteHolder.containsKey(pid)) {
-					/* deadLockDetect(tid, pid);
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					} */
-					pid.wait(5);
+
+		long start = System.nanoTime();
+		boolean interrupted = false;
+		try {
+			synchronized (r) {
+				while (!r.granted && !r.aborted) {
+					r.wait();
 				}
-				timer.cancel();
-				pageReadHolders.computeIfAbsent(pid, key ->
-					new ConcurrentHashMap<TransactionId, Byte>()).put(tid, FK);
-			}
-		}
-	}
-	
-	private void acquireWriteLock(TransactionId tid, PageId pid)
-		throws InterruptedException {
-		if (!holdWriteLock(tid, pid)) {
-			synchronized (pid) {
-				Thread thread = Thread.currentThread();
-				Timer timer = new Timer(true);
-				timer.schedule(new TimerTask() {
-					@Override 
-					public void run() {
-						thread.interrupt();
-					}
-				}, MINTIME + random.nextInt(MAXLEN));
-				while (pageWriteHolder.containsKey(pid) || 
-					haveOtherReader(tid, pid)) {
-					/* deadLockDetect(tid, pid);
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					} */
-					pid.wait(5);
+			}
+		} catch (InterruptedException ex) {
+			interrupted = r.abort();
+		} finally {
+			waiting.remove(tid, r);
+			waited(key, System.nanoTime() - start);
+		}
+		if (!r.granted) {
+			if (interrupted) {
+				stats.interruptedAbort();
+			} else {
+				stats.deadlockAbort();
+			}
+			e.latch.lock();
+			try {
+				// once aborted, r is skipped by grantWaiters and may be gone
+				if (!e.removed && e.queue.remove(r)) {
+					e.grantWaiters();
 				}
-				timer.cancel();
-				pageWriteHolder.put(pid, tid);
+			} finally {
+				unlatch(key, e);
 			}
+			throw new TransactionAbortedException();
 		}
+		return holdings(tid).keys.add(key);
 	}
-	
-	private boolean haveOtherReader(TransactionId tid, PageId pid) {
-		synchronized (pid) {
-			if (pageReadHolders.containsKey(pid)) {
-				for (TransactionId t : pageReadHolders.get(pid).keySet()) {
-					if (!t.equals(tid)) {
-						return true;
-					}
+
+	/** Counts a wait for the lock on key that took nanos nanoseconds. */
+	private void waited(Object key, long nanos) {
+		if (key instanceof TableKey) {
+			stats.lockWaited(null, ((TableKey) key).tableId, nanos);
+			return;
+		}
+		PageId pid = key instanceof RecordId ? ((RecordId) key).getPageId() : (PageId) key;
+		stats.lockWaited(pid, pid.getTableId(), nanos);
+	}
+
+	private Holdings holdings(TransactionId tid) {
+		return holdings.computeIfAbsent(tid, key -> new Holdings());
+	}
+
+	/**
+	 * Counts a page lock tid has got in table tk, and escalates tid's locks
+	 * in tk if there are too many.
+	 *
+	 * @param fresh whether tid didn't hold the page's lock before, rather
+	 *   than having upgraded it
+	 */
+	private void pageLocked(TransactionId tid, TableKey tk, LockMode mode, boolean fresh)
+		throws TransactionAbortedException {
+		Holdings h = holdings(tid);
+		LockMode target;
+		synchronized (h) {
+			int[] count = h.pages.computeIfAbsent(tk.tableId, key -> new int[2]);
+			if (fresh) {
+				++count[0];
+			}
+			if (mode == LockMode.X) {
+				count[1] = 1;
+			}
+			if (count[0] <= escalationThreshold) {
+				return;
+			}
+			target = count[1] > 0 ? LockMode.X : LockMode.S;
+		}
+		lock(tid, tk, target, false);
+		if (held(tid, tk).covers(target)) {
+			releasePages(tid, tk);
+		}
+	}
+
+	/**
+	 * Releases the page locks tid holds in table tk that its lock on tk
+	 * covers.
+	 */
+	private void releasePages(TransactionId tid, TableKey tk) {
+		Holdings h = holdings.get(tid);
+		LockMode tableHeld = held(tid, tk);
+		if (h == null || tableHeld == null) {
+			return;
+		}
+		int pages = 0;
+		int writes = 0;
+		for (Iterator<Object> it = h.keys.iterator(); it.hasNext(); ) {
+			Object key = it.next();
+			if (key instanceof PageId && ((PageId) key).getTableId() == tk.tableId) {
+				LockMode mode = held(tid, key);
+				if (mode == null || tableHeld.covers(mode)) {
+					it.remove();
+					unlock(tid, key);
+				} else {
+					++pages;
+					++writes;
 				}
 			}
-			return false;
+		}
+		synchronized (h) {
+			h.pages.put(tk.tableId, new int[] { pages, Math.min(writes, 1) });
 		}
 	}
-	
-	public void release(TransactionId tid, PageId pid) {
-		releaseWriteLock(tid, pid);
-		releaseReadLock(tid, pid);
-	}
-	
-	private void releaseReadLock(TransactionId tid, PageId pid) {
-		if (holdReadLock(tid, pid)) {
-			synchronized (pid) {
-				pageReadHolders.get(pid).remove(tid);
-				if (pageReadHolders.get(pid).isEmpty()) {
-					pageReadHolders.remove(pid);
+
+	/**
+	 * Applies the deadlock policy to r, which has just been queued.
+	 *
+	 * @return whether r may wait, or has to abort
+	 */
+	private boolean mayWait(Request r) {
+		synchronized (checkLock) {
+			switch (policy) {
+			case WAIT_DIE:
+				for (TransactionId b : blockers(r)) {
+					if (younger(r.tid, b)) {
+						return false;
+					}
+				}
+				break;
+			case WOUND_WAIT:
+				for (TransactionId b : blockers(r)) {
+					if (younger(b, r.tid) && wounded.add(b)) {
+						Request w = waiting.get(b);
+						if (w != null) {
+							w.abort();
+						}
+					}
+				}
+				break;
+			default:
+				waiting.put(r.tid, r);
+				List<TransactionId> cycle;
+				// we may have closed more than one cycle
+				while ((cycle = findCycle(r.tid)) != null) {
+					TransactionId victim = r.tid;
+					for (TransactionId t : cycle) {
+						if (younger(t, victim)) {
+							victim = t;
+						}
+					}
+					if (victim.equals(r.tid)) {
+						waiting.remove(r.tid, r);
+						return false;
+					}
+					Request v = waiting.get(victim);
+					if (v == null || !v.abort()) {
+						// it got the lock after all; look again
+						continue;
+					}
 				}
+				return true;
 			}
+			waiting.put(r.tid, r);
+			return true;
 		}
 	}
-	
-	private void releaseWriteLock(TransactionId tid, PageId pid) {
-		if (holdWriteLock(tid, pid)) {
-			synchronized (pid) {
-				pageWriteHolder.remove(pid);
+
+	/**
+	 * @return the transactions that the waiting request r waits for: those
+	 *   holding or queued ahead for r's lock in a conflicting mode
+	 */
+	private static List<TransactionId> blockers(Request r) {
+		List<TransactionId> result = new ArrayList<TransactionId>();
+		for (Map.Entry<TransactionId, LockMode> h : r.entry.holders.entrySet()) {
+			if (!h.getKey().equals(r.tid) && !r.mode.compatible(h.getValue())) {
+				result.add(h.getKey());
 			}
 		}
+		for (Request q : r.entry.queue) {
+			if (q == r) {
+				break;
+			}
+			if (!q.tid.equals(r.tid) && !r.mode.compatible(q.mode) && q.waiting()) {
+				result.add(q.tid);
+			}
+		}
+		return result;
 	}
-	
-	public boolean hold(TransactionId tid, PageId pid) {
-		return holdReadLock(tid, pid) || holdWriteLock(tid, pid);
+
+	/**
+	 * Searches the wait-for graph depth first for a path from start back to
+	 * itself.
+	 *
+	 * @return the transactions on the cycle, or null if there is none
+	 */
+	private List<TransactionId> findCycle(TransactionId start) {
+		List<TransactionId> path = new ArrayList<TransactionId>();
+		path.add(start);
+		return findCycle(start, path, new HashSet<TransactionId>()) ? path : null;
 	}
-	
-	private boolean holdReadLock(TransactionId tid, PageId pid) {
-		synchronized (pid) {
-			return pageReadHolders.containsKey(pid) && 
-					pageReadHolders.get(pid).containsKey(tid);
+
+	private boolean findCycle(TransactionId start, List<TransactionId> path,
+			Set<TransactionId> visited) {
+		Request r = waiting.get(path.get(path.size() - 1));
+		if (r == null || !r.waiting()) {
+			return false;
+		}
+		for (TransactionId b : blockers(r)) {
+			if (b.equals(start)) {
+				return true;
+			}
+			if (visited.add(b)) {
+				path.add(b);
+				if (findCycle(start, path, visited)) {
+					return true;
+				}
+				path.remove(path.size() - 1);
+			}
 		}
+		return false;
 	}
-	
-	private boolean holdWriteLock(TransactionId tid, PageId pid) {
-		synchronized (pid) {
-			return pageWriteHolder.containsKey(pid) && 
-					pageWriteHolder.get(pid).equals(tid);
+
+	/**
+	 * Releases the lock tid holds on pid, if any. A page covered by a table
+	 * lock stays locked until the table lock is released.
+	 */
+	public void release(TransactionId tid, PageId pid) {
+		Holdings h = holdings.get(tid);
+		if (h == null || !h.keys.remove(pid)) {
+			return;
 		}
+		synchronized (h) {
+			int[] count = h.pages.get(pid.getTableId());
+			if (count != null) {
+				--count[0];
+			}
+		}
+		unlock(tid, pid);
 	}
-	
-	public void releaseAll(TransactionId tid) {
-		// release waitList first
-		/* if (waitList.containsKey(tid)) {
-			waitList.remove(tid);
-		} */
-		for (PageId pid : pageWriteHolder.keySet()) {
-			releaseWriteLock(tid, pid);
+
+	private void unlock(TransactionId tid, Object key) {
+		LockEntry e = table.get(key);
+		if (e == null) {
+			return;
 		}
-		for (PageId pid : pageReadHolders.keySet()) {
-			releaseReadLock(tid, pid);
+		e.latch.lock();
+		try {
+			if (!e.removed && e.holders.remove(tid) != null) {
+				e.grantWaiters();
+			}
+		} finally {
+			unlatch(key, e);
 		}
 	}
-	
-	/* 
-	 * There are some problems with the deadLockDect
-	 * It will take 30s to pass the system test TransactionTest
-	 * or even more
+
+	/**
+	 * @return whether tid holds a lock on pid, in either mode, or a table
+	 *   lock that covers it
 	 */
-	/* private void deadLockDetect(TransactionId tid, PageId pid) 
-		throws TransactionAbortedException {
-		deadLockDetect(new ConcurrentHashMap<TransactionId, Byte>(), tid, pid);
+	public boolean hold(TransactionId tid, PageId pid) {
+		if (held(tid, pid) != null) {
+			return true;
+		}
+		LockMode tableHeld = held(tid, new TableKey(pid.getTableId()));
+		return tableHeld != null && tableHeld.covers(LockMode.S);
 	}
-	
-	private void deadLockDetect(Map<TransactionId, Byte> tMap, TransactionId tid, PageId pid) 
-		throws TransactionAbortedException {
-		if (tMap.containsKey(tid)) {
-            throw new TransactionAbortedException();
-        }
-        tMap.put(tid, FK);
-        Map<TransactionId, Byte> tIds = pageReadHolders.getOrDefault(pid, null);
-        if (tIds != null) {
-        	for (TransactionId t : tIds.keySet()) {
-        		if (t.equals(tid)) continue;
-        		Map<PageId, Byte> pageIds = waitList.getOrDefault(t, null);
-        		if (pageIds != null) {
-        			for (PageId pageId : pageIds.keySet()) {
-        				deadLockDetect(tMap, t, pageId);
-        			}
-        		}
-        	}
-        }
-        TransactionId t = pageWriteHolder.getOrDefault(pid, null);
-        if (t != null && (tIds == null || !tIds.containsKey(t))) {
-        	Map<PageId, Byte> pageIds = waitList.getOrDefault(t, null);
-    		if (pageIds != null) {
-    			for (PageId pageId : pageIds.keySet()) {
-    				deadLockDetect(tMap, t, pageId);
-    			}
-    		}
-        }
-	} */
-	
+
+	/**
+	 * @return whether tid holds a lock on pid, or a table lock, that covers
+	 *   mode p
+	 */
+	public boolean hold(TransactionId tid, PageId pid, Permissions p) {
+		LockMode mode = modeOf(p);
+		LockMode pageHeld = held(tid, pid);
+		LockMode tableHeld = held(tid, new TableKey(pid.getTableId()));
+		return (pageHeld != null && pageHeld.covers(mode))
+			|| (tableHeld != null && tableHeld.covers(mode));
+	}
+
+	/** @return the mode tid holds the lock on table tableId in, or null */
+	public LockMode tableMode(TransactionId tid, int tableId) {
+		return held(tid, new TableKey(tableId));
+	}
+
+	/** Releases every lock tid holds; tid is done. */
+	public void releaseAll(TransactionId tid) {
+		Holdings h = holdings.remove(tid);
+		if (h != null) {
+			for (Object key : h.keys) {
+				unlock(tid, key);
+			}
+		}
+		wounded.remove(tid);
+	}
+
 }
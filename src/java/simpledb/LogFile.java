@@ -3,7 +3,11 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +36,113 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+The BufferPool writes log records while holding the monitor of the
+page it logs, so the pool's pages themselves must only be written or
+installed outside the LogFile monitor, still holding the BufferPool's.
+
+<p>
+<u> STEAL/NO-FORCE: </u>
+<p>
+
+The BufferPool may write a page of a running transaction to disk, after
+logging it with its before image, and commits only log the pages their
+transaction dirtied (see {@link BufferPool#logPages}).  A page is only
+written once the log is forced up to its LSN ({@link Page#getLSN}).  So
+an abort restores the before images of the pages that were written out
+({@link #rollback}), and after a crash {@link #recover} redoes what the
+log holds and undoes the transactions that didn't finish.
+
+<p>
+Pages that transactions change single rows of, under row locks, may
+hold the uncommitted rows of several transactions, so they can't be
+undone by restoring a before image.  Each such change is logged with a
+ROW record of the row itself as it is made, before the page can be
+written, and the page is logged with ROW records of after images only.
+An abort undoes its row changes one by one, logging each undo with a
+ROW record that names the change it undoes.
+
+<p>
+Pages don't keep their LSN on disk.  When the BufferPool writes out a
+page of a transaction that didn't begin in the log, such as a batch of
+{@link BulkLoader}, the page on disk is newer than any image of it in
+the log, so it logs a WRITTEN record of the page after writing it: the
+LSN of that record is the LSN of the page on disk.
+
+<p>
+<u> Recovery: </u>
+<p>
+
+Recovery follows ARIES, with whole page images instead of operations.
+Analysis starts from the tables the last checkpoint recorded: the
+active transactions and the BufferPool's dirty page table, which has
+the offset of the first record each dirty page needs redone.  It reads
+the log from where the checkpoint began, to find the transactions that
+never finished (the losers) and the pages dirtied since.  Redo then
+reads the log from the oldest record either of them needs, and hands
+each after image redo needs to one of simpledb.RecoveryThreads workers,
+chosen by its PageId, so each page is redone by a single worker; as
+images are idempotent, only the last one of each page is written,
+unless a WRITTEN record after it shows the page on disk is newer.
+Undo puts back the before image each loser first logged with an UPDATE
+record of each page, after logging it as a compensation record.  Then,
+once the B+ tree splits the crash cut short are completed, it undoes the
+row changes of each loser, latest first, except those an abort had
+already undone, and aborts the losers.
+
+<p>
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: they write no pages and don't hold the
+BufferPool, so transactions go on while one is taken.  A checkpoint
+notes where the log ends, copies the BufferPool's dirty page table, and
+then appends the CHECKPOINT record with it and the active transactions;
+analysis reads the log from the noted offset, as the tables may miss
+what happened in between.  A checkpointer thread takes them after
+simpledb.CheckpointIntervalMillis milliseconds or
+simpledb.CheckpointLogBytes bytes of log since the last one (see {@link
+#setCheckpointSchedule}), and every tick writes out the
+simpledb.BackgroundWritePages dirty pages of finished transactions that
+have been dirty longest, so redo has less to do and the log can be
+truncated past them.  Like the writer, it is started by appends and
+stops when idle, once no checkpoint is due on the interval for what
+was appended.  A checkpoint only truncates the log once that drops
+at least half of it, and at least TRUNCATE_MIN_BYTES; the records kept
+are copied to a new file without holding the LogFile monitor.
+
+<p>
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file as they are appended, but
+serialized into an in-memory log buffer.  A log writer thread hands the
+buffer to the file in large sequential writes, whenever someone waits
+for the log to be forced, when the buffer holds WRITE_CHUNK bytes, or
+after a short while otherwise.  Appenders only wait for it when the
+buffer is full (see simpledb.LogBufferBytes).  The writer stops after a
+second without work and is started again by the next append.
+
+<p>
+Every record has a log sequence number (LSN): the position of its first
+byte in the log as a whole, counting the bytes that truncation has since
+removed from the file, so LSNs grow for the life of a LogFile.  {@link
+#force(long)} waits until the flushed LSN, the end of what the writer
+has written and forced to disk, is past a given LSN.
+
+<p>
+<u> Group commit: </u>
+<p>
+
+A commit appends its COMMIT record and waits, without holding the
+LogFile monitor, until the writer has forced it.  Before forcing, the
+writer waits up to simpledb.GroupCommitWaitMicros microseconds for more
+committers to join, or until simpledb.GroupCommitMaxBatch of them have,
+then forces the log once for all of them.  Committers that append while
+it forces queue up for the next force.  The writer only waits while
+other transactions are running that could join, so a lone committer is
+not delayed.  See {@link #setGroupCommit}.
 */
 
 /**
@@ -51,8 +162,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, ROW, and WRITTEN
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -65,7 +176,21 @@ methods.  See LogFile.print() for an example.
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  Then comes the dirty page table: an
+integer count of pages, and for each a page id (its class name, an
+integer count of integers and the integers of PageId.serialize) and the
+long integer offset of the first record redo needs.  Last is the long
+integer offset where the checkpoint began; records between there and the
+CHECKPOINT record may not be reflected in its tables.
+
+<li> ROW records begin with a byte telling their change: ROW_PAGES,
+ROW_INSERT, ROW_DELETE or ROW_UNDO.  An insert or delete is followed by
+the row: its page id, an integer slot, and an integer count of bytes
+with its serialized fields.  An undo is followed by the long integer
+offset of the ROW record it undoes.  Then come an integer count of page
+images, and the after images as in UPDATE records.
+
+<li> WRITTEN records consist of the page id of the page written out.
 
 </ul>
 
@@ -82,8 +207,19 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int ROW_RECORD = 6;
+    static final int WRITTEN_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** What a ROW record logs: just page images, */
+    static final byte ROW_PAGES = 0;
+    /** the insert of a row, */
+    static final byte ROW_INSERT = 1;
+    /** the delete of a row, */
+    static final byte ROW_DELETE = 2;
+    /** or the undo of an earlier ROW record of the transaction */
+    static final byte ROW_UNDO = 3;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
@@ -93,6 +229,91 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Default longest wait of the log writer for more committers to join a force */
+    public static final long DEFAULT_GROUP_COMMIT_WAIT_MICROS = 0;
+
+    /** Default number of committers the log writer waits for at most */
+    public static final int DEFAULT_GROUP_COMMIT_MAX_BATCH = 64;
+
+    /** Default size of the log buffer; appenders wait while it is full */
+    public static final int DEFAULT_LOG_BUFFER_BYTES = 4 << 20;
+
+    /** Bytes in the log buffer that make the writer write them out without a force */
+    static final int WRITE_CHUNK = 256 << 10;
+
+    /** How long the writer leaves records in the buffer without a force, in milliseconds */
+    static final long WRITER_TICK_MILLIS = 10;
+
+    /** Ticks without work after which the writer stops */
+    static final int WRITER_IDLE_TICKS = 100;
+
+    private static volatile long groupCommitWaitMicros =
+        Long.getLong("simpledb.GroupCommitWaitMicros", DEFAULT_GROUP_COMMIT_WAIT_MICROS);
+    private static volatile int groupCommitMaxBatch =
+        Integer.getInteger("simpledb.GroupCommitMaxBatch", DEFAULT_GROUP_COMMIT_MAX_BATCH);
+    private static final int logBufferBytes =
+        Integer.getInteger("simpledb.LogBufferBytes", DEFAULT_LOG_BUFFER_BYTES);
+    private static volatile int recoveryThreads =
+        Integer.getInteger("simpledb.RecoveryThreads", Runtime.getRuntime().availableProcessors());
+
+    /** Page images waiting for each redo worker */
+    static final int REDO_QUEUE = 256;
+
+    /** Default time between scheduled checkpoints, in milliseconds */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 60000;
+
+    /** Default bytes of log between scheduled checkpoints */
+    public static final long DEFAULT_CHECKPOINT_LOG_BYTES = 64 << 20;
+
+    /** Default number of dirty pages the checkpointer writes out per tick */
+    public static final int DEFAULT_BACKGROUND_WRITE_PAGES = 8;
+
+    /** How often the checkpointer runs, in milliseconds */
+    static final long CHECKPOINTER_TICK_MILLIS = 100;
+
+    /** Ticks without work after which the checkpointer stops */
+    static final int CHECKPOINTER_IDLE_TICKS = 10;
+
+    /** Least log bytes a checkpoint must be able to drop to truncate the log */
+    static final long TRUNCATE_MIN_BYTES = 1 << 20;
+
+    private static volatile long checkpointIntervalMillis =
+        Long.getLong("simpledb.CheckpointIntervalMillis", DEFAULT_CHECKPOINT_INTERVAL_MILLIS);
+    private static volatile long checkpointLogBytes =
+        Long.getLong("simpledb.CheckpointLogBytes", DEFAULT_CHECKPOINT_LOG_BYTES);
+    private static volatile int backgroundWritePages =
+        Integer.getInteger("simpledb.BackgroundWritePages", DEFAULT_BACKGROUND_WRITE_PAGES);
+
+    /** Records serialized in memory, waiting for the log writer. */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        final DataOutputStream data = new DataOutputStream(this);
+
+        LogBuffer() {
+            super(64 << 10);
+        }
+
+        ByteBuffer bytes() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private LogBuffer tail = new LogBuffer(); //protected by this
+    private long tailOffset = -1; // file offset of the first byte of tail //protected by this
+    private long lsnBase = 0; // LSN of file offset 0 //protected by this
+    private long lastLSN = -1; // the last record appended //protected by this
+    private long flushedLSN = -1; // the last record on disk //protected by this
+    private long forceLSN = -1; // the last record waited for //protected by this
+    private boolean writing = false; // the writer has a buffer in hand //protected by this
+    private int committing = 0; // threads waiting for a force //protected by this
+    private Thread writer; // null while stopped //protected by this
+    private IOException failure; // the writer's, or discard()'s //protected by this
+    private long forces = 0; // for GroupCommitBenchmark //protected by this
+    private Thread checkpointer; // null while stopped //protected by this
+    private long lastCheckpointNanos = System.nanoTime(); //protected by this
+    private long lastCheckpointLSN = 0; //protected by this
+    private int checkpoints = 0; //protected by this
+    private final Object checkpointLock = new Object(); // one checkpoint at a time
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -124,6 +345,7 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
+        checkFailure();
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
@@ -132,44 +354,95 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            tailOffset = currentOffset;
+        }
+        // make room in the log buffer
+        boolean interrupted = false;
+        while (tail.size() >= logBufferBytes) {
+            wakeWriter();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            checkFailure();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /** Finish appending the record that began at file offset start,
+        and hand the buffer to the writer if it has grown big enough.
+        @return the LSN of the record
+    */
+    private long appended(long start) {
+        currentOffset = tailOffset + tail.size();
+        lastLSN = lsnBase + start;
+        if (writer == null || tail.size() >= WRITE_CHUNK) {
+            wakeWriter();
+        }
+        if (checkpointer == null) {
+            checkpointer = new Thread(this::checkpointLoop, "simpledb-checkpointer");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+        return lastLSN;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
     
     /** Write an abort record to the log for the specified tid, force
-        the log to disk, and perform a rollback
+        the log to disk, and perform a rollback.  The row changes of tid
+        are undone first, each logged with a ROW record.
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
+        // the pool logs them under page latches, see the locking note
+        Database.getBufferPool().undoRows(tid);
+
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
             synchronized(this) {
-                preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                force(appendAbort(tid.getId()));
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
+    /** Append an ABORT record for transaction tid.
+        @return the LSN of the record
+    */
+    private long appendAbort(long tid) throws IOException {
+        preAppend();
+        long start = currentOffset;
+        tail.data.writeInt(ABORT_RECORD);
+        tail.data.writeLong(tid);
+        tail.data.writeLong(start);
+        return appended(start);
+    }
+
+    /** @return whether tid has a BEGIN record and no COMMIT or ABORT
+        record yet, so its updates can be undone from the log */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        transactions committing at the same time (see the group commit
+        note above); the LogFile monitor is given up while waiting for it.
 
         @param tid The committing transaction.
     */
@@ -178,12 +451,69 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        long start = currentOffset;
+        tail.data.writeInt(COMMIT_RECORD);
+        tail.data.writeLong(tid.getId());
+        tail.data.writeLong(start);
+        long lsn = appended(start);
         tidToFirstLogRecord.remove(tid.getId());
+        force(lsn);
+    }
+
+    /** Set the group commit window: how long, in microseconds, the
+        log writer waits for more committers to join a force, and for how
+        many at most.  A wait of 0 forces as soon as the previous force is
+        done.
+    */
+    public static void setGroupCommit(long waitMicros, int maxBatch) {
+        if (waitMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("negative wait or empty batch");
+        }
+        groupCommitWaitMicros = waitMicros;
+        groupCommitMaxBatch = maxBatch;
+    }
+
+    /** Set the number of threads that redo pages during recovery. */
+    public static void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("no redo threads");
+        }
+        recoveryThreads = threads;
+    }
+
+    /** @return the number of threads that redo pages during recovery */
+    public static int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /** Set when the checkpointer takes checkpoints: once intervalMillis
+        milliseconds have passed or logBytes bytes of log have been
+        appended since the last one.  0 turns either off.
+    */
+    public static void setCheckpointSchedule(long intervalMillis, long logBytes) {
+        if (intervalMillis < 0 || logBytes < 0) {
+            throw new IllegalArgumentException("negative checkpoint interval");
+        }
+        checkpointIntervalMillis = intervalMillis;
+        checkpointLogBytes = logBytes;
+    }
+
+    /** Set how many dirty pages the checkpointer writes out per tick. */
+    public static void setBackgroundWritePages(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("negative number of pages");
+        }
+        backgroundWritePages = pages;
+    }
+
+    /** @return the number of checkpoints taken */
+    public synchronized int getCheckpoints() {
+        return checkpoints;
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    synchronized long getForces() {
+        return forces;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,13 +521,14 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,21 +538,107 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        long start = currentOffset;
+        tail.data.writeInt(UPDATE_RECORD);
+        tail.data.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(tail.data,before);
+        writePageData(tail.data,after);
+        tail.data.writeLong(start);
+        long lsn = appended(start);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Write a ROW record for the specified tid: a change it made to a
+        single row, on a page other transactions may be changing rows of
+        too, with the after images of the pages it changed, if any.
+        @param tid The transaction that made the change
+        @param change ROW_INSERT or ROW_DELETE of t, ROW_UNDO of the
+          record at LSN undone, or ROW_PAGES for just the images
+        @param t The row inserted or deleted, with its RecordId
+        @param undone The LSN of the ROW record undone
+        @param pages The pages to log after images of
+        @return the LSN of the record
+    */
+    synchronized long logRow(TransactionId tid, byte change, Tuple t, long undone,
+                             Collection<? extends Page> pages)
+        throws IOException {
+        preAppend();
+        long start = currentOffset;
+        tail.data.writeInt(ROW_RECORD);
+        tail.data.writeLong(tid.getId());
+        tail.data.writeByte(change);
+        if (change == ROW_INSERT || change == ROW_DELETE) {
+            writeTuple(tail.data, t);
+        } else if (change == ROW_UNDO) {
+            tail.data.writeLong(undone - lsnBase);
+        }
+        tail.data.writeInt(pages.size());
+        for (Page page : pages) {
+            writePageData(tail.data, page);
+        }
+        tail.data.writeLong(start);
+        return appended(start);
+    }
 
+    /** Write a WRITTEN record for the specified tid: it has written out
+        page pid, which the log has no image of as it is on disk now.
+        The record is not forced; until it is, recovery may redo an
+        older image of the page over it.
+        @param tid The transaction that dirtied the page
+        @param pid The page written out
+        @return the LSN of the record
+    */
+    synchronized long logWritten(TransactionId tid, PageId pid)
+        throws IOException {
+        preAppend();
+        long start = currentOffset;
+        tail.data.writeInt(WRITTEN_RECORD);
+        tail.data.writeLong(tid.getId());
+        writePageId(tail.data, pid);
+        tail.data.writeLong(start);
+        return appended(start);
+    }
+
+    /** Write the RecordId and the fields of t; the fields are preceded
+        by their length, so they can be skipped without the catalog. */
+    private void writeTuple(DataOutput out, Tuple t) throws IOException {
+        RecordId rid = t.getRecordId();
+        writePageId(out, rid.getPageId());
+        out.writeInt(rid.getTupleNumber());
+        ByteArrayOutputStream fields = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(fields);
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            t.getField(i).serialize(data);
+        }
+        data.flush();
+        out.writeInt(fields.size());
+        out.write(fields.toByteArray());
+    }
+
+    /** Read a row written by writeTuple, as its table describes it. */
+    private Tuple readTuple(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int slot = in.readInt();
+        byte[] fields = new byte[in.readInt()];
+        in.readFully(fields);
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(fields));
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, td.getFieldType(i).parse(data));
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("can't read a row of a log record", e);
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -231,68 +648,79 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(raf, p.getId());
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    Page readPageData(DataInput raf) throws IOException {
+        return readPageImage(raf).toPage();
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** A page image read from the log, made into a Page when needed. */
+    private static class PageImage {
+        final String pageClassName;
+        final PageId pid;
+        final byte[] data;
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+        PageImage(String pageClassName, PageId pid, byte[] data) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.data = data;
+        }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        Page toPage() throws IOException {
+            try {
+                Constructor<?>[] pageConsts = Class.forName(pageClassName).getDeclaredConstructors();
+                if (pageConsts[0].getParameterCount() == 3) {
+                    // B+ tree internal and leaf pages also take the key field
+                    int key = ((BTreeFile)Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+                    return (Page)pageConsts[0].newInstance(pid, data, key);
+                }
+                return (Page)pageConsts[0].newInstance(pid, data);
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("can't make a " + pageClassName + " of a log record", e);
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Read a page written by writePageData, without making it a Page. */
+    private PageImage readPageImage(DataInput raf) throws IOException {
+        String pageClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        byte[] pageData = new byte[raf.readInt()];
+        raf.readFully(pageData);
+        return new PageImage(pageClassName, pid, pageData);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** Write the class name and the serialized form of pid. */
+    private void writePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
         }
-        return newPage;
+    }
 
+    /** Read a page id written by writePageId. */
+    private PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = Integer.valueOf(in.readInt());
+        }
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("can't make a " + idClassName + " of a log record", e);
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +735,331 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = currentOffset;
+        tail.data.writeInt(BEGIN_RECORD);
+        tail.data.writeLong(tid.getId());
+        tail.data.writeLong(start);
+        tidToFirstLogRecord.put(tid.getId(), start);
+        appended(start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it writes no pages, and transactions go on
+        while it is taken.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long beginCpOffset;
+            synchronized (this) {
+                // an undecided log is emptied by the preAppend below
+                beginCpOffset = recoveryUndecided ? LONG_SIZE : currentOffset;
+            }
+            // changes from here on may be missing from the table; analysis
+            // reads the log from beginCpOffset to find them
+            Map<PageId, Long> dirty = Database.getBufferPool().dirtyPageTable();
+            long startCpOffset;
+            FileChannel channel;
+            boolean truncate;
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                startCpOffset = currentOffset;
+                tail.data.writeInt(CHECKPOINT_RECORD);
+                tail.data.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                tail.data.writeInt(keys.size());
+                long minLogRecord = beginCpOffset;
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    tail.data.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    long first = tidToFirstLogRecord.get(key);
+                    tail.data.writeLong(first);
+                    minLogRecord = Math.min(minLogRecord, first);
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                //write the dirty page table
+                tail.data.writeInt(dirty.size());
+                for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                    writePageId(tail.data, e.getKey());
+                    tail.data.writeLong(e.getValue() - lsnBase);
+                    minLogRecord = Math.min(minLogRecord, e.getValue() - lsnBase);
+                }
+                tail.data.writeLong(beginCpOffset);
+                tail.data.writeLong(startCpOffset);
+
+                // the CP must be on disk before the pointer to it is
+                force(appended(startCpOffset));
+                channel = raf.getChannel();
                 //Debug.log("CP OFFSET = " + currentOffset);
+                lastCheckpointNanos = System.nanoTime();
+                lastCheckpointLSN = lastLSN;
+                ++checkpoints;
+
+                // copying the log is only worth it once much of it can go
+                truncate = minLogRecord - LONG_SIZE
+                    >= Math.max(TRUNCATE_MIN_BYTES, (currentOffset - LONG_SIZE) / 2);
             }
-        }
 
-        logTruncate();
+            // update the CP location at the beginning of the log file;
+            // the writer only writes past it, so this needs no monitor
+            ByteBuffer pointer = ByteBuffer.allocate(LONG_SIZE);
+            pointer.putLong(0, startCpOffset);
+            while (pointer.hasRemaining()) {
+                channel.write(pointer, pointer.position());
+            }
+            channel.force(false);
+
+            if (truncate) {
+                logTruncate();
+            }
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        consumption.  The records kept are copied to a new file without
+        holding the LogFile monitor, so appends and commits go on; only
+        the records appended meanwhile are copied holding it, before the
+        new file replaces the old one.
+    */
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock) {
+            long cpLoc, minLogRecord, mark;
+            synchronized (this) {
+                preAppend();
+                drain();
+                raf.seek(0);
+                cpLoc = raf.readLong();
 
-        long minLogRecord = cpLoc;
+                minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+                if (cpLoc != -1L) {
+                    raf.seek(cpLoc);
+                    int cpType = raf.readInt();
+                    @SuppressWarnings("unused")
+                    long cpTid = raf.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+                    if (cpType != CHECKPOINT_RECORD) {
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    }
 
-            int numOutstanding = raf.readInt();
+                    int numOutstanding = raf.readInt();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
-        }
+                    for (int i = 0; i < numOutstanding; i++) {
+                        @SuppressWarnings("unused")
+                        long tid = raf.readLong();
+                        long firstLogRecord = raf.readLong();
+                        if (firstLogRecord < minLogRecord) {
+                            minLogRecord = firstLogRecord;
+                        }
+                    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+                    // redo needs the records of dirty pages, and analysis the
+                    // records from where the checkpoint began
+                    int numDirty = raf.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        readPageId(raf);
+                        minLogRecord = Math.min(minLogRecord, raf.readLong());
+                    }
+                    minLogRecord = Math.min(minLogRecord, raf.readLong());
+                }
 
-        raf.seek(minLogRecord);
+                if (minLogRecord <= LONG_SIZE) {
+                    // nothing to drop, so nothing to rewrite
+                    return;
+                }
+                // what is on disk up to here is copied without the monitor
+                mark = currentOffset;
+            }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+            // we can truncate everything before minLogRecord; every offset
+            // in the records kept moves down by the same amount
+            long delta = minLogRecord - LONG_SIZE;
+            File newFile = new File("logtmp" + System.currentTimeMillis());
+            FileOutputStream newOut = new FileOutputStream(newFile);
+            DataOutputStream logNew = new DataOutputStream(new BufferedOutputStream(newOut, 1 << 16));
+            boolean replaced = false;
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
+                logNew.writeLong(cpLoc - delta);
+                copyRecords(minLogRecord, mark, logNew, delta);
+
+                synchronized (this) {
+                    drain();
+                    copyRecords(mark, currentOffset, logNew, delta);
+
+                    Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+
+                    // records that were on disk must stay there
+                    logNew.flush();
+                    newOut.getChannel().force(true);
+                    logNew.close();
+                    raf.close();
+                    logFile.delete();
+                    newFile.renameTo(logFile);
+                    raf = new RandomAccessFile(logFile, "rw");
+                    raf.seek(raf.length());
+                    replaced = true;
+
+                    // the LSNs of the records left stay the same
+                    lsnBase += delta;
+                    currentOffset = raf.getFilePointer();
+                    tailOffset = currentOffset;
+                    for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                        e.setValue(e.getValue() - delta);
+                    }
+                }
+            } finally {
+                if (!replaced) {
+                    logNew.close();
+                    newFile.delete();
+                }
+            }
+            //print();
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** Copy the records between file offsets from and to, which must be
+        on disk, to out, moving the offsets in them down by delta.  Page
+        images are copied as they are, without making pages of them. */
+    private void copyRecords(long from, long to, DataOutputStream out, long delta)
+        throws IOException {
+        LogInput in = openAt(from);
+        try {
+            while (in.offset() < to) {
+                int type = in.readInt();
+                out.writeInt(type);
+                out.writeLong(in.readLong());
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    copyPageData(in, out);
+                    copyPageData(in, out);
                     break;
                 case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
+                    int numXactions = in.readInt();
+                    out.writeInt(numXactions);
                     while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        out.writeLong(in.readLong());
+                        out.writeLong(in.readLong() - delta);
+                    }
+                    int numDirty = in.readInt();
+                    out.writeInt(numDirty);
+                    while (numDirty-- > 0) {
+                        copyPageId(in, out);
+                        out.writeLong(in.readLong() - delta);
                     }
+                    out.writeLong(in.readLong() - delta);
                     break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                case ROW_RECORD:
+                    byte change = in.readByte();
+                    out.writeByte(change);
+                    if (change == ROW_INSERT || change == ROW_DELETE) {
+                        copyPageId(in, out);
+                        out.writeInt(in.readInt());
+                        byte[] fields = new byte[in.readInt()];
+                        in.readFully(fields);
+                        out.writeInt(fields.length);
+                        out.write(fields);
+                    } else if (change == ROW_UNDO) {
+                        out.writeLong(in.readLong() - delta);
+                    }
+                    int numPages = in.readInt();
+                    out.writeInt(numPages);
+                    while (numPages-- > 0) {
+                        copyPageData(in, out);
+                    }
+                    break;
+                case WRITTEN_RECORD:
+                    copyPageId(in, out);
                     break;
                 }
 
                 //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                out.writeLong(in.readLong() - delta);
             }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Copy a page image written by writePageData. */
+    private void copyPageData(DataInput in, DataOutput out) throws IOException {
+        out.writeUTF(in.readUTF());
+        copyPageId(in, out);
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /** Copy a page id written by writePageId. */
+    private void copyPageId(DataInput in, DataOutput out) throws IOException {
+        out.writeUTF(in.readUTF());
+        int n = in.readInt();
+        out.writeInt(n);
+        while (n-- > 0) {
+            out.writeInt(in.readInt());
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** @return a buffered stream over the log file, starting at file
+        offset offset; the caller must have drained the log buffer */
+    private LogInput openAt(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(logFile);
+        in.getChannel().position(offset);
+        return new LogInput(new BufferedInputStream(in, 1 << 16), offset);
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** A stream over the log file that knows its file offset. */
+    private static class LogInput extends DataInputStream {
+        LogInput(InputStream in, long offset) {
+            super(new Counting(in, offset));
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        /** @return the file offset of the next byte to be read */
+        long offset() {
+            return ((Counting)in).offset;
+        }
+    }
+
+    private static class Counting extends FilterInputStream {
+        long offset;
+
+        Counting(InputStream in, long offset) {
+            super(in);
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                offset++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                offset += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            offset += skipped;
+            return skipped;
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -464,21 +1073,108 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            Map<PageId, Page> before = new LinkedHashMap<PageId, Page>();
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("no BEGIN record for transaction " + tid.getId());
+                }
+                drain();
+                DataInputStream in = openAt(first);
+                try {
+                    while (true) {
+                        int type;
+                        try {
+                            type = in.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        long record_tid = in.readLong();
+                        if (type == UPDATE_RECORD && record_tid == tid.getId()) {
+                            // the first before image is the page as tid found it
+                            Page page = readPageData(in);
+                            before.putIfAbsent(page.getId(), page);
+                            skipPageData(in);
+                        } else {
+                            skipRecord(in, type);
+                        }
+                        in.readLong();
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            // the pool logs the compensation records, see the locking note
+            for (Page page : before.values()) {
+                Database.getBufferPool().rollbackPage(tid, page);
             }
         }
     }
 
+    /** Skip the rest of a record of type type, up to its start offset. */
+    private void skipRecord(DataInput in, int type) throws IOException {
+        switch (type) {
+        case UPDATE_RECORD:
+            skipPageData(in);
+            skipPageData(in);
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = in.readInt();
+            in.skipBytes(numXactions * 2 * LONG_SIZE);
+            int numDirty = in.readInt();
+            while (numDirty-- > 0) {
+                in.readUTF();
+                in.skipBytes(in.readInt() * INT_SIZE + LONG_SIZE);
+            }
+            in.readLong();
+            break;
+        case ROW_RECORD:
+            skipRowChange(in, in.readByte());
+            int numPages = in.readInt();
+            while (numPages-- > 0) {
+                skipPageData(in);
+            }
+            break;
+        case WRITTEN_RECORD:
+            in.readUTF();
+            in.skipBytes(in.readInt() * INT_SIZE);
+            break;
+        }
+    }
+
+    /** Skip the change of a ROW record, up to its page images. */
+    private void skipRowChange(DataInput in, byte change) throws IOException {
+        if (change == ROW_INSERT || change == ROW_DELETE) {
+            in.readUTF();
+            in.skipBytes(in.readInt() * INT_SIZE + INT_SIZE);
+            in.skipBytes(in.readInt());
+        } else if (change == ROW_UNDO) {
+            in.readLong();
+        }
+    }
+
+    /** Skip a page image written by writePageData. */
+    private void skipPageData(DataInput in) throws IOException {
+        in.readUTF();
+        in.readUTF();
+        in.skipBytes(in.readInt() * INT_SIZE);
+        in.skipBytes(in.readInt());
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // with the pages written, starting up has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -490,12 +1186,410 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
+        Map<Long, Loser> losers;
         synchronized (Database.getBufferPool()) {
+            Analysis a;
             synchronized (this) {
                 recoveryUndecided = false;
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                }
                 // some code goes here
+                a = analyze();
+                // a record the crash cut short never happened
+                raf.setLength(a.end);
+                currentOffset = a.end;
+                tailOffset = currentOffset;
+                // everything else in the file survived the crash
+                lastLSN = flushedLSN = lsnBase + currentOffset - 1;
+                // running until undo aborts them, for checkpoints meanwhile
+                tidToFirstLogRecord.putAll(a.losers);
+            }
+            losers = redo(a);
+
+            // undo the pages the transactions that didn't finish logged
+            // whole, logging that the same way rollback does
+            List<Page> undone = new ArrayList<Page>();
+            for (Map.Entry<Long, Loser> loser : losers.entrySet()) {
+                TransactionId tid = new TransactionId(loser.getKey());
+                for (Page page : loser.getValue().pages.values()) {
+                    logWrite(tid, page, page);
+                    undone.add(page);
+                }
+            }
+            force();
+
+            // the pool may have read pages before recovery
+            BufferPool pool = Database.getBufferPool();
+            for (Page page : undone) {
+                pool.discardPage(page.getId());
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            }
+        }
+
+        // B+ tree splits the crash cut short left pages only lost links led to
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            Database.getBufferPool().completeSplits(t.getId());
+        } catch (DbException | TransactionAbortedException e) {
+            t.abort();
+            throw new IOException("could not complete B+ tree splits", e);
+        }
+        t.commit();
+
+        // then the rows they changed, latest first, logged the same way
+        // an abort does, and abort them
+        synchronized (Database.getBufferPool()) {
+            BufferPool pool = Database.getBufferPool();
+            for (Map.Entry<Long, Loser> loser : losers.entrySet()) {
+                TransactionId tid = new TransactionId(loser.getKey());
+                List<RowChange> rows = loser.getValue().rows;
+                for (int i = rows.size() - 1; i >= 0; --i) {
+                    RowChange row = rows.get(i);
+                    // an abort or recovery the crash cut short may have undone it
+                    if (loser.getValue().undone.contains(row.offset)) {
+                        continue;
+                    }
+                    long lsn;
+                    synchronized (this) {
+                        lsn = lsnBase + row.offset;
+                    }
+                    try {
+                        pool.undoRow(tid, row.insert, row.t, lsn);
+                    } catch (DbException e) {
+                        throw new IOException("could not undo row change", e);
+                    }
+                }
+                // B+ tree undos may have latched pages for it
+                pool.transactionComplete(tid, false);
+                synchronized (this) {
+                    appendAbort(loser.getKey());
+                    tidToFirstLogRecord.remove(loser.getKey());
+                }
+            }
+            force();
+        }
+    }
+
+    /** What analysis found out about the log. */
+    private static class Analysis {
+        /** the transactions that didn't finish, with the offsets of their BEGIN records */
+        final Map<Long, Long> losers = new LinkedHashMap<Long, Long>();
+        /** the pages that may be out of date on disk, with the offset of
+            the first record redo needs for each */
+        final Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+        /** the offset just past the last whole record */
+        long end;
+    }
+
+    /** What redo found out about a transaction that didn't finish. */
+    private static class Loser {
+        /** the first before image of each page it logged whole */
+        final Map<PageId, Page> pages = new LinkedHashMap<PageId, Page>();
+        /** its row changes, in the order it made them */
+        final List<RowChange> rows = new ArrayList<RowChange>();
+        /** the offsets of the row changes it has undone already */
+        final Set<Long> undone = new HashSet<Long>();
+    }
+
+    /** A row change read from a ROW record that began at offset. */
+    private static class RowChange {
+        final long offset;
+        final boolean insert;
+        final Tuple t;
+
+        RowChange(long offset, boolean insert, Tuple t) {
+            this.offset = offset;
+            this.insert = insert;
+            this.t = t;
+        }
+    }
+
+    /** Analysis pass of recovery: starting from the tables of the last
+        checkpoint, read the log from where the checkpoint began to its
+        last whole record.  The caller must hold the monitor, with
+        nothing in the log buffer.
+    */
+    private Analysis analyze() throws IOException {
+        Analysis a = new Analysis();
+        raf.seek(0);
+        long cp = raf.readLong();
+        long from = LONG_SIZE;
+        long maxTid = -1;
+        if (cp != NO_CHECKPOINT_ID) {
+            LogInput in = openAt(cp);
+            try {
+                if (in.readInt() != CHECKPOINT_RECORD) {
+                    throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                }
+                in.readLong();
+                int numXactions = in.readInt();
+                while (numXactions-- > 0) {
+                    long tid = in.readLong();
+                    a.losers.put(tid, in.readLong());
+                    maxTid = Math.max(maxTid, tid);
+                }
+                int numDirty = in.readInt();
+                while (numDirty-- > 0) {
+                    PageId pid = readPageId(in);
+                    a.dirty.put(pid, in.readLong());
+                }
+                from = in.readLong();
+            } finally {
+                in.close();
+            }
+        }
+
+        a.end = from;
+        LogInput in = openAt(from);
+        try {
+            while (true) {
+                long start = in.offset();
+                int type;
+                long record_tid;
+                List<PageId> pids = new ArrayList<PageId>();
+                try {
+                    type = in.readInt();
+                    record_tid = in.readLong();
+                    if (type == UPDATE_RECORD) {
+                        skipPageData(in);
+                        in.readUTF();
+                        pids.add(readPageId(in));
+                        in.skipBytes(in.readInt());
+                    } else if (type == ROW_RECORD) {
+                        skipRowChange(in, in.readByte());
+                        int numPages = in.readInt();
+                        while (numPages-- > 0) {
+                            in.readUTF();
+                            pids.add(readPageId(in));
+                            in.skipBytes(in.readInt());
+                        }
+                    } else {
+                        skipRecord(in, type);
+                    }
+                    in.readLong();
+                } catch (EOFException e) {
+                    // the end of the log, or a record the crash cut short
+                    break;
+                }
+                a.end = in.offset();
+                maxTid = Math.max(maxTid, record_tid);
+                // the checkpoint's transaction table has what came before it
+                if (start >= cp) {
+                    if (type == BEGIN_RECORD) {
+                        a.losers.put(record_tid, start);
+                    } else if (type == COMMIT_RECORD || type == ABORT_RECORD) {
+                        a.losers.remove(record_tid);
+                    }
+                }
+                for (PageId pid : pids) {
+                    a.dirty.putIfAbsent(pid, start);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (maxTid >= 0) {
+            TransactionId.reserve(maxTid);
+        }
+        return a;
+    }
+
+    /** Redo pass of recovery: read the log from the oldest record redo
+        or undo needs, and have RedoWorkers write out the pages of the
+        dirty page table as the log last has them.
+
+        @return what undo needs of each loser
+    */
+    private Map<Long, Loser> redo(Analysis a) throws IOException {
+        Map<Long, Loser> undo = new LinkedHashMap<Long, Loser>();
+        long from = a.end;
+        for (Map.Entry<Long, Long> loser : a.losers.entrySet()) {
+            undo.put(loser.getKey(), new Loser());
+            from = Math.min(from, loser.getValue());
+        }
+        for (long rec : a.dirty.values()) {
+            from = Math.min(from, rec);
+        }
+
+        RedoWorker[] workers = new RedoWorker[recoveryThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker(i);
+            workers[i].start();
+        }
+        boolean read = false;
+        LogInput in = openAt(from);
+        try {
+            while (in.offset() < a.end) {
+                long start = in.offset();
+                int type = in.readInt();
+                long record_tid = in.readLong();
+                Loser loser = undo.get(record_tid);
+                if (type == UPDATE_RECORD) {
+                    if (loser != null) {
+                        Page before = readPageData(in);
+                        loser.pages.putIfAbsent(before.getId(), before);
+                    } else {
+                        skipPageData(in);
+                    }
+                    redoImage(in, start, a, workers);
+                } else if (type == ROW_RECORD) {
+                    byte change = in.readByte();
+                    if (loser == null) {
+                        skipRowChange(in, change);
+                    } else if (change == ROW_INSERT || change == ROW_DELETE) {
+                        loser.rows.add(new RowChange(start, change == ROW_INSERT, readTuple(in)));
+                    } else if (change == ROW_UNDO) {
+                        loser.undone.add(in.readLong());
+                    }
+                    int numPages = in.readInt();
+                    while (numPages-- > 0) {
+                        redoImage(in, start, a, workers);
+                    }
+                } else if (type == WRITTEN_RECORD) {
+                    PageId pid = readPageId(in);
+                    Long rec = a.dirty.get(pid);
+                    if (rec != null && start >= rec) {
+                        // the page on disk is newer than the images so far
+                        workerOf(pid, workers).redo(new PageImage(null, pid, null));
+                    }
+                } else {
+                    skipRecord(in, type);
+                }
+                in.readLong();
+            }
+            read = true;
+        } finally {
+            in.close();
+            for (RedoWorker w : workers) {
+                w.finish(read);
+            }
+        }
+
+        IOException failure = null;
+        boolean interrupted = false;
+        for (RedoWorker w : workers) {
+            while (w.isAlive()) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (failure == null) {
+                failure = w.failure;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return undo;
+    }
+
+    /** Read a page image written by writePageData into the record that
+        began at offset start, and hand it to the worker of its page if
+        redo needs it. */
+    private void redoImage(DataInput in, long start, Analysis a, RedoWorker[] workers)
+        throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
+        int len = in.readInt();
+        Long rec = a.dirty.get(pid);
+        if (rec != null && start >= rec) {
+            byte[] data = new byte[len];
+            in.readFully(data);
+            workerOf(pid, workers).redo(new PageImage(pageClassName, pid, data));
+        } else {
+            in.skipBytes(len);
+        }
+    }
+
+    /** @return the worker that redoes pid; each page has a single
+        worker, so it sees the page's images in order */
+    private static RedoWorker workerOf(PageId pid, RedoWorker[] workers) {
+        return workers[(pid.hashCode() & 0x7fffffff) % workers.length];
+    }
+
+    /** Redoes the pages of one partition of the dirty page table: keeps
+        the last image it is handed of each page, and writes them out
+        once the log has been read.  Images hold whole pages, so the
+        earlier ones need not be written.  An image without data stands
+        for a WRITTEN record: the page on disk is newer than the images
+        before it, which are dropped.
+    */
+    private static class RedoWorker extends Thread {
+        private static final PageImage END = new PageImage(null, null, null);
+
+        private final ArrayBlockingQueue<PageImage> queue =
+            new ArrayBlockingQueue<PageImage>(REDO_QUEUE);
+        private boolean write;
+        IOException failure;
+
+        RedoWorker(int i) {
+            super("simpledb-redo-" + i);
+            setDaemon(true);
+        }
+
+        void redo(PageImage image) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(image);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** No more images; write out the pages if write is set. */
+        void finish(boolean write) {
+            this.write = write;
+            redo(END);
+        }
+
+        @Override
+        public void run() {
+            Map<PageId, PageImage> last = new HashMap<PageId, PageImage>();
+            try {
+                PageImage image;
+                while ((image = queue.take()) != END) {
+                    if (image.data == null) {
+                        last.remove(image.pid);
+                    } else {
+                        last.put(image.pid, image);
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = new IOException("redo interrupted", e);
+                return;
+            }
+            if (!write) {
+                return;
+            }
+            BufferPool pool = Database.getBufferPool();
+            for (PageImage image : last.values()) {
+                try {
+                    // the pool may have read the page before recovery
+                    pool.discardPage(image.pid);
+                    Database.getCatalog().getDatabaseFile(image.pid.getTableId()).writePage(image.toPage());
+                } catch (IOException e) {
+                    failure = e;
+                    return;
+                } catch (RuntimeException e) {
+                    failure = new IOException("can't redo " + image.pid, e);
+                    return;
+                }
             }
-         }
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1597,243 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force everything appended so far to disk. */
+    public synchronized void force() throws IOException {
+        force(lastLSN);
+    }
+
+    /** Wait until the record with LSN lsn, and so all records before
+        it, are on disk, that is until the flushed LSN is at least lsn.
+        The LogFile monitor, if held, is given up while waiting.
+    */
+    public synchronized void force(long lsn) throws IOException {
+        if (flushedLSN >= lsn) {
+            return;
+        }
+        forceLSN = Math.max(forceLSN, lsn);
+        wakeWriter();
+        ++committing;
+        boolean interrupted = false;
+        try {
+            while (flushedLSN < lsn) {
+                checkFailure();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the caller's records are appended; they must not be left behind
+                    interrupted = true;
+                }
+            }
+        } finally {
+            --committing;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Stop logging, dropping whatever is not on disk yet, as a crash
+        would; for tests that simulate one.  Records written to the file
+        but not forced stay there, as they would in the operating system's
+        cache.  Appending fails from now on.
+    */
+    public synchronized void discard() {
+        if (failure == null) {
+            failure = new IOException("log discarded");
+        }
+        tail.reset();
+        notifyAll();
+        boolean interrupted = false;
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // nothing more to lose
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return the LSN of the last record on disk, or -1 if there is none */
+    public synchronized long getFlushedLSN() {
+        return flushedLSN;
+    }
+
+    /** Write everything appended to the file and wait until the writer
+        is done with it, so the file can be read or rewritten directly.
+        Must be called holding the LogFile monitor. */
+    private void drain() throws IOException {
+        force();
+        boolean interrupted = false;
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("log writer failed", failure);
+        }
+    }
+
+    /** Start the log writer, or wake it up if it is running. Must be
+        called holding the LogFile monitor. */
+    private void wakeWriter() {
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, "simpledb-logwriter");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /** The log writer: writes the log buffer out, and forces it when
+        someone waits for that, until it has had nothing to do for
+        WRITER_IDLE_TICKS ticks. */
+    private void writeLoop() {
+        LogBuffer spare = new LogBuffer();
+        while (true) {
+            LogBuffer buf;
+            long offset, end;
+            boolean sync;
+            FileChannel channel;
+            synchronized (this) {
+                int idle = 0;
+                boolean waited = false;
+                while (forceLSN <= flushedLSN && tail.size() < WRITE_CHUNK
+                       && !(waited && tail.size() > 0)) {
+                    if (failure != null || (tail.size() == 0 && ++idle > WRITER_IDLE_TICKS)) {
+                        writer = null;
+                        return;
+                    }
+                    waitQuietly(TimeUnit.MILLISECONDS.toNanos(WRITER_TICK_MILLIS));
+                    waited = true;
+                }
+                if (forceLSN > flushedLSN) {
+                    // the group commit window
+                    long wait = TimeUnit.MICROSECONDS.toNanos(groupCommitWaitMicros);
+                    long deadline = System.nanoTime() + wait;
+                    while (wait > 0 && committing < groupCommitMaxBatch
+                           && tidToFirstLogRecord.size() > 0) {
+                        waitQuietly(wait);
+                        wait = deadline - System.nanoTime();
+                    }
+                }
+                buf = tail;
+                tail = spare;
+                offset = tailOffset;
+                tailOffset += buf.size();
+                end = lastLSN;
+                sync = forceLSN > flushedLSN;
+                channel = raf.getChannel();
+                writing = true;
+                notifyAll(); // there is room in the buffer again
+            }
+            try {
+                ByteBuffer bytes = buf.bytes();
+                while (bytes.hasRemaining()) {
+                    offset += channel.write(bytes, offset);
+                }
+                if (sync) {
+                    channel.force(true);
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                    writing = false;
+                    writer = null;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                writing = false;
+                if (sync) {
+                    flushedLSN = end;
+                    ++forces;
+                }
+                notifyAll();
+            }
+            buf.reset();
+            spare = buf;
+        }
+    }
+
+    /** The checkpointer: every tick, writes out the oldest dirty pages
+        of finished transactions, and takes a checkpoint when one is due,
+        until it has had nothing to do for CHECKPOINTER_IDLE_TICKS ticks or
+        the log is discarded or replaced.  While the interval schedule
+        still owes a checkpoint for records appended since the last one, it
+        doesn't count as idle, so a quiet log still gets it on time; the
+        next append starts it again otherwise. */
+    private void checkpointLoop() {
+        int idle = 0;
+        long seenLSN = -1;
+        while (true) {
+            boolean due;
+            synchronized (this) {
+                long tick = TimeUnit.MILLISECONDS.toNanos(CHECKPOINTER_TICK_MILLIS);
+                long deadline = System.nanoTime() + tick;
+                while (tick > 0 && failure == null) {
+                    waitQuietly(tick);
+                    tick = deadline - System.nanoTime();
+                }
+                long interval = checkpointIntervalMillis;
+                long bytes = checkpointLogBytes;
+                boolean owed = interval > 0 && lastLSN != lastCheckpointLSN;
+                idle = lastLSN == seenLSN && !owed ? idle + 1 : 0;
+                seenLSN = lastLSN;
+                if (failure != null || idle > CHECKPOINTER_IDLE_TICKS
+                    || Database.getLogFile() != this) {
+                    checkpointer = null;
+                    return;
+                }
+                due = (interval > 0 && System.nanoTime() - lastCheckpointNanos
+                       >= TimeUnit.MILLISECONDS.toNanos(interval))
+                    || (bytes > 0 && lastLSN - lastCheckpointLSN >= bytes);
+            }
+            try {
+                if (Database.getBufferPool().writeOldestDirtyPages(backgroundWritePages) > 0) {
+                    idle = 0;
+                }
+                if (due) {
+                    logCheckpoint();
+                }
+            } catch (IOException | RuntimeException e) {
+                // the log or the pool went away; whoever uses them next finds out
+                synchronized (this) {
+                    checkpointer = null;
+                }
+                return;
+            }
+        }
+    }
+
+    /** this.wait(nanos), for the writer and the checkpointer, which
+        are never interrupted */
+    private void waitQuietly(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 }
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the page
+ * whose K-th most recent reference lies furthest in the past; pages that
+ * have been referenced fewer than K times count as infinitely old and go
+ * first, oldest last reference first. A page touched once by a sequential
+ * scan therefore never pushes out a page that is used repeatedly, such as
+ * a B+ tree root or internal page. Prefetched pages that nobody has asked
+ * for yet have no references at all and go before everything else.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+	private static final long NEVER = Long.MIN_VALUE;
+
+	/** Access history of a resident page, most recent reference first. */
+	private class History implements Comparable<History> {
+		final PageId pid;
+		final long[] times;
+		/** When the page came in; orders pages that have no references */
+		final long admitted;
+
+		History(PageId pid, long admitted) {
+			this.pid = pid;
+			this.admitted = admitted;
+			this.times = new long[k];
+			for (int i = 0; i < k; ++i) {
+				times[i] = NEVER;
+			}
+		}
+
+		void reference(long now) {
+			System.arraycopy(times, 0, times, 1, k - 1);
+			times[0] = now;
+		}
+
+		@Override
+		public int compareTo(History o) {
+			int cmp = Long.compare(times[k - 1], o.times[k - 1]);
+			if (cmp != 0) {
+				return cmp;
+			}
+			cmp = Long.compare(times[0], o.times[0]);
+			if (cmp != 0) {
+				return cmp;
+			}
+			// the clock is strictly increasing, so this only ties for the same page
+			return Long.compare(admitted, o.admitted);
+		}
+	}
+
+	private final int k;
+	private final Map<PageId, History> histories;
+	private final TreeSet<History> order;
+	private long clock;
+
+	/**
+	 * @param k the number of past references taken into account; k = 1 is
+	 *   plain LRU.
+	 */
+	public LruKReplacementPolicy(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be positive");
+		}
+		this.k = k;
+		this.histories = new HashMap<PageId, History>();
+		this.order = new TreeSet<History>();
+		this.clock = 0;
+	}
+
+	@Override
+	public synchronized void recordInsert(PageId pid) {
+		History h = admit(pid);
+		order.remove(h);
+		h.reference(++clock);
+		order.add(h);
+	}
+
+	@Override
+	public synchronized void recordPrefetch(PageId pid) {
+		History h = admit(pid);
+		order.add(h);
+	}
+
+	private History admit(PageId pid) {
+		History h = histories.get(pid);
+		if (h == null) {
+			h = new History(pid, ++clock);
+			histories.put(pid, h);
+		}
+		return h;
+	}
+
+	@Override
+	public synchronized void recordAccess(PageId pid) {
+		History h = histories.get(pid);
+		if (h != null) {
+			order.remove(h);
+			h.reference(++clock);
+			order.add(h);
+		}
+	}
+
+	@Override
+	public synchronized void recordRemove(PageId pid) {
+		History h = histories.remove(pid);
+		if (h != null) {
+			order.remove(h);
+		}
+	}
+
+	@Override
+	public synchronized PageId evict(Evictable evictable) {
+		Iterator<History> it = order.iterator();
+		while (it.hasNext()) {
+			History h = it.next();
+			if (evictable.canEvict(h.pid)) {
+				it.remove();
+				histories.remove(h.pid);
+				return h.pid;
+			}
+		}
+		return null;
+	}
+
+}
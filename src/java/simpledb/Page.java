@@ -56,4 +56,16 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that holds this page's contents,
+     * or -1 if none does since the page was read.  The page may not be
+     * written to disk before the log is forced up to it (see
+     * {@link LogFile#force(long)}).  It is not stored in the page data: log
+     * records hold whole pages, so redoing one twice does no harm.
+     */
+    public long getLSN();
+
+    /** Set the LSN of the last log record that holds this page's contents. */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatches are the short-term latches a {@link BTreeFile} takes on its
+ * pages while an insert, delete or search works on them. Unlike locks,
+ * which a transaction holds until it completes and which the LockManager
+ * checks for deadlocks, a latch is held for a few page accesses at most
+ * and only protects the page from being seen half changed.
+ * <p>
+ * Latches are never waited for out of order, so they can't deadlock: an
+ * operation latches pages top-down, from the root pointer to the leaves,
+ * and within a level only siblings under a parent it holds latched. Header
+ * pages are not latched page by page but under the file's allocation lock.
+ * An operation must never wait for a lock while holding latches, since the
+ * holder of the lock might be waiting for one of its latches; it tries to
+ * get the lock without waiting, and otherwise gives up its latches, waits
+ * for the lock and starts over.
+ *
+ * @Threadsafe
+ */
+public class PageLatches {
+
+	private final ConcurrentHashMap<PageId, ReentrantReadWriteLock> latches =
+		new ConcurrentHashMap<PageId, ReentrantReadWriteLock>();
+	private final AtomicLong restarts = new AtomicLong();
+
+	private ReentrantReadWriteLock latchOf(PageId pid) {
+		return latches.computeIfAbsent(pid, key -> new ReentrantReadWriteLock());
+	}
+
+	/** @return a new, empty set of latches for one operation */
+	public Held hold() {
+		return new Held();
+	}
+
+	/** Counts an operation starting over. */
+	void restarted() {
+		restarts.incrementAndGet();
+	}
+
+	/**
+	 * @return how many times operations have started over, because they had
+	 *   to wait for a lock or, in optimistic mode, a leaf had to split
+	 */
+	public long restarts() {
+		return restarts.get();
+	}
+
+	/**
+	 * The latches one operation holds, in the order it took them, so the
+	 * latches of a page's ancestors come before the page's own. Only to be
+	 * used by the thread that created it.
+	 */
+	public class Held {
+
+		private final ArrayList<PageId> pids = new ArrayList<PageId>();
+		private final ArrayList<Boolean> modes = new ArrayList<Boolean>();
+
+		/**
+		 * Latches page pid, waiting for conflicting latches of others.
+		 * Nothing happens if pid is latched here already in a mode at
+		 * least as strong; a shared latch can't be made exclusive.
+		 *
+		 * @param exclusive whether to latch the page for changing it
+		 */
+		public void latch(PageId pid, boolean exclusive) {
+			int i = pids.indexOf(pid);
+			if (i >= 0) {
+				if (exclusive && !modes.get(i)) {
+					throw new IllegalStateException("can't upgrade the latch on " + pid);
+				}
+				return;
+			}
+			ReentrantReadWriteLock latch = latchOf(pid);
+			if (exclusive) {
+				latch.writeLock().lock();
+			} else {
+				latch.readLock().lock();
+			}
+			pids.add(pid);
+			modes.add(exclusive);
+		}
+
+		/**
+		 * Latches page pid like {@link #latch}, but only if that can be done
+		 * without waiting. It also fails if this thread has latched pid
+		 * exclusively in another operation, which may be changing the page.
+		 *
+		 * @return whether pid is latched here now
+		 */
+		public boolean tryLatch(PageId pid, boolean exclusive) {
+			int i = pids.indexOf(pid);
+			if (i >= 0) {
+				return !exclusive || modes.get(i);
+			}
+			ReentrantReadWriteLock latch = latchOf(pid);
+			if (latch.isWriteLockedByCurrentThread()) {
+				return false;
+			}
+			if (!(exclusive ? latch.writeLock().tryLock() : latch.readLock().tryLock())) {
+				return false;
+			}
+			pids.add(pid);
+			modes.add(exclusive);
+			return true;
+		}
+
+		/** @return whether pid is latched here exclusively */
+		public boolean holdsExclusive(PageId pid) {
+			int i = pids.indexOf(pid);
+			return i >= 0 && modes.get(i);
+		}
+
+		/** Releases the latch on pid, if it is held here. */
+		public void release(PageId pid) {
+			int i = pids.indexOf(pid);
+			if (i >= 0) {
+				unlatch(i);
+			}
+		}
+
+		/**
+		 * Releases the latches taken before the one on pid; once a page is
+		 * safe, its ancestors won't be changed.
+		 */
+		public void releaseBefore(PageId pid) {
+			int i = pids.indexOf(pid);
+			while (i-- > 0) {
+				unlatch(0);
+			}
+		}
+
+		/** Releases all latches held here. */
+		public void releaseAll() {
+			while (!pids.isEmpty()) {
+				unlatch(pids.size() - 1);
+			}
+		}
+
+		private void unlatch(int i) {
+			ReentrantReadWriteLock latch = latchOf(pids.remove(i));
+			if (modes.remove(i)) {
+				latch.writeLock().unlock();
+			} else {
+				latch.readLock().unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * ReadAhead watches the pages a scan asks for and, while they come in
+ * order, asks the BufferPool to read the next pages in the background
+ * (see {@link BufferPool#prefetchPage}), so the scan finds them resident
+ * instead of waiting for the disk.
+ * <p>
+ * Requests go out in batches: when fewer than half a window of pages is
+ * left ahead of the scan, the window is topped up again. A scan that
+ * jumps elsewhere starts over.
+ * <p>
+ * One ReadAhead belongs to one iterator and is not thread safe.
+ */
+public class ReadAhead {
+
+	private final BufferPool pool;
+	/** The ring of the scan, if it has one */
+	private BufferRing ring;
+	/** The page number the scan is expected to ask for next */
+	private int expected;
+	/** Pages before this one have been asked for */
+	private int issued;
+	/** Leaves the scan can walk before the last leaf chain asked for runs out */
+	private int leavesAhead;
+	/** The key field and predicate bounding a B+ tree scan from above, if any */
+	private int keyField;
+	private IndexPredicate bound;
+
+	public ReadAhead() {
+		this.pool = Database.getBufferPool();
+		reset();
+	}
+
+	/** Forgets what the scan has done so far, e.g. after a rewind. */
+	public void reset() {
+		reset(null);
+	}
+
+	/**
+	 * Like {@link #reset()}, for a scan that reads through ring; the pages
+	 * read ahead join the ring.
+	 */
+	public void reset(BufferRing ring) {
+		this.ring = ring;
+		expected = 0;
+		issued = 0;
+		leavesAhead = 0;
+	}
+
+	/**
+	 * Makes a B+ tree scan for ipred read no leaves ahead beyond the one
+	 * where ipred stops holding for good. Only predicates that bound the
+	 * keys from above (EQUALS, LESS_THAN and LESS_THAN_OR_EQ) end a scan
+	 * early; others are ignored.
+	 *
+	 * @param keyField the key field of the tree
+	 */
+	public void limit(int keyField, IndexPredicate ipred) {
+		Predicate.Op op = ipred.getOp();
+		this.keyField = keyField;
+		this.bound = op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+				|| op == Predicate.Op.LESS_THAN_OR_EQ ? ipred : null;
+	}
+
+	/** @return whether the scan ends in leaf, as far as the bound says */
+	private boolean ends(BTreeLeafPage leaf) {
+		if (bound == null) {
+			return false;
+		}
+		Iterator<Tuple> it = leaf.reverseIterator();
+		if (!it.hasNext()) {
+			return false;
+		}
+		Predicate.Op op = bound.getOp() == Predicate.Op.EQUALS
+				? Predicate.Op.LESS_THAN_OR_EQ : bound.getOp();
+		return !it.next().getField(keyField).compare(op, bound.getField());
+	}
+
+	/**
+	 * Called when a scan of a file with numbered pages asks for page pgNo.
+	 *
+	 * @param tableId the file being scanned
+	 * @param pgNo the page the scan asks for
+	 * @param numPages the number of pages in the file
+	 */
+	public void accessed(int tableId, int pgNo, int numPages) {
+		int window = pool.prefetchWindow();
+		boolean sequential = pgNo == expected;
+		expected = pgNo + 1;
+		if (!sequential) {
+			issued = expected;
+			return;
+		}
+		if (window == 0 || issued - expected > window / 2) {
+			return;
+		}
+		int end = Math.min(numPages, expected + window);
+		for (int p = Math.max(issued, expected); p < end; ++p) {
+			pool.prefetchPage(new HeapPageId(tableId, p), ring);
+		}
+		issued = Math.max(issued, end);
+	}
+
+	/**
+	 * Called when a scan of a B+ tree moves to the next leaf. Following the
+	 * right sibling is sequential by definition, so there is nothing to
+	 * detect; the siblings of leaf are asked for once half a window of the
+	 * last request has been used up.
+	 */
+	public void followed(BTreeLeafPage leaf) {
+		int window = pool.prefetchWindow();
+		if (--leavesAhead > window / 2 || window == 0 || ends(leaf)) {
+			return;
+		}
+		BTreePageId next = leaf.getRightSiblingId();
+		if (next != null) {
+			pool.prefetchLeaves(next, window, bound == null ? null : this::ends);
+			leavesAhead = window;
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame. The BufferPool reports every page it admits,
+ * references and drops; the policy keeps whatever per-frame state it needs
+ * (reference bits, access timestamps, ...) to pick a victim.
+ * <p>
+ * The policy to use is chosen with the system property
+ * simpledb.ReplacementPolicy, e.g. -Dsimpledb.ReplacementPolicy=clock.
+ * The default is LRU-2.
+ * <p>
+ * Implementations must be safe to call from several threads.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+	/** Tells the policy whether a resident page may be evicted right now. */
+	public interface Evictable {
+		boolean canEvict(PageId pid);
+	}
+
+	/** The replacement policies known to the BufferPool. */
+	public enum Kind {
+		CLOCK, LRU2;
+
+		/** Creates a policy of this kind for a pool of numPages frames. */
+		public ReplacementPolicy create(int numPages) {
+			switch (this) {
+			case CLOCK:
+				return new ClockReplacementPolicy(numPages);
+			default:
+				return new LruKReplacementPolicy(2);
+			}
+		}
+
+		/**
+		 * @return the kind named by the simpledb.ReplacementPolicy system
+		 *   property, or LRU2 if the property is not set.
+		 */
+		public static Kind fromProperty() {
+			String name = System.getProperty("simpledb.ReplacementPolicy");
+			if (name == null || name.length() == 0) {
+				return LRU2;
+			}
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	/** Records that pid was just brought into the pool. */
+	public void recordInsert(PageId pid);
+
+	/**
+	 * Records that pid was brought into the pool ahead of use by read-ahead.
+	 * It counts as not referenced yet, so until someone asks for it it is
+	 * among the first pages to go and can't push out pages in use.
+	 */
+	public void recordPrefetch(PageId pid);
+
+	/** Records a reference to the resident page pid. */
+	public void recordAccess(PageId pid);
+
+	/** Forgets pid, which has been removed from the pool by someone else. */
+	public void recordRemove(PageId pid);
+
+	/**
+	 * Chooses a page to evict among the pages for which evictable returns
+	 * true and forgets it.
+	 *
+	 * @return the page to evict, or null if no resident page may be evicted
+	 */
+	public PageId evict(Evictable evictable);
+}
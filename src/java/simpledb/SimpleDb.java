@@ -68,6 +68,9 @@ public class SimpleDb {
             }
         }
         else if (args[0].equals("parser")) {
+            // let JMX clients watch lock and buffer pool contention
+            ContentionStats.registerMBean();
+
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length-1];
             for (int i = 1; i < args.length; ++i) {
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -105,7 +106,10 @@ public class TableStats {
             }
     	}
     	this.ntups = 0;
-    	DbFileIterator iterator = dbFile.iterator(new TransactionId());
+    	// a read-only scan takes no locks, which would otherwise stay held
+    	Transaction scan = new Transaction(true);
+    	scan.start();
+    	DbFileIterator iterator = dbFile.iterator(scan.getId());
     	
     	// ===== init histogram ======
     	try {
@@ -151,6 +155,12 @@ public class TableStats {
             }
         } catch (DbException | TransactionAbortedException e) {
             throw new RuntimeException(e);
+        } finally {
+            try {
+                scan.commit();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
     }
 
@@ -5,19 +5,39 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A read-only transaction reads the database as of the latest commit
+ * without taking locks, so it neither waits for writers nor makes them
+ * wait. It writes no log records, and completing it only gives up its
+ * snapshot: there are no pages to flush and no commit to log. Trying to
+ * change a page in it fails with a DbException.
  */
 
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean readOnly;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly whether the transaction only reads, and runs on a
+     *   snapshot when started
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -25,6 +45,22 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only snapshot, as if it had
+     * been created read-only.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public void startSnapshot() {
+        readOnly = true;
+        start();
+    }
+
+    /** @return whether the transaction only reads */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -42,13 +78,18 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            // nothing to write or undo
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log all the dirty pages for this transaction; they are
+                //written out later (NO-FORCE)
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
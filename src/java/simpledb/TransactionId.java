@@ -17,6 +17,20 @@ public class TransactionId implements Serializable {
         myid = counter.getAndIncrement();
     }
 
+    /**
+     * The id of a transaction found in the log by recovery; transactions
+     * begun from now on get higher ids.
+     */
+    TransactionId(long id) {
+        myid = id;
+        reserve(id);
+    }
+
+    /** Makes transactions begun from now on get ids above id. */
+    static void reserve(long id) {
+        counter.accumulateAndGet(id + 1, Math::max);
+    }
+
     public long getId() {
         return myid;
     }
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Iterator;
 
@@ -9,14 +11,21 @@ import simpledb.TupleDesc.TDItem;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Tuples read from a page may decode their fields lazily: they keep a
+ * reference to the page's bytes and turn a field into a Field object the
+ * first time it is asked for.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     
-    private Field[] values;
+    private final Field[] values;
     private TupleDesc td;
     private RecordId recordId;
+    // serialized fields that haven't been asked for yet are decoded from here
+    private transient byte[] source;
+    private transient int sourceOffset;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -31,6 +40,17 @@ public class Tuple implements Serializable {
     	this.values = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are serialized in source, starting at
+     * offset, and are decoded when they are first asked for. source must
+     * not change while the tuple is in use.
+     */
+    Tuple(TupleDesc td, byte[] source, int offset) {
+    	this(td);
+    	this.source = source;
+    	this.sourceOffset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -80,7 +100,27 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return this.values[i];
+    	Field f = this.values[i];
+    	if (f == null && source != null) {
+    		f = td.getFieldType(i).parse(source, sourceOffset + td.getFieldOffset(i));
+    		this.values[i] = f;
+    	}
+        return f;
+    }
+
+    /** Decodes every field not decoded yet and drops the serialized form. */
+    private void decodeAll() {
+    	if (source != null) {
+    		for (int i = 0; i < values.length; ++i) {
+    			getField(i);
+    		}
+    		source = null;
+    	}
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+    	decodeAll();
+    	out.defaultWriteObject();
     }
 
     /**
@@ -94,8 +134,8 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
     	StringBuilder res = new StringBuilder();
-    	for (Field f : values) {
-    		res.append(f);
+    	for (int i = 0; i < values.length; ++i) {
+    		res.append(getField(i));
     		res.append("\t");
     	}
         return res.toString();
@@ -118,7 +158,7 @@ public class Tuple implements Serializable {
             @Override
             public Field next() {
             	if (hasNext()) {
-            		return values[cur++];
+            		return getField(cur++);
             	} else {
             		return null;
             	}
@@ -133,6 +173,8 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+    	// the fields were laid out according to the old TupleDesc
+    	decodeAll();
     	this.td = td;
     }
 }
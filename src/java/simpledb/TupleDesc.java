@@ -62,6 +62,8 @@ public class TupleDesc implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private TDItem[] tdItems;
+    // computed on first use by getFieldOffset
+    private transient volatile int[] fieldOffsets;
 
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
@@ -160,6 +162,22 @@ public class TupleDesc implements Serializable {
         throw new NoSuchElementException();
     }
 
+    /**
+     * @return The offset (in bytes) of the i-th field within a serialized
+     *         tuple of this TupleDesc.
+     */
+    public int getFieldOffset(int i) {
+    	int[] offsets = fieldOffsets;
+    	if (offsets == null) {
+    		offsets = new int[tdItems.length];
+    		for (int j = 1; j < tdItems.length; ++j) {
+    			offsets[j] = offsets[j - 1] + tdItems[j - 1].fieldType.getLen();
+    		}
+    		fieldOffsets = offsets;
+    	}
+    	return offsets[i];
+    }
+
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
      *         Note that tuples from a given TupleDesc are of a fixed size.
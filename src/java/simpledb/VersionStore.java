@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * VersionStore keeps the committed versions of pages that snapshot
+ * transactions may still need, so they can read a consistent state of the
+ * database without taking locks.
+ * <p>
+ * Every commit gets the next commit timestamp, and a snapshot reads the
+ * database as of the latest commit when it began. The latest committed
+ * version of a page is its before image ({@link Page#getBeforeImage}),
+ * which the BufferPool sets when the writing transaction commits. The
+ * versions it replaces are kept here in a chain per page, keyed by the
+ * timestamp of the commit that replaced them: the version a snapshot at
+ * timestamp ts sees is the first one replaced after ts, or the before
+ * image if there is none.
+ * <p>
+ * A page is written out before its writer commits, and might be evicted
+ * and read back in before then, so its before image is set aside when it
+ * is written and only moved into the chain by the commit. A version is
+ * only kept as long as some snapshot that began before its replacement is
+ * running; versions are dropped as the snapshots that need them end.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+	/** Chain key of versions whose replacement hasn't committed yet */
+	private static final long PENDING = Long.MAX_VALUE;
+
+	/** Timestamp of the latest commit */
+	private long clock = 0;
+	/** Timestamps of running snapshots, with how many began at each */
+	private final TreeMap<Long, Integer> active = new TreeMap<Long, Integer>();
+	/** Old versions of each page, by the timestamp they were replaced at */
+	private final HashMap<PageId, TreeMap<Long, Page>> chains =
+		new HashMap<PageId, TreeMap<Long, Page>>();
+	/** The pages with versions replaced at each timestamp, for collection */
+	private final TreeMap<Long, List<PageId>> replaced = new TreeMap<Long, List<PageId>>();
+	/** The pages each running transaction has written out */
+	private final HashMap<TransactionId, Set<PageId>> pending =
+		new HashMap<TransactionId, Set<PageId>>();
+
+	/**
+	 * Starts a snapshot.
+	 *
+	 * @return the snapshot's timestamp, to be passed to read and end
+	 */
+	public synchronized long begin() {
+		active.merge(clock, 1, Integer::sum);
+		return clock;
+	}
+
+	/** Ends the snapshot at timestamp ts, dropping versions nobody needs now. */
+	public synchronized void end(long ts) {
+		if (active.merge(ts, -1, Integer::sum) == 0) {
+			active.remove(ts);
+			collect();
+		}
+	}
+
+	/** @return the number of running snapshots */
+	public synchronized int activeSnapshots() {
+		int count = 0;
+		for (int n : active.values()) {
+			count += n;
+		}
+		return count;
+	}
+
+	/** @return the number of old page versions kept */
+	public synchronized int versions() {
+		int count = 0;
+		for (TreeMap<Long, Page> chain : chains.values()) {
+			count += chain.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the version of a page that the snapshot at timestamp ts sees.
+	 *
+	 * @param page the page as currently cached
+	 */
+	public synchronized Page read(Page page, long ts) {
+		TreeMap<Long, Page> chain = chains.get(page.getId());
+		if (chain != null) {
+			Map.Entry<Long, Page> version = chain.higherEntry(ts);
+			if (version != null) {
+				return version.getValue();
+			}
+		}
+		return page.getBeforeImage();
+	}
+
+	/**
+	 * Sets aside the committed version of page, which tid is about to write
+	 * out, until tid commits or aborts.
+	 */
+	public synchronized void written(TransactionId tid, Page page) {
+		if (pending.computeIfAbsent(tid, key -> new HashSet<PageId>()).add(page.getId())) {
+			chain(page.getId()).putIfAbsent(PENDING, page.getBeforeImage());
+		}
+	}
+
+	/**
+	 * Commits the pages tid has written out: their versions set aside are
+	 * kept for the running snapshots, and their cached copies become the
+	 * latest committed versions.
+	 *
+	 * @param resident returns the cached copy of a page, or null
+	 */
+	public synchronized void commit(TransactionId tid, Function<PageId, Page> resident) {
+		Set<PageId> pids = pending.remove(tid);
+		if (pids == null) {
+			return;
+		}
+		long ts = ++clock;
+		// only snapshots that began before this commit need the old versions
+		boolean needed = !active.isEmpty() && active.firstKey() < ts;
+		for (PageId pid : pids) {
+			TreeMap<Long, Page> chain = chains.get(pid);
+			Page old = chain == null ? null : chain.remove(PENDING);
+			if (old != null && needed) {
+				chain.put(ts, old);
+				replaced.computeIfAbsent(ts, key -> new ArrayList<PageId>()).add(pid);
+			} else if (chain != null && chain.isEmpty()) {
+				chains.remove(pid);
+			}
+			Page page = resident.apply(pid);
+			if (page != null) {
+				page.setBeforeImage();
+			}
+		}
+	}
+
+	/** Drops the versions set aside for the pages tid has written out. */
+	public synchronized void abort(TransactionId tid) {
+		Set<PageId> pids = pending.remove(tid);
+		if (pids == null) {
+			return;
+		}
+		for (PageId pid : pids) {
+			TreeMap<Long, Page> chain = chains.get(pid);
+			if (chain != null) {
+				chain.remove(PENDING);
+				if (chain.isEmpty()) {
+					chains.remove(pid);
+				}
+			}
+		}
+	}
+
+	private TreeMap<Long, Page> chain(PageId pid) {
+		return chains.computeIfAbsent(pid, key -> new TreeMap<Long, Page>());
+	}
+
+	/**
+	 * Drops the versions replaced at or before the oldest running snapshot;
+	 * no snapshot can see them.
+	 */
+	private void collect() {
+		long oldest = active.isEmpty() ? clock : active.firstKey();
+		for (Iterator<Map.Entry<Long, List<PageId>>> it =
+				replaced.headMap(oldest, true).entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Long, List<PageId>> e = it.next();
+			for (PageId pid : e.getValue()) {
+				TreeMap<Long, Page> chain = chains.get(pid);
+				if (chain != null) {
+					chain.remove(e.getKey());
+					if (chain.isEmpty()) {
+						chains.remove(pid);
+					}
+				}
+			}
+			it.remove();
+		}
+	}
+
+}
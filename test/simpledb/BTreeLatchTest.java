@@ -0,0 +1,218 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.BTreeFile.LatchMode;
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+
+	private BufferPool bp;
+	private BTreeFile bf;
+
+	@Before public void setUp() throws Exception {
+		// small pages, so inserts split leaves and the tree has internal pages
+		BufferPool.setPageSize(1024);
+		bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		bp = Database.resetBufferPool(500);
+	}
+
+	@After public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private ArrayList<ArrayList<Integer>> scan() throws Exception {
+		TransactionId tid = new TransactionId();
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			tuples.add(BTreeUtility.tupleToList(it.next()));
+		}
+		it.close();
+		bp.transactionComplete(tid);
+		// tuples with equal keys come in no particular order
+		Collections.sort(tuples, (a, b) -> a.get(0).equals(b.get(0))
+				? a.get(1).compareTo(b.get(1)) : a.get(0).compareTo(b.get(0)));
+		return tuples;
+	}
+
+	private void checkRep() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		bp.transactionComplete(tid);
+	}
+
+	private void concurrentInserts(LatchMode mode) throws Exception {
+		bf.setLatchMode(mode);
+		int before = scan().size();
+		Thread[] threads = new Thread[8];
+		Exception[] error = new Exception[1];
+		for (int i = 0; i < threads.length; i++) {
+			Random r = new Random(i);
+			threads[i] = new Thread(() -> {
+				try {
+					for (int n = 0; n < 100; ) {
+						TransactionId tid = new TransactionId();
+						try {
+							bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {
+									r.nextInt(BTreeUtility.MAX_RAND_VALUE), r.nextInt(BTreeUtility.MAX_RAND_VALUE)}));
+							bp.transactionComplete(tid);
+							n++;
+						} catch (TransactionAbortedException e) {
+							bp.transactionComplete(tid, false);
+						}
+					}
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (error[0] != null) {
+			throw error[0];
+		}
+		assertEquals(before + 800, scan().size());
+		checkRep();
+	}
+
+	/**
+	 * Inserts from many threads, splitting leaves and internal pages, leave
+	 * a sound tree with all their tuples.
+	 */
+	@Test(timeout = 60000) public void crabbingInserts() throws Exception {
+		concurrentInserts(LatchMode.CRABBING);
+	}
+
+	@Test(timeout = 60000) public void optimisticInserts() throws Exception {
+		concurrentInserts(LatchMode.OPTIMISTIC);
+	}
+
+	@Test(timeout = 60000) public void blinkInserts() throws Exception {
+		concurrentInserts(LatchMode.BLINK);
+		// every split has its parent entry, and no operation is under way
+		assertEquals(0, bf.numLinks());
+	}
+
+	/**
+	 * Leaves whose parent entries a crash kept BLINK splits from adding
+	 * are searched for in the leaf before them until recovery completes
+	 * the splits.
+	 */
+	@Test public void completeSplits() throws Exception {
+		ArrayList<ArrayList<Integer>> before = scan();
+
+		// take two neighbouring leaves out of the root, as if their splits were cut short
+		TransactionId tid = new TransactionId();
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY)).getRootId();
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_WRITE);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = root.iterator();
+		while (it.hasNext()) {
+			entries.add(it.next());
+		}
+		assertTrue(entries.size() > 4);
+		BTreePageId[] lost = { entries.get(2).getRightChild(), entries.get(3).getRightChild() };
+		Field[] keys = new Field[lost.length];
+		root.deleteKeyAndRightChild(entries.get(2));
+		root.deleteKeyAndRightChild(entries.get(3));
+		root.markDirty(true, tid);
+		for (int i = 0; i < lost.length; i++) {
+			// the last key, as equal keys may also be on the page before
+			keys[i] = ((BTreeLeafPage) bp.getPage(tid, lost[i], Permissions.READ_ONLY))
+					.reverseIterator().next().getField(bf.keyField());
+			assertFalse(lost[i].equals(bf.findLeafPage(tid, Permissions.READ_ONLY, keys[i]).getId()));
+		}
+		bp.transactionComplete(tid);
+
+		tid = new TransactionId();
+		bp.completeSplits(tid);
+		bp.transactionComplete(tid);
+		tid = new TransactionId();
+		for (int i = 0; i < lost.length; i++) {
+			assertEquals(lost[i], bf.findLeafPage(tid, Permissions.READ_ONLY, keys[i]).getId());
+		}
+		bp.transactionComplete(tid);
+		assertEquals(before, scan());
+		checkRep();
+	}
+
+	/**
+	 * An abort undoes inserts and deletes tuple by tuple, and keeps the
+	 * splits they made.
+	 */
+	@Test public void abortUndoesTuples() throws Exception {
+		bf.setLatchMode(LatchMode.CRABBING);
+		ArrayList<ArrayList<Integer>> before = scan();
+		int pages = bf.numPages();
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 300; i++) {
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {i * 200, i}));
+		}
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(1000)));
+		it.open();
+		ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+		while (it.hasNext()) {
+			doomed.add(it.next());
+		}
+		it.close();
+		for (Tuple t : doomed) {
+			bp.deleteTuple(tid, t);
+		}
+		assertTrue(bf.numPages() > pages);
+		bp.transactionComplete(tid, false);
+
+		assertEquals(before, scan());
+		checkRep();
+	}
+
+	/**
+	 * Readers only lock the leaves they read.
+	 */
+	@Test public void readersLockOnlyLeaves() throws Exception {
+		bf.setLatchMode(LatchMode.OPTIMISTIC);
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(42)));
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+		}
+		it.close();
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getLatchedPage(tid, rootPtrId,
+				Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.BTreeFile.LatchMode;
+import simpledb.Predicate.Op;
+
+/**
+ * Measures BTreeFile point lookup throughput and latency against the number
+ * of threads, in each latch mode. Each thread runs transactions that look up
+ * one random key, or, one time in writesPer100 out of a hundred, insert a
+ * tuple with a random key, so leaves and now and then internal pages split
+ * while the lookups go on.
+ * <p>
+ * Run with: java -cp bin/src:bin/test simpledb.BTreeLookupBenchmark
+ * [tuples] [writesPer100] [secondsPerRun]
+ */
+public class BTreeLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int writes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 2.0;
+
+        // small pages, so the tree is a few levels deep
+        BufferPool.setPageSize(1024);
+        System.out.printf("tuples=%d, writes/100=%d, %d core(s)%n", tuples, writes,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%10s %8s %12s %10s %12s %12s %10s%n", "mode", "threads", "txn/s",
+                "aborts", "p50 us", "p99 us", "restarts");
+        for (LatchMode mode : LatchMode.values()) {
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, tuples, null, null, 0);
+                Database.resetBufferPool(4 * tuples / 100 + 1000);
+                bf.setLatchMode(mode);
+                run(mode, bf, writes, threads, seconds);
+            }
+        }
+    }
+
+    private static void run(LatchMode mode, BTreeFile bf, int writes, int threads,
+            double seconds) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        long restartsBefore = bp.getLatches().restarts();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        long[] aborts = new long[threads];
+        Exception[] error = new Exception[1];
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i) {
+            final int me = i;
+            new Thread(() -> {
+                Random rand = new Random(me);
+                long[] lat = new long[1 << 16];
+                int n = 0;
+                try {
+                    while (!stop.get()) {
+                        TransactionId tid = new TransactionId();
+                        int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                        long start = System.nanoTime();
+                        try {
+                            if (rand.nextInt(100) < writes) {
+                                bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(
+                                        new int[] { key, rand.nextInt(BTreeUtility.MAX_RAND_VALUE) }));
+                            } else {
+                                DbFileIterator it = bf.indexIterator(tid,
+                                        new IndexPredicate(Op.EQUALS, new IntField(key)));
+                                it.open();
+                                while (it.hasNext()) {
+                                    it.next();
+                                }
+                                it.close();
+                            }
+                            bp.transactionComplete(tid);
+                        } catch (TransactionAbortedException e) {
+                            ++aborts[me];
+                            bp.transactionComplete(tid, false);
+                        }
+                        if (n == lat.length) {
+                            lat = Arrays.copyOf(lat, 2 * n);
+                        }
+                        lat[n++] = System.nanoTime() - start;
+                    }
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+                latencies[me] = lat;
+                counts[me] = n;
+                done.countDown();
+            }).start();
+        }
+        Thread.sleep((long) (seconds * 1000));
+        stop.set(true);
+        done.await();
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        int total = 0;
+        long aborted = 0;
+        for (int i = 0; i < threads; ++i) {
+            total += counts[i];
+            aborted += aborts[i];
+        }
+        long[] all = new long[total];
+        int off = 0;
+        for (int i = 0; i < threads; ++i) {
+            System.arraycopy(latencies[i], 0, all, off, counts[i]);
+            off += counts[i];
+        }
+        Arrays.sort(all);
+        System.out.printf("%10s %8d %12.0f %10d %12.1f %12.1f %10d%n", mode, threads,
+                (total - aborted) / seconds, aborted, percentile(all, 0.5),
+                percentile(all, 0.99), bp.getLatches().restarts() - restartsBefore);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000.0;
+    }
+}
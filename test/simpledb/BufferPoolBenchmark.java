@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures BufferPool.getPage throughput against the number of threads,
+ * for an unpartitioned pool and for a sharded one. Each thread reads
+ * random pages of a table twice the size of the pool, so the run mixes
+ * hits, misses and evictions.
+ * <p>
+ * Run with: java -cp bin/src:bin/test simpledb.BufferPoolBenchmark
+ * [poolPages] [shards] [secondsPerRun]
+ */
+public class BufferPoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int poolPages = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        int tablePages = 2 * poolPages;
+        int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+
+        File f = File.createTempFile("bpbench", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.deleteOnExit(f);
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        FileOutputStream fos = new FileOutputStream(f, true);
+        byte[] empty = HeapPage.createEmptyPageData();
+        for (int i = 1; i < tablePages; ++i) {
+            fos.write(empty);
+        }
+        fos.close();
+
+        System.out.printf("pool=%d pages, table=%d pages, %d core(s)%n",
+                poolPages, tablePages, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %16s %16s%n", "threads", "1 shard ops/s",
+                shards + " shards ops/s");
+        for (int threads = 1; threads <= Math.max(maxThreads, 16); threads *= 2) {
+            double single = run(new BufferPool(poolPages, 1,
+                    ReplacementPolicy.Kind.LRU2), hf, threads, seconds);
+            double sharded = run(new BufferPool(poolPages, shards,
+                    ReplacementPolicy.Kind.LRU2), hf, threads, seconds);
+            System.out.printf("%8d %16.0f %16.0f%n", threads, single, sharded);
+        }
+    }
+
+    private static double run(BufferPool pool, HeapFile hf, int threads,
+            double seconds) throws Exception {
+        int tablePages = hf.numPages();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong ops = new AtomicLong(0);
+        CountDownLatch warm = new CountDownLatch(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i) {
+            final long seed = i;
+            new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                Random rand = new Random(seed);
+                try {
+                    // take every shared lock up front so the timed loop
+                    // measures the page table rather than lock setup
+                    for (int pg = 0; pg < tablePages; ++pg) {
+                        pool.getPage(tid, new HeapPageId(hf.getId(), pg),
+                                Permissions.READ_ONLY);
+                    }
+                    warm.countDown();
+                    warm.await();
+                    long n = 0;
+                    while (!stop.get()) {
+                        pool.getPage(tid, new HeapPageId(hf.getId(),
+                                rand.nextInt(tablePages)), Permissions.READ_ONLY);
+                        ++n;
+                    }
+                    ops.addAndGet(n);
+                    pool.transactionComplete(tid);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        warm.await();
+        long start = System.nanoTime();
+        Thread.sleep((long) (seconds * 1000));
+        stop.set(true);
+        done.await();
+        return ops.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolLoadTest extends TestUtil.CreateHeapFile {
+
+    // class that counts, and slows down, reads from disk
+    class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                // just read sooner
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile slow;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        slow = new SlowHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(slow, "slow");
+        pid = new HeapPageId(slow.getId(), 0);
+    }
+
+    /**
+     * Concurrent misses on one page share a single read and a single frame.
+     */
+    @Test public void singleFlight() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final Page[] pages = new Page[4];
+        Thread[] threads = new Thread[pages.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int n = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    pages[n] = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, slow.reads.get());
+        for (Page p : pages) {
+            assertSame(pages[0], p);
+        }
+        assertSame(pages[0], bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY));
+        assertEquals(1, slow.reads.get());
+    }
+
+    /**
+     * A discarded page is read again on the next request.
+     */
+    @Test public void rereadAfterDiscard() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Page first = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        bp.discardPage(pid);
+        Page second = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertEquals(2, slow.reads.get());
+        assertEquals(first.getId(), second.getId());
+    }
+
+    /**
+     * A page discarded while it is being read is read again, and the reader
+     * gets the copy that is in the pool rather than the stale one.
+     */
+    @Test public void discardDuringRead() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final Page[] page = new Page[1];
+        Thread reader = new Thread(() -> {
+            try {
+                page[0] = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (slow.reads.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        bp.discardPage(pid);
+        reader.join();
+
+        assertEquals(2, slow.reads.get());
+        assertSame(page[0], bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY));
+        assertEquals(2, slow.reads.get());
+    }
+
+    /**
+     * A sequential scan has the next pages read in the background, and
+     * reads each page only once.
+     */
+    @Test public void scanReadsAhead() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        SlowHeapFile f = new SlowHeapFile(full.getFile(), full.getTupleDesc());
+        Database.getCatalog().addTable(f, "slowfull");
+        DbFileIterator it = f.iterator(new TransactionId());
+        it.open();
+        // the first page is in, and the rest are on their way
+        long deadline = System.currentTimeMillis() + 10000;
+        while (f.reads.get() < 6 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(6, f.reads.get());
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++count;
+        }
+        it.close();
+        assertEquals(504 * 6, count);
+        assertEquals(6, f.reads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolLoadTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    // class that counts reads from disk
+    class CountingHeapFile extends HeapFile {
+        int reads = 0;
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            ++reads;
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile createTable(int pages) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1000, null, null);
+        CountingHeapFile table = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    private static int scan(DbFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++count;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // keep read-ahead out of the read counts
+        BufferPool.setPrefetchWindow(0);
+    }
+
+    @After public void tearDown() {
+        BufferPool.setPrefetchWindow(BufferPool.DEFAULT_PREFETCH_WINDOW);
+    }
+
+    /**
+     * Only files that don't fit comfortably in the pool get a ring.
+     */
+    @Test public void ringFor() {
+        BufferPool bp = new BufferPool(100, 1, ReplacementPolicy.Kind.LRU2);
+        TransactionId tid = new TransactionId();
+        assertNull(bp.ringFor(tid, 75));
+        assertEquals(12, bp.ringFor(tid, 76).size());
+    }
+
+    /**
+     * The ring gives up its oldest page once it has more pages than frames.
+     */
+    @Test public void overflow() {
+        BufferRing ring = new BufferRing(new TransactionId(), 2);
+        for (int i = 0; i < 3; ++i) {
+            ring.add(new HeapPageId(-1, i));
+        }
+        assertEquals(new HeapPageId(-1, 0), ring.overflow());
+        assertNull(ring.overflow());
+    }
+
+    /**
+     * Scanning a file several times the size of the pool doesn't push out
+     * the pages of a small table that is in use.
+     */
+    @Test public void scanKeepsHotPages() throws Exception {
+        CountingHeapFile hot = createTable(5);
+        CountingHeapFile big = createTable(BufferPool.DEFAULT_PAGES * 3);
+
+        // used once only, so without a ring the big scan's pages would win
+        assertEquals(504 * 5, scan(hot));
+        assertEquals(5, hot.reads);
+
+        assertEquals(504 * BufferPool.DEFAULT_PAGES * 3, scan(big));
+        assertEquals(BufferPool.DEFAULT_PAGES * 3, big.reads);
+
+        assertEquals(504 * 5, scan(hot));
+        assertEquals(5, hot.reads);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
@@ -0,0 +1,51 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkLoaderTest extends TestUtil.CreateHeapFile {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        Database.getCatalog().addTable(empty, "bulk");
+    }
+
+    /**
+     * A load bigger than the buffer pool goes through, in batches that
+     * each fit in the pool.
+     */
+    @Test public void loadMoreThanPool() throws Exception {
+        int pages = BufferPool.DEFAULT_PAGES * 2;
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * pages; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(tuples.size(), BulkLoader.load(empty.getId(), tuples.iterator()));
+        assertEquals(pages, empty.numPages());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(0)).getValue());
+            ++count;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(tuples.size(), count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
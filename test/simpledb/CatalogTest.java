@@ -1,6 +1,8 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -29,6 +31,31 @@ public class CatalogTest extends SimpleDbTestBase {
         Database.getCatalog().addTable(new SkeletonFile(id2, Utility.getTupleDesc(2)), name);
     }
 
+    /**
+     * Replacing a table, or clearing the catalog, closes the files of the
+     * tables dropped; so does resetting the database.
+     */
+    @Test public void closesDroppedFiles() throws Exception {
+        HeapFile first = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        String table = Database.getCatalog().getTableName(first.getId());
+        FileHandleManager handles = Database.getFileHandleManager();
+        first.numPages();
+        assertTrue(handles.isOpen(first));
+
+        HeapFile second = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getCatalog().addTable(second, table);
+        assertFalse(handles.isOpen(first));
+
+        second.numPages();
+        Database.getCatalog().clear();
+        assertFalse(handles.isOpen(second));
+
+        first.numPages();
+        assertTrue(handles.isOpen(first));
+        Database.reset();
+        assertFalse(handles.isOpen(first));
+    }
+
     /**
      * Unit test for Catalog.getTupleDesc()
      */
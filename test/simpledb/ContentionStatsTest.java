@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ContentionStatsTest extends SimpleDbTestBase {
+
+    /**
+     * Hits, misses, evictions, reads and writes are counted, and the
+     * snapshot tells the resident and dirty pages; the MXBean shows the same.
+     */
+    @Test public void poolCounts() throws Exception {
+        // four pages
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; ++i) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, new HeapPageId(f.getId(), 3), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+
+        ContentionStats.Snapshot s = bp.getStats().snapshot();
+        assertEquals(4, s.misses);
+        assertEquals(1, s.hits);
+        assertEquals(0.2, s.hitRatio(), 1e-9);
+        assertEquals(2, s.evictions);
+        assertEquals(4, s.pageReads);
+        assertEquals(2, s.residentPages);
+        assertEquals(0, s.dirtyPages);
+
+        tid = new TransactionId();
+        bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        assertEquals(1, bp.getStats().snapshot().dirtyPages);
+        bp.transactionComplete(tid);
+        s = bp.getStats().snapshot();
+        assertEquals(0, s.dirtyPages);
+        assertEquals(1, s.pageWrites);
+
+        ContentionStats.registerMBean();
+        Object misses = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(ContentionStats.MBEAN_NAME), "Misses");
+        assertEquals(bp.getStats().snapshot().misses, ((Long) misses).longValue());
+        Object resident = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(ContentionStats.MBEAN_NAME), "ResidentPages");
+        assertEquals(bp.getStats().snapshot().residentPages, ((Integer) resident).intValue());
+    }
+
+    /**
+     * Lock waits are counted against their page and table, and the victim
+     * of a deadlock as an abort.
+     */
+    @Test public void lockWaits() throws Exception {
+        LockManager lm = new LockManager(LockManager.DeadlockPolicy.DETECT);
+        PageId p0 = new HeapPageId(7, 0), p1 = new HeapPageId(7, 1);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+        Thread waiter = new Thread(() -> {
+            try {
+                lm.acquire(t2, p0, Permissions.READ_WRITE);
+            } catch (TransactionAbortedException e) {
+                lm.releaseAll(t2);
+            }
+        });
+        waiter.start();
+        while (lm.getStats().snapshot().queuedLocks == 0) {
+            Thread.sleep(1);
+        }
+        // closes the cycle; t2 is younger, so it aborts
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        waiter.join();
+        lm.releaseAll(t1);
+
+        ContentionStats.Snapshot s = lm.getStats().snapshot();
+        assertEquals(2, s.lockWaits);
+        assertEquals(1, s.deadlockAborts);
+        assertEquals(0, s.queuedLocks);
+        assertEquals(1, s.maxLockQueue);
+        assertEquals(2, s.hotPages.size());
+        assertEquals(1, s.hotTables.size());
+        assertEquals(Integer.valueOf(7), s.hotTables.get(0).key);
+        assertEquals(2, s.hotTables.get(0).waits);
+        assertTrue(s.lockWaitMaxNanos >= s.lockWaitP50Nanos);
+
+        lm.getStats().reset();
+        assertEquals(0, lm.getStats().snapshot().lockWaits);
+    }
+
+    /**
+     * Percentiles are upper bounds within a factor of two.
+     */
+    @Test public void histogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100; ++i) {
+            h.record(i * 1000);
+        }
+        assertEquals(100, h.count());
+        assertEquals(100000, h.maxNanos());
+        long p50 = h.percentileNanos(0.5);
+        assertTrue(p50 >= 50000 && p50 < 100000);
+        assertEquals(100000, h.percentileNanos(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ContentionStatsTest.class);
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private File heapFile;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        heapFile = File.createTempFile("fsm", ".dat");
+        heapFile.deleteOnExit();
+        FreeSpaceMap.deleteOnExit(heapFile);
+    }
+
+    /**
+     * Pages the map knows nothing about count as having room.
+     */
+    @Test public void unknownPagesHaveRoom() {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        assertEquals(0, fsm.pageWithRoom(3));
+        assertEquals(-1, fsm.pageWithRoom(0));
+        fsm.update(0, 0);
+        fsm.update(2, 0);
+        assertEquals(1, fsm.pageWithRoom(3));
+        fsm.update(1, 0);
+        assertEquals(-1, fsm.pageWithRoom(3));
+        assertEquals(3, fsm.pageWithRoom(4));
+        fsm.update(1, 600);
+        assertEquals(1, fsm.pageWithRoom(4));
+    }
+
+    /**
+     * Written entries survive in the side file; in-memory updates don't.
+     */
+    @Test public void persistent() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        fsm.write(0, 0, heapFile.length());
+        fsm.write(1, 0, heapFile.length());
+        fsm.update(2, 0);
+        Database.getFileHandleManager().close(fsm);
+
+        FreeSpaceMap reopened = new FreeSpaceMap(heapFile);
+        assertEquals(2, reopened.pageWithRoom(3));
+    }
+
+    /**
+     * Forgotten pages count as having room again.
+     */
+    @Test public void forget() {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        fsm.update(0, 0);
+        fsm.update(1, 0);
+        assertEquals(-1, fsm.pageWithRoom(2));
+        fsm.forget(1);
+        assertEquals(1, fsm.pageWithRoom(2));
+        fsm.update(1, 0);
+        fsm.forget(5);
+        assertEquals(2, fsm.pageWithRoom(3));
+    }
+
+    /**
+     * A page the map says is full but is read with room, as a crash may
+     * leave it, has room again.
+     */
+    @Test public void fullPageReadWithRoom() {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        fsm.update(0, 0);
+        fsm.update(1, 0);
+        fsm.pageRead(0, 0);
+        fsm.pageRead(2, 5);
+        assertEquals(-1, fsm.pageWithRoom(2));
+        fsm.pageRead(1, 3);
+        assertEquals(1, fsm.pageWithRoom(2));
+    }
+
+    /**
+     * A side file written for a heap file of another length is ignored.
+     */
+    @Test public void staleSideFile() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(heapFile);
+        fsm.write(0, 0, heapFile.length());
+        Database.getFileHandleManager().close(fsm);
+        assertEquals(1, new FreeSpaceMap(heapFile).pageWithRoom(2));
+
+        FileOutputStream out = new FileOutputStream(heapFile, true);
+        out.write(new byte[BufferPool.getPageSize()]);
+        out.close();
+        assertEquals(0, new FreeSpaceMap(heapFile).pageWithRoom(2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures commits per second of a LogFile against the number of
+ * committing threads. Each thread runs empty transactions, a BEGIN and a
+ * COMMIT record, so the run is bound by forcing the log. The "serial" rows
+ * commit one thread at a time, which is one force per commit as before
+ * group commit; the others use group commit with the given wait window,
+ * and show how many commits share a force.
+ * <p>
+ * Run with: java -cp bin/src:bin/test simpledb.GroupCommitBenchmark
+ * [maxBatch] [secondsPerRun] [waitMicros...]
+ */
+public class GroupCommitBenchmark {
+
+    private static final Object SERIAL = new Object();
+
+    public static void main(String[] args) throws Exception {
+        int maxBatch = args.length > 0 ? Integer.parseInt(args[0])
+                : LogFile.DEFAULT_GROUP_COMMIT_MAX_BATCH;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2.0;
+        long[] waits = new long[] { 0, 200, 1000 };
+        if (args.length > 2) {
+            waits = new long[args.length - 2];
+            for (int i = 2; i < args.length; ++i) {
+                waits[i - 2] = Long.parseLong(args[i]);
+            }
+        }
+
+        System.out.printf("maxBatch=%d, %d core(s)%n", maxBatch,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %10s %12s %12s %12s %12s%n", "threads", "wait us",
+                "commits/s", "per force", "p50 us", "p99 us");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            run(threads, -1, maxBatch, seconds);
+            for (long wait : waits) {
+                run(threads, wait, maxBatch, seconds);
+            }
+        }
+    }
+
+    /** @param wait the group commit window, or -1 to commit serially */
+    private static void run(int threads, long wait, int maxBatch, double seconds)
+            throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        LogFile.setGroupCommit(Math.max(wait, 0), maxBatch);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        long forcesBefore = log.getForces();
+        for (int i = 0; i < threads; ++i) {
+            final int me = i;
+            new Thread(() -> {
+                long[] lat = new long[1 << 12];
+                int n = 0;
+                try {
+                    while (!stop.get()) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        long start = System.nanoTime();
+                        if (wait < 0) {
+                            synchronized (SERIAL) {
+                                log.logCommit(tid);
+                            }
+                        } else {
+                            log.logCommit(tid);
+                        }
+                        if (n == lat.length) {
+                            lat = Arrays.copyOf(lat, 2 * n);
+                        }
+                        lat[n++] = System.nanoTime() - start;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                latencies[me] = lat;
+                counts[me] = n;
+                done.countDown();
+            }).start();
+        }
+        Thread.sleep((long) (seconds * 1000));
+        stop.set(true);
+        done.await();
+        long forces = log.getForces() - forcesBefore;
+
+        int total = 0;
+        for (int i = 0; i < threads; ++i) {
+            total += counts[i];
+        }
+        long[] all = new long[total];
+        int off = 0;
+        for (int i = 0; i < threads; ++i) {
+            System.arraycopy(latencies[i], 0, all, off, counts[i]);
+            off += counts[i];
+        }
+        Arrays.sort(all);
+        System.out.printf("%8d %10s %12.0f %12.1f %12.1f %12.1f%n", threads,
+                wait < 0 ? "serial" : Long.toString(wait), total / seconds,
+                forces == 0 ? 0 : (double) total / forces, percentile(all, 0.5),
+                percentile(all, 0.99));
+        f.delete();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000.0;
+    }
+}
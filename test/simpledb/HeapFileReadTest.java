@@ -77,6 +77,46 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode, including a
+     * page appended after the file was mapped.
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        hf.setMemoryMapped(true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+        assertFalse(page.isSlotUsed(20));
+
+        HeapPage grown = new HeapPage(new HeapPageId(hf.getId(), 1),
+                HeapPage.createEmptyPageData());
+        grown.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(grown);
+        assertEquals(2, hf.numPages());
+        page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertEquals(503, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(0));
+
+        // writes through the channel are visible to the mapping
+        grown.insertTuple(Utility.getHeapTuple(8, 2));
+        hf.writePage(grown);
+        page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertEquals(502, page.getNumEmptySlots());
+    }
+
+    /**
+     * A memory-mapped read that comes up short fails rather than returning
+     * a partly zeroed page.
+     */
+    @Test(expected = java.io.EOFException.class)
+    public void readMappedShort() throws Exception {
+        byte[] data = HeapPage.createEmptyPageData();
+        Database.getFileHandleManager().readMappedFully(hf, hf.getFile(), data,
+                BufferPool.getPageSize() / 2);
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -5,6 +5,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
 import junit.framework.JUnit4TestAdapter;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
@@ -43,6 +46,62 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples()
+     */
+    @Test public void addTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        ArrayList<Page> dirtied = empty.insertTuples(tid, tuples.iterator());
+        assertEquals(3, empty.numPages());
+        assertEquals(3, dirtied.size());
+        assertEquals(0, ((HeapPage) dirtied.get(1)).getNumEmptySlots());
+        assertEquals(503, ((HeapPage) dirtied.get(2)).getNumEmptySlots());
+    }
+
+    /**
+     * Inserts go straight to a page with room, and lock no other page.
+     */
+    @Test public void insertUsesFreeSpace() throws Exception {
+        for (int i = 0; i < 504 * 2; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(-1, empty.getFreeSpaceMap().pageWithRoom(empty.numPages()));
+
+        // free a slot on the second page
+        tid = new TransactionId();
+        HeapPageId second = new HeapPageId(empty.getId(), 1);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, second,
+                Permissions.READ_ONLY);
+        empty.deleteTuple(tid, page.iterator().next());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(2, empty.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, second));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+    }
+
+    /**
+     * A page an aborted insert filled has room again.
+     */
+    @Test public void abortedInsertLeavesRoom() throws Exception {
+        for (int i = 0; i < 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(-1, empty.getFreeSpaceMap().pageWithRoom(empty.numPages()));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(0, empty.getFreeSpaceMap().pageWithRoom(empty.numPages()));
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(1, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -126,6 +126,31 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * getPageData writes back the slots that changed and keeps the others,
+     * including ones whose tuples were never decoded.
+     */
+    @Test public void pageDataAfterChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        // only decode one field of the second tuple
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[1][1],
+                ((IntField) it.next().getField(1)).getValue());
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        it = copy.iterator();
+        assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(new int[] { 7, 8 }), it.next()));
+        for (int row = 1; row < HeapPageReadTest.EXAMPLE_VALUES.length; ++row) {
+            Tuple t = it.next();
+            assertEquals(HeapPageReadTest.EXAMPLE_VALUES[row][0], ((IntField) t.getField(0)).getValue());
+            assertEquals(HeapPageReadTest.EXAMPLE_VALUES[row][1], ((IntField) t.getField(1)).getValue());
+        }
+        assertEquals(false, it.hasNext());
+    }
+
     /**
      * JUnit suite target
      */
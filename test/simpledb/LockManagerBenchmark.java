@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures LockManager throughput and acquisition latency against the
+ * number of threads. Each thread runs transactions that lock a few random
+ * pages of a small table, one in four of them for writing, and then
+ * release everything, so the run mixes uncontended grants, shared locks,
+ * waits and the occasional deadlock.
+ * <p>
+ * Run with: java -cp bin/src:bin/test simpledb.LockManagerBenchmark
+ * [pages] [locksPerTransaction] [secondsPerRun]
+ */
+public class LockManagerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int locks = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 2.0;
+
+        System.out.printf("pages=%d, locks/txn=%d, %d core(s)%n", pages, locks,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %12s %10s %12s %12s %12s %10s%n", "threads", "txn/s",
+                "aborts", "p50 us", "p99 us", "p99.9 us", "threads+");
+        for (int threads = 1; threads <= 64; threads *= 4) {
+            run(new LockManager(), pages, locks, threads, seconds);
+        }
+    }
+
+    private static void run(LockManager lm, int pages, int locks, int threads,
+            double seconds) throws Exception {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        long[] commits = new long[threads];
+        long[] aborts = new long[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        int threadsBefore = Thread.activeCount();
+        int[] peakThreads = new int[] { threadsBefore };
+        for (int i = 0; i < threads; ++i) {
+            final int me = i;
+            new Thread(() -> {
+                Random rand = new Random(me);
+                long[] lat = new long[1 << 16];
+                int n = 0;
+                while (!stop.get()) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (int j = 0; j < locks; ++j) {
+                            PageId pid = new HeapPageId(1, rand.nextInt(pages));
+                            Permissions perm = rand.nextInt(4) == 0
+                                    ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                            long start = System.nanoTime();
+                            lm.acquire(tid, pid, perm);
+                            if (n == lat.length) {
+                                lat = Arrays.copyOf(lat, 2 * n);
+                            }
+                            lat[n++] = System.nanoTime() - start;
+                        }
+                        ++commits[me];
+                    } catch (TransactionAbortedException e) {
+                        ++aborts[me];
+                    }
+                    lm.releaseAll(tid);
+                    if (me == 0) {
+                        peakThreads[0] = Math.max(peakThreads[0], Thread.activeCount());
+                    }
+                }
+                latencies[me] = lat;
+                counts[me] = n;
+                done.countDown();
+            }).start();
+        }
+        Thread.sleep((long) (seconds * 1000));
+        stop.set(true);
+        done.await();
+
+        int total = 0;
+        long txns = 0, aborted = 0;
+        for (int i = 0; i < threads; ++i) {
+            total += counts[i];
+            txns += commits[i];
+            aborted += aborts[i];
+        }
+        long[] all = new long[total];
+        int off = 0;
+        for (int i = 0; i < threads; ++i) {
+            System.arraycopy(latencies[i], 0, all, off, counts[i]);
+            off += counts[i];
+        }
+        Arrays.sort(all);
+        System.out.printf("%8d %12.0f %10d %12.1f %12.1f %12.1f %10d%n", threads,
+                txns / seconds, aborted, percentile(all, 0.5), percentile(all, 0.99),
+                percentile(all, 0.999), peakThreads[0] - threadsBefore - threads);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000.0;
+    }
+}
@@ -0,0 +1,269 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager lm;
+    private PageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        pid = new HeapPageId(1, 0);
+    }
+
+    private Thread acquireLater(TransactionId tid, Permissions perm) {
+        return acquireLater(tid, pid, perm, null);
+    }
+
+    /**
+     * Acquires the lock in a new thread; if that aborts, sets aborted[0]
+     * and releases tid's locks.
+     */
+    private Thread acquireLater(TransactionId tid, PageId pid, Permissions perm,
+            boolean[] aborted) {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, perm);
+            } catch (TransactionAbortedException e) {
+                // otherwise shows up as the lock not being held
+                if (aborted != null) {
+                    aborted[0] = true;
+                    lm.releaseAll(tid);
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * Shared locks are shared, and an upgrade by the only holder is
+     * granted right away.
+     */
+    @Test public void sharedAndUpgrade() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, pid, Permissions.READ_ONLY);
+        lm.acquire(t2, pid, Permissions.READ_ONLY);
+        assertTrue(lm.hold(t1, pid));
+        assertTrue(lm.hold(t2, pid));
+        lm.release(t2, pid);
+        assertFalse(lm.hold(t2, pid));
+        lm.acquire(t1, pid, Permissions.READ_WRITE);
+        lm.releaseAll(t1);
+        assertFalse(lm.hold(t1, pid));
+    }
+
+    /**
+     * releaseAll releases all of the transaction's locks, including ones it
+     * upgraded, and nobody else's.
+     */
+    @Test public void releaseAll() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        lm.acquire(t1, pid, Permissions.READ_ONLY);
+        lm.acquire(t1, pid, Permissions.READ_WRITE);
+        lm.acquire(t1, other, Permissions.READ_ONLY);
+        lm.acquire(t2, other, Permissions.READ_ONLY);
+        lm.release(t1, other);
+        lm.acquire(t1, other, Permissions.READ_ONLY);
+
+        lm.releaseAll(t1);
+        assertFalse(lm.hold(t1, pid));
+        assertFalse(lm.hold(t1, other));
+        assertTrue(lm.hold(t2, other));
+        lm.acquire(t2, pid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * A reader arriving behind a waiting writer doesn't barge past it, and
+     * both are granted in order as the locks are released.
+     */
+    @Test public void fifo() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId late = new TransactionId();
+        lm.acquire(reader, pid, Permissions.READ_ONLY);
+
+        Thread w = acquireLater(writer, Permissions.READ_WRITE);
+        Thread.sleep(20);
+        Thread r = acquireLater(late, Permissions.READ_ONLY);
+        Thread.sleep(20);
+        assertFalse(lm.hold(writer, pid));
+        assertFalse(lm.hold(late, pid));
+
+        lm.releaseAll(reader);
+        w.join();
+        assertTrue(lm.hold(writer, pid));
+        assertFalse(lm.hold(late, pid));
+
+        lm.releaseAll(writer);
+        r.join();
+        assertTrue(lm.hold(late, pid));
+    }
+
+    /**
+     * A deadlock is broken right away by aborting its youngest transaction.
+     */
+    @Test public void detectAbortsYoungest() throws Exception {
+        PageId other = new HeapPageId(1, 1);
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(older, pid, Permissions.READ_WRITE);
+        lm.acquire(younger, other, Permissions.READ_WRITE);
+
+        boolean[] aborted = new boolean[1];
+        Thread t = acquireLater(younger, pid, Permissions.READ_WRITE, aborted);
+        Thread.sleep(20);
+        assertFalse(aborted[0]);
+        // closes the cycle
+        lm.acquire(older, other, Permissions.READ_WRITE);
+        t.join();
+        assertTrue(aborted[0]);
+        assertTrue(lm.hold(older, other));
+    }
+
+    /**
+     * Under wait-die, only older transactions wait for younger ones.
+     */
+    @Test public void waitDie() throws Exception {
+        lm = new LockManager(LockManager.DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(older, pid, Permissions.READ_ONLY);
+        try {
+            lm.acquire(younger, pid, Permissions.READ_WRITE);
+            fail("younger transaction should have died");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        PageId other = new HeapPageId(1, 1);
+        lm.acquire(younger, other, Permissions.READ_WRITE);
+        boolean[] aborted = new boolean[1];
+        Thread t = acquireLater(older, other, Permissions.READ_ONLY, aborted);
+        Thread.sleep(20);
+        assertFalse(lm.hold(older, other));
+        lm.releaseAll(younger);
+        t.join();
+        assertFalse(aborted[0]);
+        assertTrue(lm.hold(older, other));
+    }
+
+    /**
+     * Under wound-wait, an older transaction waiting for a younger one
+     * makes it abort at its next lock request.
+     */
+    @Test public void woundWait() throws Exception {
+        lm = new LockManager(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(younger, pid, Permissions.READ_WRITE);
+        boolean[] aborted = new boolean[1];
+        Thread t = acquireLater(older, pid, Permissions.READ_WRITE, aborted);
+        Thread.sleep(20);
+        assertFalse(lm.hold(older, pid));
+        try {
+            lm.acquire(younger, new HeapPageId(1, 1), Permissions.READ_ONLY);
+            fail("younger transaction should have been wounded");
+        } catch (TransactionAbortedException e) {
+            lm.releaseAll(younger);
+        }
+        t.join();
+        assertFalse(aborted[0]);
+        assertTrue(lm.hold(older, pid));
+
+        // the wound heals once the transaction is done
+        lm.acquire(younger, new HeapPageId(1, 2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Page locks take intention locks on their table, and table locks
+     * cover pages.
+     */
+    @Test public void intentionLocks() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, pid, Permissions.READ_ONLY);
+        assertEquals(LockManager.LockMode.IS, lm.tableMode(t1, 1));
+        lm.acquire(t1, new HeapPageId(1, 1), Permissions.READ_WRITE);
+        assertEquals(LockManager.LockMode.IX, lm.tableMode(t1, 1));
+        lm.acquireTable(t1, 1, Permissions.READ_ONLY);
+        assertEquals(LockManager.LockMode.SIX, lm.tableMode(t1, 1));
+        assertTrue(lm.hold(t1, new HeapPageId(1, 2)));
+
+        // t2 may read pages t1 doesn't write, but not the whole table
+        lm.acquire(t2, new HeapPageId(1, 2), Permissions.READ_ONLY);
+        boolean[] aborted = new boolean[1];
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireTable(t2, 1, Permissions.READ_ONLY);
+            } catch (TransactionAbortedException e) {
+                aborted[0] = true;
+            }
+        });
+        t.start();
+        Thread.sleep(20);
+        assertEquals(LockManager.LockMode.IS, lm.tableMode(t2, 1));
+        lm.releaseAll(t1);
+        t.join();
+        assertFalse(aborted[0]);
+        assertEquals(LockManager.LockMode.S, lm.tableMode(t2, 1));
+    }
+
+    /**
+     * Past the threshold, page locks are escalated to a table lock, S or X
+     * depending on whether any page was locked for writing.
+     */
+    @Test public void escalation() throws Exception {
+        lm = new LockManager(LockManager.DeadlockPolicy.DETECT, 4);
+        TransactionId reader = new TransactionId(), writer = new TransactionId();
+        for (int i = 0; i < 5; ++i) {
+            lm.acquire(reader, new HeapPageId(1, i), Permissions.READ_ONLY);
+        }
+        assertEquals(LockManager.LockMode.S, lm.tableMode(reader, 1));
+        assertTrue(lm.hold(reader, new HeapPageId(1, 100)));
+
+        lm.acquire(writer, new HeapPageId(2, 0), Permissions.READ_WRITE);
+        for (int i = 1; i < 5; ++i) {
+            lm.acquire(writer, new HeapPageId(2, i), Permissions.READ_ONLY);
+        }
+        assertEquals(LockManager.LockMode.X, lm.tableMode(writer, 2));
+        assertFalse(lm.hold(reader, new HeapPageId(2, 0)));
+    }
+
+    /**
+     * Escalation doesn't wait: if the table lock can't be granted, the
+     * transaction keeps locking pages.
+     */
+    @Test public void escalationDoesNotWait() throws Exception {
+        lm = new LockManager(LockManager.DeadlockPolicy.DETECT, 4);
+        TransactionId reader = new TransactionId(), writer = new TransactionId();
+        lm.acquire(writer, new HeapPageId(1, 100), Permissions.READ_WRITE);
+        for (int i = 0; i < 10; ++i) {
+            lm.acquire(reader, new HeapPageId(1, i), Permissions.READ_ONLY);
+        }
+        assertEquals(LockManager.LockMode.IS, lm.tableMode(reader, 1));
+        assertFalse(lm.hold(reader, new HeapPageId(1, 100)));
+        assertTrue(lm.hold(reader, new HeapPageId(1, 9)));
+
+        // once the writer is done, the next page escalates
+        lm.releaseAll(writer);
+        lm.acquire(reader, new HeapPageId(1, 10), Permissions.READ_ONLY);
+        assertEquals(LockManager.LockMode.S, lm.tableMode(reader, 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
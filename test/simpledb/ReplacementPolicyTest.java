@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.Evictable ANY = pid -> true;
+
+    private static HeapPageId page(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * A page referenced twice survives a stream of pages referenced once.
+     */
+    @Test public void lru2ScanResistant() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(2);
+        policy.recordInsert(page(0));
+        policy.recordAccess(page(0));
+        for (int i = 1; i <= 10; ++i) {
+            policy.recordInsert(page(i));
+            assertEquals(page(i), policy.evict(ANY));
+        }
+        assertEquals(page(0), policy.evict(ANY));
+        assertNull(policy.evict(ANY));
+    }
+
+    /**
+     * LRU-2 evicts pages seen once in LRU order, and skips pages that
+     * can't be evicted.
+     */
+    @Test public void lru2Order() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(2);
+        for (int i = 0; i < 3; ++i) {
+            policy.recordInsert(page(i));
+        }
+        assertEquals(page(1), policy.evict(pid -> !pid.equals(page(0))));
+        assertEquals(page(0), policy.evict(ANY));
+        policy.recordRemove(page(2));
+        assertNull(policy.evict(ANY));
+    }
+
+    /**
+     * CLOCK gives recently referenced pages a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(3);
+        for (int i = 0; i < 3; ++i) {
+            policy.recordInsert(page(i));
+        }
+        // first sweep clears every bit, so page 0 goes first
+        assertEquals(page(0), policy.evict(ANY));
+        policy.recordInsert(page(3));
+        policy.recordAccess(page(1));
+        assertEquals(page(2), policy.evict(ANY));
+        assertEquals(page(3), policy.evict(pid -> !pid.equals(page(1))));
+        assertEquals(page(1), policy.evict(ANY));
+        assertNull(policy.evict(ANY));
+    }
+
+    /**
+     * Prefetched pages go before referenced ones until they are used, and
+     * a use counts as their first reference.
+     */
+    @Test public void prefetchedGoFirst() {
+        for (ReplacementPolicy policy : new ReplacementPolicy[] {
+                new LruKReplacementPolicy(2), new ClockReplacementPolicy(4) }) {
+            policy.recordInsert(page(0));
+            policy.recordPrefetch(page(1));
+            policy.recordPrefetch(page(2));
+            assertEquals(page(1), policy.evict(ANY));
+        }
+        // under LRU-2, a prefetched page used once is still only seen once
+        ReplacementPolicy policy = new LruKReplacementPolicy(2);
+        policy.recordPrefetch(page(2));
+        policy.recordAccess(page(2));
+        policy.recordPrefetch(page(3));
+        assertEquals(page(3), policy.evict(ANY));
+        assertEquals(page(2), policy.evict(ANY));
+        policy.recordInsert(page(0));
+        policy.recordAccess(page(0));
+        policy.recordPrefetch(page(1));
+        policy.recordAccess(page(1));
+        assertEquals(page(1), policy.evict(ANY));
+    }
+
+    /**
+     * The policy kind can be picked by name.
+     */
+    @Test public void kindFromProperty() {
+        System.setProperty("simpledb.ReplacementPolicy", "clock");
+        try {
+            assertEquals(ReplacementPolicy.Kind.CLOCK, ReplacementPolicy.Kind.fromProperty());
+        } finally {
+            System.clearProperty("simpledb.ReplacementPolicy");
+        }
+        assertEquals(ReplacementPolicy.Kind.LRU2, ReplacementPolicy.Kind.fromProperty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
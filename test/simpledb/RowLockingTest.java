@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RowLockingTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        empty.setRowLocking(true);
+        bp = Database.getBufferPool();
+    }
+
+    private Set<Integer> contents() throws Exception {
+        TransactionId tid = new TransactionId();
+        Set<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        return values;
+    }
+
+    /**
+     * Transactions changing different rows of a page don't wait for each
+     * other, and each commit or abort keeps or undoes only its own rows.
+     */
+    @Test(timeout = 10000) public void sharedPage() throws Exception {
+        TransactionId setup = new TransactionId();
+        empty.insertTuple(setup, Utility.getHeapTuple(1, 2));
+        empty.insertTuple(setup, Utility.getHeapTuple(2, 2));
+        bp.transactionComplete(setup);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), contents());
+
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        ArrayList<Page> p1 = empty.insertTuples(t1, Arrays.asList(Utility.getHeapTuple(3, 2)).iterator());
+        ArrayList<Page> p2 = empty.insertTuples(t2, Arrays.asList(Utility.getHeapTuple(4, 2)).iterator());
+        assertEquals(p1.get(0).getId(), p2.get(0).getId());
+
+        // t2 deletes 1, which t1 can't take over
+        HeapPage page = (HeapPage) p1.get(0);
+        Tuple one = null;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() == 1) {
+                one = t;
+            }
+        }
+        RecordId freed = one.getRecordId();
+        empty.deleteTuple(t2, one);
+        Tuple five = Utility.getHeapTuple(5, 2);
+        empty.insertTuple(t1, five);
+        assertFalse(freed.equals(five.getRecordId()));
+
+        bp.transactionComplete(t2, false);
+        bp.transactionComplete(t1, true);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3, 5)), contents());
+
+        // what was committed is on disk
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp = Database.getBufferPool();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3, 5)), contents());
+    }
+
+    /**
+     * A scan of a page waits for the rows being changed on it.
+     */
+    @Test(timeout = 10000) public void scanWaitsForRows() throws Exception {
+        TransactionId writer = new TransactionId();
+        empty.insertTuple(writer, Utility.getHeapTuple(1, 2));
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+
+        TransactionId reader = new TransactionId();
+        boolean[] done = new boolean[1];
+        Thread t = new Thread(() -> {
+            try {
+                bp.getPage(reader, pid, Permissions.READ_ONLY);
+                done[0] = true;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        Thread.sleep(50);
+        assertFalse(done[0]);
+        bp.transactionComplete(writer, true);
+        t.join();
+        assertTrue(done[0]);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+        TransactionId setup = new TransactionId();
+        empty.insertTuple(setup, Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(setup);
+    }
+
+    private Set<Integer> contents(TransactionId tid) throws Exception {
+        Set<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return values;
+    }
+
+    private static Set<Integer> set(Integer... values) {
+        return new HashSet<Integer>(Arrays.asList(values));
+    }
+
+    /**
+     * A snapshot reads past a writer's locks, and sees the database as of
+     * its start for as long as it runs.
+     */
+    @Test(timeout = 10000) public void readsCommittedVersion() throws Exception {
+        TransactionId writer = new TransactionId();
+        empty.insertTuple(writer, Utility.getHeapTuple(2, 2));
+
+        TransactionId before = new TransactionId();
+        bp.beginSnapshot(before);
+        assertEquals(set(1), contents(before));
+        assertFalse(bp.holdsLock(before, new HeapPageId(empty.getId(), 0)));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(set(1), contents(before));
+        assertEquals(1, bp.getVersionStore().versions());
+
+        TransactionId after = new TransactionId();
+        bp.beginSnapshot(after);
+        assertEquals(set(1, 2), contents(after));
+
+        // an aborted write is never seen
+        TransactionId aborted = new TransactionId();
+        empty.insertTuple(aborted, Utility.getHeapTuple(3, 2));
+        bp.transactionComplete(aborted, false);
+        assertEquals(set(1), contents(before));
+        assertEquals(set(1, 2), contents(after));
+
+        bp.transactionComplete(after);
+        bp.transactionComplete(before);
+    }
+
+    /**
+     * Old versions go once no snapshot needs them.
+     */
+    @Test public void collect() throws Exception {
+        VersionStore versions = bp.getVersionStore();
+        TransactionId s1 = new TransactionId();
+        bp.beginSnapshot(s1);
+        for (int i = 2; i < 5; ++i) {
+            TransactionId writer = new TransactionId();
+            empty.insertTuple(writer, Utility.getHeapTuple(i, 2));
+            bp.transactionComplete(writer, true);
+        }
+        TransactionId s2 = new TransactionId();
+        bp.beginSnapshot(s2);
+        TransactionId writer = new TransactionId();
+        empty.insertTuple(writer, Utility.getHeapTuple(5, 2));
+        bp.transactionComplete(writer, true);
+        assertEquals(4, versions.versions());
+        assertEquals(set(1), contents(s1));
+        assertEquals(set(1, 2, 3, 4), contents(s2));
+
+        bp.transactionComplete(s1);
+        assertEquals(1, versions.versions());
+        bp.transactionComplete(s2);
+        assertEquals(0, versions.versions());
+        assertEquals(0, versions.activeSnapshots());
+    }
+
+    /**
+     * Snapshots are read-only.
+     */
+    @Test public void readOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.beginSnapshot(tid);
+        try {
+            empty.insertTuple(tid, Utility.getHeapTuple(2, 2));
+            fail("snapshot should not be able to write");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A read-only Transaction reads past writers and completes without
+     * writing log records or pages.
+     */
+    @Test(timeout = 10000) public void readOnlyTransaction() throws Exception {
+        TransactionId writer = new TransactionId();
+        empty.insertTuple(writer, Utility.getHeapTuple(2, 2));
+        int records = Database.getLogFile().getTotalRecords();
+        long writes = bp.getStats().snapshot().pageWrites;
+
+        Transaction t = new Transaction(true);
+        t.start();
+        assertEquals(set(1), contents(t.getId()));
+        t.commit();
+
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+        assertEquals(writes, bp.getStats().snapshot().pageWrites);
+        bp.transactionComplete(writer, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
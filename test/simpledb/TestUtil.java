@@ -380,6 +380,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.deleteOnExit(emptyFile);
         }
 
         protected void setUp() throws Exception {
@@ -17,6 +17,8 @@ public class LogTest extends SimpleDbTestBase {
     File file2;
     HeapFile hf1;
     HeapFile hf2;
+    File bfile;
+    BTreeFile bf;
 
     void insertRow(HeapFile hf, Transaction t, int v1, int v2)
         throws DbException, TransactionAbortedException {
@@ -107,6 +109,8 @@ public class LogTest extends SimpleDbTestBase {
         Database.reset();
         hf1 = Utility.openHeapFile(2, file1);
         hf2 = Utility.openHeapFile(2, file2);
+        if (bfile != null)
+            bf = BTreeUtility.openBTreeFile(2, bfile, 0);
         Database.getLogFile().recover();
     }
 
@@ -120,10 +124,13 @@ public class LogTest extends SimpleDbTestBase {
         // adds to the catalog.
         file1 = new File("simple1.db");
         file1.delete();
+        FreeSpaceMap.delete(file1);
         file2 = new File("simple2.db");
         file2.delete();
+        FreeSpaceMap.delete(file2);
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        bfile = null;
     }
 
     @Test public void PatchTest()
@@ -427,6 +434,505 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    // the values in the first column of hf, each of which must be there once
+    Set<Integer> contents(HeapFile hf, Transaction t)
+        throws DbException, TransactionAbortedException {
+        Set<Integer> values = new HashSet<Integer>();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while(scan.hasNext()){
+            int x = ((IntField)scan.next().getField(0)).getValue();
+            if(!values.add(x))
+                throw new RuntimeException("LogTest: tuple repeated");
+        }
+        scan.close();
+        return values;
+    }
+
+    // append the start of an UPDATE record, as if the crash cut it short
+    void tearLog() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File("log"), true));
+        out.writeInt(3); // UPDATE_RECORD
+        out.writeLong(12345);
+        out.writeShort(20);
+        out.write(new byte[5]);
+        out.close();
+    }
+
+    // check that exactly the committed values are in the tables
+    void checkCommitted(Set<Integer> committed1, Set<Integer> committed2, long seed)
+        throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals("seed " + seed, committed1, contents(hf1, t));
+        assertEquals("seed " + seed, committed2, contents(hf2, t));
+        t.commit();
+    }
+
+    // run a random mix of inserts, commits, aborts, flushes and checkpoints
+    // on both tables and crash at a random point: after recovery only the
+    // committed inserts must be there, and recovering again changes nothing
+    void randomCrash(long seed)
+        throws DbException, TransactionAbortedException, IOException {
+        setup();
+        Random r = new Random(seed);
+        Transaction[] open = new Transaction[2];
+        List<Set<Integer>> pending = new ArrayList<Set<Integer>>();
+        List<Set<Integer>> committed = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < 2; i++) {
+            pending.add(new HashSet<Integer>());
+            committed.add(new HashSet<Integer>());
+        }
+        int v = 100;
+        int steps = 10 + r.nextInt(60);
+        for (int step = 0; step < steps; step++) {
+            int f = r.nextInt(2);
+            HeapFile hf = f == 0 ? hf1 : hf2;
+            int op = r.nextInt(10);
+            if (op < 5) {
+                // one table has at most one transaction, so no one waits for a lock
+                if (open[f] == null) {
+                    open[f] = new Transaction();
+                    open[f].start();
+                }
+                for (int n = 1 + r.nextInt(40); n > 0; n--) {
+                    insertRow(hf, open[f], v, 0);
+                    pending.get(f).add(v++);
+                }
+            } else if (op < 7 && open[f] != null) {
+                open[f].commit();
+                open[f] = null;
+                committed.get(f).addAll(pending.get(f));
+                pending.get(f).clear();
+            } else if (op < 8 && open[f] != null) {
+                open[f].abort();
+                open[f] = null;
+                pending.get(f).clear();
+            } else if (op < 9) {
+                Database.getBufferPool().flushAllPages();
+            } else {
+                Database.getLogFile().logCheckpoint();
+            }
+        }
+
+        Database.reset();
+        if (r.nextBoolean())
+            tearLog();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+        checkCommitted(committed.get(0), committed.get(1), seed);
+
+        crash();
+        checkCommitted(committed.get(0), committed.get(1), seed);
+    }
+
+    @Test public void TestTruncateCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().flushAllPages();
+
+        // *** Test:
+        // a checkpoint leaves a short log as it is; truncating it keeps
+        // what recovery needs to redo T2 and undo T1
+        File log = new File("log");
+        long length = log.length();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(log.length() > length);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 12, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        doInsert(hf2, 26, 27);
+
+        Database.getLogFile().logCheckpoint();
+        length = log.length();
+        Database.getLogFile().logTruncate();
+        assertTrue(log.length() < length);
+
+        insertRow(hf1, t1, 13, 0);
+        doInsert(hf2, 28, 29);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 12, false);
+        look(hf1, t, 13, false);
+        look(hf2, t, 26, true);
+        look(hf2, t, 28, true);
+        t.commit();
+    }
+
+    @Test public void TestRowLockingCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        hf1.setRowLocking(true);
+        doInsert(hf1, 1, 2);
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple one = null;
+        SeqScan scan = new SeqScan(t.getId(), hf1.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField)tu.getField(0)).getValue() == 1)
+                one = tu;
+        }
+        scan.close();
+        t.commit();
+
+        // *** Test:
+        // T1 and T2 change rows of the same page; T1 commits, and the
+        // page goes to disk with the uncommitted rows of T2
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t1, 3, 0);
+        insertRow(hf1, t2, 4, 0);
+        Database.getBufferPool().deleteTuple(t2.getId(), one);
+        t1.commit();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(new HashSet<Integer>(Arrays.asList(2, 3, 4)), onDisk(hf1, 0));
+        insertRow(hf1, t2, 5, 0);
+
+        // *** Test:
+        // recovery takes the rows of T2 back out, and keeps those of T1
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    // the keys in bf, as a committed transaction reads them
+    List<Integer> keys()
+        throws IOException, DbException, TransactionAbortedException {
+        List<Integer> keys = new ArrayList<Integer>();
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        while (it.hasNext())
+            keys.add(((IntField)it.next().getField(0)).getValue());
+        it.close();
+        BTreeChecker.checkRep(bf, t.getId(), new HashMap<PageId, Page>(), false);
+        t.commit();
+        return keys;
+    }
+
+    void latchModeCrash(BTreeFile.LatchMode mode)
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        bfile = File.createTempFile("LogTest", ".db");
+        bfile.deleteOnExit();
+        bf = BTreeUtility.createEmptyBTreeFile(bfile.getAbsolutePath(), 2, 0);
+        bf.setLatchMode(mode);
+        List<Integer> committed = new ArrayList<Integer>();
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 400; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] {i * 10, 0}));
+            committed.add(i * 10);
+        }
+        t.commit();
+
+        // *** Test:
+        // T1 and T2 split leaves and the internal pages above them, which
+        // they share; T2 commits, and the pages go to disk with the
+        // uncommitted tuples of T1
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 100; i++) {
+            Database.getBufferPool().insertTuple(t1.getId(), bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] {i * 10 + 5, 1}));
+            Database.getBufferPool().insertTuple(t2.getId(), bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] {i * 10 + 3005, 2}));
+            committed.add(i * 10 + 3005);
+        }
+        DbFileIterator it = bf.indexIterator(t1.getId(),
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(500)));
+        it.open();
+        Tuple doomed = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(t1.getId(), doomed);
+        t2.commit();
+        Database.getBufferPool().flushAllPages();
+
+        // *** Test:
+        // recovery takes the tuples of T1 back out, and keeps the splits
+        // and tuples of T2
+
+        crash();
+        bf.setLatchMode(mode);
+
+        Collections.sort(committed);
+        assertEquals(committed, keys());
+    }
+
+    @Test public void TestCrabbingCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool.setPageSize(1024);
+        try {
+            latchModeCrash(BTreeFile.LatchMode.CRABBING);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+    }
+
+    @Test public void TestBLinkCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        BufferPool.setPageSize(1024);
+        try {
+            latchModeCrash(BTreeFile.LatchMode.BLINK);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+    }
+
+    @Test public void TestBulkLoadCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a bulk load logs no page images, and recovery doesn't redo the
+        // logged images of the page it loaded into over the load
+        File log = new File("log");
+        long length = log.length();
+        BulkLoader.load(hf1.getId(), Arrays.asList(Utility.getHeapTuple(3, 2),
+                Utility.getHeapTuple(4, 2)).iterator());
+        assertTrue(log.length() - length < BufferPool.getPageSize());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestUnloggedWriteCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a transaction that didn't begin in the log writes its page out
+        // at commit; the page on disk is newer than the image the log has
+        // of it, and recovery doesn't redo that image over it
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf1.getId(), Utility.getHeapTuple(3, 2));
+        Database.getBufferPool().transactionComplete(tid, true);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), onDisk(hf1, 0));
+
+        crash();
+
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), onDisk(hf1, 0));
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestRandomCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        for (long seed = 0; seed < 12; seed++)
+            randomCrash(seed);
+    }
+
+    // how long recovery of TestRestartTime may take; it takes well under
+    // a second
+    static final long RESTART_MILLIS = 10000;
+
+    @Test public void TestRestartTime()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // commit many transactions without writing their pages, so
+        // recovery has to redo about 2000 records; with one redo thread
+        // and with several, it is done well within RESTART_MILLIS
+
+        Set<Integer> committed1 = new HashSet<Integer>();
+        Set<Integer> committed2 = new HashSet<Integer>();
+        int v = 0;
+        for (int i = 0; i < 1000; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int n = 0; n < 3; n++) {
+                insertRow(hf1, t, v, 0);
+                committed1.add(v++);
+                insertRow(hf2, t, v, 0);
+                committed2.add(v++);
+            }
+            t.commit();
+        }
+        int threads = LogFile.getRecoveryThreads();
+        try {
+            int[] counts = { 1, Math.max(4, threads) };
+            for (int n : counts) {
+                LogFile.setRecoveryThreads(n);
+                Database.reset();
+                hf1 = Utility.openHeapFile(2, file1);
+                hf2 = Utility.openHeapFile(2, file2);
+                long start = System.nanoTime();
+                Database.getLogFile().recover();
+                long millis = (System.nanoTime() - start) / 1000000;
+                assertTrue("recovery with " + n + " redo thread(s) took " + millis + " ms",
+                           millis < RESTART_MILLIS);
+                checkCommitted(committed1, committed2, n);
+            }
+        } finally {
+            LogFile.setRecoveryThreads(threads);
+        }
+    }
+
+    // the values in the first column of page pgNo of hf, as on disk
+    Set<Integer> onDisk(HeapFile hf, int pgNo) {
+        Set<Integer> values = new HashSet<Integer>();
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo))).iterator();
+        while (it.hasNext())
+            values.add(((IntField)it.next().getField(0)).getValue());
+        return values;
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        LogFile.setBackgroundWritePages(0);
+        try {
+            setup();
+            doInsert(hf1, 1, 2);
+
+            Transaction t = new Transaction();
+            t.start();
+            insertRow(hf1, t, 3, 0);
+
+            // *** Test:
+            // a checkpoint needs neither the BufferPool monitor nor
+            // writing pages, so it goes on while another thread holds it
+            IOException[] failure = new IOException[1];
+            Thread cp = new Thread(() -> {
+                try {
+                    Database.getLogFile().logCheckpoint();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            synchronized (Database.getBufferPool()) {
+                cp.start();
+                cp.join(10000);
+                assertFalse("checkpoint waited for the BufferPool", cp.isAlive());
+            }
+            if (failure[0] != null)
+                throw failure[0];
+            assertEquals(new HashSet<Integer>(Arrays.asList(1)), onDisk(hf1, 0));
+
+            // *** Test:
+            // recovery redoes from the dirty page table of the checkpoint
+
+            crash();
+
+            t = new Transaction();
+            t.start();
+            look(hf1, t, 1, true);
+            look(hf1, t, 2, true);
+            look(hf1, t, 3, false);
+            t.commit();
+        } finally {
+            LogFile.setBackgroundWritePages(LogFile.DEFAULT_BACKGROUND_WRITE_PAGES);
+        }
+    }
+
+    @Test public void TestScheduledCheckpoint()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        try {
+            // *** Test:
+            // the checkpointer takes a checkpoint once the interval is
+            // up, and writes the pages of committed transactions out
+            LogFile.setCheckpointSchedule(50, 0);
+            doInsert(hf1, 1, 2);
+            int checkpoints = Database.getLogFile().getCheckpoints();
+            Set<Integer> committed = new HashSet<Integer>(Arrays.asList(1, 2));
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((Database.getLogFile().getCheckpoints() == checkpoints
+                    || !onDisk(hf1, 0).equals(committed))
+                   && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            assertTrue(Database.getLogFile().getCheckpoints() > checkpoints);
+            assertEquals(committed, onDisk(hf1, 0));
+
+            // *** Test:
+            // or once enough log has been written
+            LogFile.setCheckpointSchedule(0, 1);
+            checkpoints = Database.getLogFile().getCheckpoints();
+            doInsert(hf1, 3, 4);
+            deadline = System.currentTimeMillis() + 10000;
+            while (Database.getLogFile().getCheckpoints() == checkpoints
+                   && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            assertTrue(Database.getLogFile().getCheckpoints() > checkpoints);
+        } finally {
+            LogFile.setCheckpointSchedule(LogFile.DEFAULT_CHECKPOINT_INTERVAL_MILLIS,
+                                          LogFile.DEFAULT_CHECKPOINT_LOG_BYTES);
+        }
+    }
+
+    // wait up to ten seconds for a checkpoint after the first checkpoints
+    void awaitCheckpoint(int checkpoints) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Database.getLogFile().getCheckpoints() == checkpoints
+               && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertTrue(Database.getLogFile().getCheckpoints() > checkpoints);
+    }
+
+    @Test public void TestIdleCheckpoint()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        // longer than the checkpointer takes to go idle
+        LogFile.setCheckpointSchedule(2000, 0);
+        try {
+            setup();
+
+            // *** Test:
+            // a checkpoint comes due on the interval after the log has
+            // gone quiet
+            doInsert(hf1, 1, 2);
+            awaitCheckpoint(Database.getLogFile().getCheckpoints());
+
+            // *** Test:
+            // and after a quiet spell, the next records get theirs too
+            Thread.sleep(1500);
+            int checkpoints = Database.getLogFile().getCheckpoints();
+            doInsert(hf1, 3, 4);
+            awaitCheckpoint(checkpoints);
+        } finally {
+            LogFile.setCheckpointSchedule(LogFile.DEFAULT_CHECKPOINT_INTERVAL_MILLIS,
+                                          LogFile.DEFAULT_CHECKPOINT_LOG_BYTES);
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);